@@ -1,6 +1,7 @@
 package jetbrains.buildServer.clouds.amazon.connector.backwardsCompat;
 
 import jetbrains.buildServer.ExtensionHolder;
+import jetbrains.buildServer.clouds.amazon.connector.AwsConnectorFactory;
 import jetbrains.buildServer.clouds.amazon.connector.LinkedAwsConnectionProvider;
 import jetbrains.buildServer.clouds.amazon.connector.connectionId.AwsConnectionIdGenerator;
 import jetbrains.buildServer.clouds.amazon.connector.connectionId.GenerateAwsIdExtension;
@@ -18,6 +19,7 @@ import jetbrains.buildServer.serverSide.oauth.OAuthProvider;
 import jetbrains.buildServer.serverSide.oauth.aws.AwsConnectionProvider;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class AwsConnectorExtensionRegistar {
 
@@ -26,17 +28,28 @@ public class AwsConnectorExtensionRegistar {
   private final AwsConnectionCredentialsFactory myAwsCredentialsFactory;
   private final LinkedAwsConnectionProvider myLinkedAwsConnectionProvider;
   private final AwsConnectionIdGenerator myAwsConnectionIdGenerator;
+  @Nullable private final AwsConnectorFactory myAwsConnectorFactory;
 
   public AwsConnectorExtensionRegistar(@NotNull final ExtensionHolder extensionHolder,
                                        @NotNull final PluginDescriptor pluginDescriptor,
                                        @NotNull final AwsConnectionCredentialsFactory awsCredentialsFactory,
                                        @NotNull final LinkedAwsConnectionProvider linkedAwsConnectionProvider,
                                        @NotNull final AwsConnectionIdGenerator awsConnectionIdGenerator) {
+    this(extensionHolder, pluginDescriptor, awsCredentialsFactory, linkedAwsConnectionProvider, awsConnectionIdGenerator, null);
+  }
+
+  public AwsConnectorExtensionRegistar(@NotNull final ExtensionHolder extensionHolder,
+                                       @NotNull final PluginDescriptor pluginDescriptor,
+                                       @NotNull final AwsConnectionCredentialsFactory awsCredentialsFactory,
+                                       @NotNull final LinkedAwsConnectionProvider linkedAwsConnectionProvider,
+                                       @NotNull final AwsConnectionIdGenerator awsConnectionIdGenerator,
+                                       @Nullable final AwsConnectorFactory awsConnectorFactory) {
     myExtensionHolder = extensionHolder;
     myPluginDescriptor = pluginDescriptor;
     myAwsCredentialsFactory = awsCredentialsFactory;
     myLinkedAwsConnectionProvider = linkedAwsConnectionProvider;
     myAwsConnectionIdGenerator = awsConnectionIdGenerator;
+    myAwsConnectorFactory = awsConnectorFactory;
 
     if (TeamCityProperties.getBooleanOrTrue(AwsCloudConnectorConstants.FEATURE_PROPERTY_NAME)) {
 
@@ -60,7 +73,7 @@ public class AwsConnectorExtensionRegistar {
   private void registerExposeToEnvVarsBuildFeature() {
     myExtensionHolder.registerExtension(BuildFeature.class, AwsConnToAgentBuildFeature.class.getName(), new AwsConnToAgentBuildFeature(myPluginDescriptor));
 
-    InjectAwsCredentialsToTheBuildContext awsConnDataToEnvVars = new InjectAwsCredentialsToTheBuildContext(myLinkedAwsConnectionProvider);
+    InjectAwsCredentialsToTheBuildContext awsConnDataToEnvVars = new InjectAwsCredentialsToTheBuildContext(myLinkedAwsConnectionProvider, myAwsConnectorFactory);
     myExtensionHolder.registerExtension(BuildStartContextProcessor.class, InjectAwsCredentialsToTheBuildContext.class.getName(), awsConnDataToEnvVars);
   }
 }
@@ -18,6 +18,12 @@ public interface AwsConnectionsHolder {
 
   void removeAwsConnection(@NotNull final String awsConnectionId);
 
+  /**
+   * Drops the built connection but keeps its ID taken, the connection is built again on the next lookup
+   */
+  default void invalidateAwsConnection(@NotNull final String awsConnectionId) {
+  }
+
   @NotNull
   AwsConnectionDescriptor getAwsConnection(@NotNull final String awsConnectionId) throws AwsConnectorException;
 
@@ -29,5 +35,17 @@ public interface AwsConnectionsHolder {
 
   boolean isUniqueAwsConnectionId(@NotNull final String awsConnectionId);
 
+  /**
+   * @return a new unique AWS Connection ID of the form {@code <prefix>_<N>}, concurrent calls get different IDs
+   */
+  @NotNull
+  String allocateAwsConnectionId(@NotNull final String prefix);
+
+  /**
+   * @return the ID which the next {@link #allocateAwsConnectionId(String)} call would return
+   */
+  @NotNull
+  String showNextAwsConnectionId(@NotNull final String prefix);
+
   void putDataStorageValue(@NotNull final String awsConnectionId, @NotNull final String projectOwnerid);
 }
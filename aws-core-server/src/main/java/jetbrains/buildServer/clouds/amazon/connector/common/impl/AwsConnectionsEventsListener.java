@@ -23,27 +23,35 @@ public class AwsConnectionsEventsListener extends BuildServerAdapter {
 
   private final AwsConnectionsHolder myAwsConnectionsHolder;
   private final AwsConnectionDescriptorBuilder myAwsConnectionDescriptorBuilder;
+  private final AwsConnectionsRebuildQueue myRebuildQueue;
 
   public AwsConnectionsEventsListener(@NotNull final AwsConnectionsHolder awsConnectionsHolder,
                                       @NotNull final AwsConnectionDescriptorBuilder awsConnectionDescriptorBuilder,
                                       @NotNull final EventDispatcher<BuildServerListener> buildServerEventDispatcher) {
     myAwsConnectionsHolder = awsConnectionsHolder;
     myAwsConnectionDescriptorBuilder = awsConnectionDescriptorBuilder;
+    myRebuildQueue = new AwsConnectionsRebuildQueue(awsConnectionsHolder, awsConnectionDescriptorBuilder);
     buildServerEventDispatcher.addListener(this);
   }
 
   @Override
   public void projectRestored(@NotNull String projectId) {
+    if (AwsConnectionsRebuildQueue.isEnabled()) {
+      myRebuildQueue.projectRestored(projectId);
+      return;
+    }
     myAwsConnectionsHolder.rebuildAllConnectionsForProject(projectId);
   }
 
   @Override
   public void projectRemoved(@NotNull SProject project) {
+    myRebuildQueue.projectRemoved(project.getProjectId());
     myAwsConnectionsHolder.removeAllConnectionsForProject(project);
   }
 
   @Override
   public void serverShutdown() {
+    myRebuildQueue.dispose();
     myAwsConnectionsHolder.clear();
   }
 
@@ -70,12 +78,24 @@ public class AwsConnectionsEventsListener extends BuildServerAdapter {
     AwsConnectionsLogger awsConnectionsLogger = new AwsConnectionsLogger(project);
     if (!isAwsConnectionFeature(after)) {
       if (isAwsConnectionFeature(before)) {
+        myRebuildQueue.connectionRemoved(before.getId());
         myAwsConnectionsHolder.removeAwsConnection(before.getId());
         awsConnectionsLogger.connectionRemoved(before.getId());
       }
       return;
     }
 
+    if (AwsConnectionsRebuildQueue.isEnabled()) {
+      // the ID is taken right away, the connection is rebuilt with the other changes of the burst
+      myAwsConnectionsHolder.putDataStorageValue(after.getId(), after.getProjectId());
+      if (!AwsConnectionsRebuildQueue.getParametersHash(before).equals(AwsConnectionsRebuildQueue.getParametersHash(after))) {
+        // the old parameters must not be used until the rebuild, a lookup made before it builds the connection from the new ones
+        myAwsConnectionsHolder.invalidateAwsConnection(after.getId());
+      }
+      myRebuildQueue.connectionChanged(project, before, after);
+      return;
+    }
+
     try {
       myAwsConnectionsHolder.putDataStorageValue(after.getId(), after.getProjectId());
       AwsConnectionDescriptor awsConnectionDescriptor = myAwsConnectionDescriptorBuilder.fromFeatureDescriptor(after);
@@ -92,6 +112,7 @@ public class AwsConnectionsEventsListener extends BuildServerAdapter {
     if (!isAwsConnectionFeature(projectFeature)) {
       return;
     }
+    myRebuildQueue.connectionRemoved(projectFeature.getId());
     myAwsConnectionsHolder.removeAwsConnection(projectFeature.getId());
     new AwsConnectionsLogger(project)
       .connectionRemoved(projectFeature.getId());
@@ -1,10 +1,12 @@
 package jetbrains.buildServer.clouds.amazon.connector.common.impl;
 
-import java.util.ArrayList;
+import com.google.common.util.concurrent.Striped;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Lock;
 import java.util.stream.Collectors;
 import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionDescriptor;
 import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionsHolder;
@@ -24,12 +26,20 @@ import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.Aws
 public class AwsConnectionsHolderImpl implements AwsConnectionsHolder {
 
   public static final String AWS_CONNECTIONS_IDX_STORAGE = "aws.connections.idx.storage";
+  private static final int CONNECTION_LOCK_STRIPES = 64;
 
   private final AwsConnectionDescriptorBuilder myAwsConnectionDescriptorBuilder;
   private final ProjectManager myProjectManager;
   private final AwsCredentialsRefresheringManager myAwsCredentialsRefresheringManager;
 
   private final ConcurrentHashMap<String, AwsConnectionDescriptor> awsConnections = new ConcurrentHashMap<>();
+  private final AwsConnectionsIndex myConnectionsIndex;
+  // a cold connection is built once however many lookups request it concurrently
+  private final ConcurrentHashMap<String, CompletableFuture<AwsConnectionDescriptor>> myPendingBuilds = new ConcurrentHashMap<>();
+  // changes of the same connection are applied one at a time, the locks are never held during a build
+  private final Striped<Lock> myConnectionLocks = Striped.lock(CONNECTION_LOCK_STRIPES);
+  // parameters of the features the connections have been rebuilt from on project restore, any other change of a connection drops its entry
+  private final ConcurrentHashMap<String, String> myRebuiltParametersHashes = new ConcurrentHashMap<>();
 
   public AwsConnectionsHolderImpl(@NotNull final AwsConnectionDescriptorBuilder awsConnectionDescriptorBuilder,
                                   @NotNull final ProjectManager projectManager,
@@ -37,35 +47,63 @@ public class AwsConnectionsHolderImpl implements AwsConnectionsHolder {
     myAwsConnectionDescriptorBuilder = awsConnectionDescriptorBuilder;
     myProjectManager = projectManager;
     myAwsCredentialsRefresheringManager = awsCredentialsRefresheringManager;
+    myConnectionsIndex = new AwsConnectionsIndex(this::getDataStorage);
   }
 
   @Override
   public void addAwsConnection(@NotNull final AwsConnectionDescriptor awsConnectionDescriptor) {
     String awsConnectionId = awsConnectionDescriptor.getId();
-    initAwsConnection(awsConnectionDescriptor);
-    putDataStorageValue(awsConnectionId, awsConnectionDescriptor.getProjectId());
+    Lock lock = lockConnection(awsConnectionId);
+    try {
+      initAwsConnection(awsConnectionDescriptor);
+      putDataStorageValue(awsConnectionId, awsConnectionDescriptor.getProjectId());
+    } finally {
+      lock.unlock();
+    }
   }
 
   @Override
   public void updateAwsConnection(@NotNull final AwsConnectionDescriptor awsConnectionDescriptor) {
     String connectionId = awsConnectionDescriptor.getId();
-    String connectionOwnerProjectId = getDataStorageValue(connectionId);
-    if (connectionOwnerProjectId == null) {
-      addAwsConnection(awsConnectionDescriptor);
-    } else if (!connectionOwnerProjectId.equals(awsConnectionDescriptor.getProjectId())){
-      SProject originalConnectionProject = myProjectManager.findProjectById(connectionOwnerProjectId);
-      SProject duplicatedConnectionProject = myProjectManager.findProjectById(awsConnectionDescriptor.getProjectId());
-      AwsConnectionsLogger.duplicatedAwsConnectionExistsOnTheServer(connectionId, originalConnectionProject, duplicatedConnectionProject);
-    } else {
-      initAwsConnection(awsConnectionDescriptor);
+    Lock lock = lockConnection(connectionId);
+    try {
+      String connectionOwnerProjectId = getDataStorageValue(connectionId);
+      if (connectionOwnerProjectId == null) {
+        addAwsConnection(awsConnectionDescriptor);
+      } else if (!connectionOwnerProjectId.equals(awsConnectionDescriptor.getProjectId())){
+        SProject originalConnectionProject = myProjectManager.findProjectById(connectionOwnerProjectId);
+        SProject duplicatedConnectionProject = myProjectManager.findProjectById(awsConnectionDescriptor.getProjectId());
+        AwsConnectionsLogger.duplicatedAwsConnectionExistsOnTheServer(connectionId, originalConnectionProject, duplicatedConnectionProject);
+      } else {
+        initAwsConnection(awsConnectionDescriptor);
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void removeAwsConnection(@NotNull final String awsConnectionId) {
-    myAwsCredentialsRefresheringManager.stopCredentialsRefreshingtask(awsConnectionId);
-    awsConnections.remove(awsConnectionId);
-    removeAwsConnectionFromDataStorage(awsConnectionId);
+    Lock lock = lockConnection(awsConnectionId);
+    try {
+      myAwsCredentialsRefresheringManager.stopCredentialsRefreshingtask(awsConnectionId);
+      awsConnections.remove(awsConnectionId);
+      removeAwsConnectionFromDataStorage(awsConnectionId);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void invalidateAwsConnection(@NotNull final String awsConnectionId) {
+    Lock lock = lockConnection(awsConnectionId);
+    try {
+      myAwsCredentialsRefresheringManager.stopCredentialsRefreshingtask(awsConnectionId);
+      awsConnections.remove(awsConnectionId);
+      myRebuiltParametersHashes.remove(awsConnectionId);
+    } finally {
+      lock.unlock();
+    }
   }
 
   @NotNull
@@ -73,8 +111,7 @@ public class AwsConnectionsHolderImpl implements AwsConnectionsHolder {
   public AwsConnectionDescriptor getAwsConnection(@NotNull final String awsConnectionId) throws AwsConnectorException {
     AwsConnectionDescriptor awsConnectionDescriptor = awsConnections.get(awsConnectionId);
     if (awsConnectionDescriptor == null) {
-      awsConnectionDescriptor = buildConnectionFromOwnerProject(awsConnectionId);
-      initAwsConnection(awsConnectionDescriptor);
+      awsConnectionDescriptor = buildConnectionOnce(awsConnectionId);
     } else if (isDefaultCredsProviderChainType(awsConnectionDescriptor) &&
                ! TeamCityProperties.getBoolean(DEFAULT_CREDS_PROVIDER_FEATURE_PROPERTY_NAME)) {
       removeAwsConnection(awsConnectionId);
@@ -88,6 +125,8 @@ public class AwsConnectionsHolderImpl implements AwsConnectionsHolder {
   public void clear() {
     myAwsCredentialsRefresheringManager.dispose();
     awsConnections.clear();
+    myRebuiltParametersHashes.clear();
+    myConnectionsIndex.dispose();
   }
 
   @Override
@@ -103,13 +142,25 @@ public class AwsConnectionsHolderImpl implements AwsConnectionsHolder {
 
     AwsConnectionsLogger awsConnectionsLogger = new AwsConnectionsLogger(updatedProject);
     for (SProjectFeatureDescriptor connectionFeature : updatedAwsConnections) {
-      awsConnectionsLogger.rebuildAwsConnectionOnProjectRestore(connectionFeature.getId());
+      String connectionId = connectionFeature.getId();
+      String parametersHash = AwsConnectionsRebuildQueue.getParametersHash(connectionFeature);
+      if (parametersHash.equals(myRebuiltParametersHashes.get(connectionId)) && awsConnections.containsKey(connectionId)) {
+        awsConnectionsLogger.connectionNotChanged(connectionId);
+        continue;
+      }
+
+      awsConnectionsLogger.rebuildAwsConnectionOnProjectRestore(connectionId);
       try {
-        updateAwsConnection(
-          buildAwsConnectionDescriptor(connectionFeature.getId(), projectId)
-        );
+        AwsConnectionDescriptor awsConnectionDescriptor = buildAwsConnectionDescriptor(connectionId, projectId);
+        Lock lock = lockConnection(connectionId);
+        try {
+          updateAwsConnection(awsConnectionDescriptor);
+          myRebuiltParametersHashes.put(connectionId, parametersHash);
+        } finally {
+          lock.unlock();
+        }
       } catch (Exception e) {
-        awsConnectionsLogger.failedToBuild(connectionFeature.getId(), e);
+        awsConnectionsLogger.failedToBuild(connectionId, e);
       }
     }
   }
@@ -126,6 +177,103 @@ public class AwsConnectionsHolderImpl implements AwsConnectionsHolder {
     return getDataStorageValue(awsConnectionId) == null;
   }
 
+  @NotNull
+  @Override
+  public String allocateAwsConnectionId(@NotNull final String prefix) {
+    return myConnectionsIndex.allocateId(prefix, this::isUnknownAwsConnectionId);
+  }
+
+  @NotNull
+  @Override
+  public String showNextAwsConnectionId(@NotNull final String prefix) {
+    return myConnectionsIndex.peekId(prefix, this::isUnknownAwsConnectionId);
+  }
+
+  /**
+   * Checks the candidate IDs of an allocation in memory, the index has been refreshed from the storage before the allocation
+   */
+  private boolean isUnknownAwsConnectionId(@NotNull final String awsConnectionId) {
+    return !myConnectionsIndex.isIndexed(awsConnectionId) && !awsConnections.containsKey(awsConnectionId);
+  }
+
+
+  @NotNull
+  private AwsConnectionDescriptor buildConnectionOnce(@NotNull final String awsConnectionId) throws AwsConnectorException {
+    CompletableFuture<AwsConnectionDescriptor> newBuild = new CompletableFuture<>();
+    CompletableFuture<AwsConnectionDescriptor> pendingBuild = myPendingBuilds.putIfAbsent(awsConnectionId, newBuild);
+    if (pendingBuild != null) {
+      return awaitBuild(awsConnectionId, pendingBuild);
+    }
+
+    try {
+      // the connection might have been built before this build has been registered
+      AwsConnectionDescriptor awsConnectionDescriptor = awsConnections.get(awsConnectionId);
+      if (awsConnectionDescriptor == null) {
+        awsConnectionDescriptor = publishBuiltConnection(newBuild, buildConnectionFromOwnerProject(awsConnectionId));
+      }
+      newBuild.complete(awsConnectionDescriptor);
+      return awsConnectionDescriptor;
+    } catch (AwsConnectorException | RuntimeException e) {
+      newBuild.completeExceptionally(e);
+      throw e;
+    } finally {
+      myPendingBuilds.remove(awsConnectionId, newBuild);
+    }
+  }
+
+  @NotNull
+  private AwsConnectionDescriptor publishBuiltConnection(@NotNull final CompletableFuture<AwsConnectionDescriptor> build,
+                                                         @NotNull final AwsConnectionDescriptor awsConnectionDescriptor) {
+    String awsConnectionId = awsConnectionDescriptor.getId();
+    Lock lock = myConnectionLocks.get(awsConnectionId);
+    lock.lock();
+    try {
+      if (myPendingBuilds.get(awsConnectionId) != build) {
+        // the connection has been changed or removed during the build, the result is not kept
+        return awsConnectionDescriptor;
+      }
+      AwsConnectionDescriptor currentDescriptor = awsConnections.get(awsConnectionId);
+      if (currentDescriptor != null) {
+        return currentDescriptor;
+      }
+      initAwsConnection(awsConnectionDescriptor);
+      return awsConnectionDescriptor;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @NotNull
+  private static AwsConnectionDescriptor awaitBuild(@NotNull final String awsConnectionId,
+                                                    @NotNull final CompletableFuture<AwsConnectionDescriptor> build) throws AwsConnectorException {
+    try {
+      return build.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AwsConnectorException("Interrupted while waiting for the AWS Connection with ID: " + awsConnectionId + " to be built");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof AwsConnectorException) {
+        throw (AwsConnectorException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw new AwsConnectorException(cause);
+    }
+  }
+
+  /**
+   * Locks the connection for a change, a build of the connection which has started before the change does not overwrite it
+   */
+  @NotNull
+  private Lock lockConnection(@NotNull final String awsConnectionId) {
+    Lock lock = myConnectionLocks.get(awsConnectionId);
+    lock.lock();
+    myPendingBuilds.remove(awsConnectionId);
+    myRebuiltParametersHashes.remove(awsConnectionId);
+    return lock;
+  }
 
   @NotNull
   private AwsConnectionDescriptor buildConnectionFromOwnerProject(@NotNull final String awsConnectionId) throws AwsConnectorException {
@@ -147,25 +295,16 @@ public class AwsConnectionsHolderImpl implements AwsConnectionsHolder {
   }
 
   private void removeAwsConnectionFromDataStorage(@NotNull final String awsConnectionId) {
-    CustomDataStorage storage = getDataStorage();
-    storage.updateValues(Collections.emptyMap(), Collections.singleton(awsConnectionId));
-    storage.flush();
+    myConnectionsIndex.remove(awsConnectionId);
   }
 
   @Nullable
   private String getDataStorageValue(@NotNull final String key) {
-    CustomDataStorage dataStorage = getDataStorage();
-    Map<String, String> dataStorageValues = dataStorage.getValues();
-    if (dataStorageValues == null || !dataStorageValues.containsKey(key)) {
-      return null;
-    }
-    return dataStorageValues.get(key);
+    return myConnectionsIndex.getOwnerProjectId(key);
   }
 
   public void putDataStorageValue(@NotNull final String key, @NotNull final String value) {
-    CustomDataStorage dataStorage = getDataStorage();
-    dataStorage.putValue(key, value);
-    dataStorage.flush();
+    myConnectionsIndex.put(key, value);
   }
 
   @NotNull
@@ -190,25 +329,16 @@ public class AwsConnectionsHolderImpl implements AwsConnectionsHolder {
   }
 
   private void freeChangedIds(@NotNull final Collection<SProjectFeatureDescriptor> updatedAwsConnections, @NotNull final String projectId) {
-    Map<String, String> dataStorageValues = getDataStorage().getValues();
-    if (dataStorageValues != null) {
-      ArrayList<String> previousOwnedByProjectAwsConnections = new ArrayList<>();
-      dataStorageValues.forEach((connectionId, projectOwnerId) -> {
-        if (projectOwnerId.equals(projectId)) {
-          previousOwnedByProjectAwsConnections.add(connectionId);
-        }
-      });
-
-      previousOwnedByProjectAwsConnections
-        .removeAll(
-          updatedAwsConnections
-            .stream()
-            .map(SProjectFeatureDescriptor::getId)
-            .collect(Collectors.toList())
-        );
-      for (String removedAwsConnectionId: previousOwnedByProjectAwsConnections) {
-        removeAwsConnectionFromDataStorage(removedAwsConnectionId);
-      }
+    Set<String> previousOwnedByProjectAwsConnections = myConnectionsIndex.getConnectionIds(projectId);
+    previousOwnedByProjectAwsConnections
+      .removeAll(
+        updatedAwsConnections
+          .stream()
+          .map(SProjectFeatureDescriptor::getId)
+          .collect(Collectors.toList())
+      );
+    for (String removedAwsConnectionId: previousOwnedByProjectAwsConnections) {
+      removeAwsConnectionFromDataStorage(removedAwsConnectionId);
     }
   }
 
@@ -0,0 +1,267 @@
+package jetbrains.buildServer.clouds.amazon.connector.common.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import jetbrains.buildServer.clouds.amazon.connector.connectionId.AwsConnectionIdGenerator;
+import jetbrains.buildServer.serverSide.CustomDataStorage;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * In-memory copy of the AWS Connections index storage: the owner project of each connection and the connections of each project.
+ * The storage is read once, changes are applied to both and the storage flushes are coalesced:
+ * all the changes made within {@link #FLUSH_DELAY_MILLIS} are persisted by a single flush.
+ * The connections added by other nodes are read from the storage again at most once per {@link #REFRESH_INTERVAL_SECONDS}.
+ * For each prefix of the {@code <prefix>_<N>} connection IDs the index keeps the highest N ever indexed, so that a new ID is allocated without probing the taken ones.
+ */
+public class AwsConnectionsIndex {
+  public static final String FLUSH_DELAY_MILLIS = "teamcity.internal.aws.connection.index.flushDelayInMillis";
+  public static final String REFRESH_INTERVAL_SECONDS = "teamcity.internal.aws.connection.index.refreshIntervalInSeconds";
+  private static final int FLUSH_DELAY_MILLIS_DEFAULT = 1000;
+  private static final int REFRESH_INTERVAL_SECONDS_DEFAULT = 10;
+  private static final int MAX_ID_NUMBER_LENGTH = 9;
+
+  private static final Logger LOG = Logger.getInstance(AwsConnectionsIndex.class.getName());
+
+  private final Supplier<CustomDataStorage> myStorageSupplier;
+  private final ConcurrentHashMap<String, String> myOwnerProjects = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<String>> myProjectConnections = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, AtomicInteger> myIdHighWaterMarks = new ConcurrentHashMap<>();
+  private final AtomicBoolean myFlushScheduled = new AtomicBoolean();
+  private final AtomicLong myLastRefreshNanos = new AtomicLong();
+  private volatile boolean myLoaded;
+  private volatile ScheduledExecutorService myFlushExecutor;
+  private volatile boolean myDisposed;
+
+  public AwsConnectionsIndex(@NotNull final Supplier<CustomDataStorage> storageSupplier) {
+    myStorageSupplier = storageSupplier;
+  }
+
+  /**
+   * A connection missing from the index might have been added by another node, the index is refreshed from the storage unless it has been refreshed recently
+   */
+  @Nullable
+  public String getOwnerProjectId(@NotNull final String awsConnectionId) {
+    ensureLoaded();
+    final String projectId = myOwnerProjects.get(awsConnectionId);
+    if (projectId != null) {
+      return projectId;
+    }
+    return refresh() ? myOwnerProjects.get(awsConnectionId) : null;
+  }
+
+  /**
+   * @return true if the connection is in the index, the storage is not read
+   */
+  public boolean isIndexed(@NotNull final String awsConnectionId) {
+    ensureLoaded();
+    return myOwnerProjects.containsKey(awsConnectionId);
+  }
+
+  @NotNull
+  public Set<String> getConnectionIds(@NotNull final String projectId) {
+    ensureLoaded();
+    final Set<String> connectionIds = myProjectConnections.get(projectId);
+    return connectionIds == null ? Collections.emptySet() : new HashSet<>(connectionIds);
+  }
+
+  /**
+   * @param isUniqueId checks the candidate IDs, the taken ones are skipped: they might be known to the caller but not indexed yet
+   * @return a new ID of the form {@code <prefix>_<N>}, N is greater than the one of any ID with the same prefix indexed or allocated before
+   */
+  @NotNull
+  public String allocateId(@NotNull final String prefix, @NotNull final Predicate<String> isUniqueId) {
+    ensureLoaded();
+    refresh();
+    final AtomicInteger highWaterMark = getHighWaterMark(prefix);
+    String id;
+    do {
+      id = AwsConnectionIdGenerator.formatId(prefix, highWaterMark.incrementAndGet());
+    } while (!isUniqueId.test(id));
+    return id;
+  }
+
+  /**
+   * @return the ID which the next {@link #allocateId(String, Predicate)} call would return, the ID is not reserved
+   */
+  @NotNull
+  public String peekId(@NotNull final String prefix, @NotNull final Predicate<String> isUniqueId) {
+    ensureLoaded();
+    refresh();
+    final AtomicInteger highWaterMark = myIdHighWaterMarks.get(prefix);
+    int idNumber = highWaterMark == null ? AwsConnectionIdGenerator.INITIAL_AWS_CONNECTION_ID : highWaterMark.get();
+    String id;
+    do {
+      id = AwsConnectionIdGenerator.formatId(prefix, ++idNumber);
+    } while (!isUniqueId.test(id));
+    return id;
+  }
+
+  public void put(@NotNull final String awsConnectionId, @NotNull final String projectId) {
+    ensureLoaded();
+    synchronized (this) {
+      index(awsConnectionId, projectId);
+      myStorageSupplier.get().putValue(awsConnectionId, projectId);
+    }
+    scheduleFlush();
+  }
+
+  public void remove(@NotNull final String awsConnectionId) {
+    ensureLoaded();
+    synchronized (this) {
+      final String projectId = myOwnerProjects.remove(awsConnectionId);
+      if (projectId != null) {
+        removeFromProject(awsConnectionId, projectId);
+      }
+      myStorageSupplier.get().updateValues(Collections.emptyMap(), Collections.singleton(awsConnectionId));
+    }
+    scheduleFlush();
+  }
+
+  /**
+   * Persists the pending changes and makes the following changes flushed immediately
+   */
+  public void dispose() {
+    myDisposed = true;
+    final ScheduledExecutorService executor = myFlushExecutor;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    if (myFlushScheduled.getAndSet(false)) {
+      flush();
+    }
+  }
+
+  private void ensureLoaded() {
+    if (myLoaded) {
+      return;
+    }
+    synchronized (this) {
+      if (myLoaded) {
+        return;
+      }
+      final Map<String, String> storageValues = myStorageSupplier.get().getValues();
+      if (storageValues != null) {
+        storageValues.forEach(this::index);
+      }
+      myLastRefreshNanos.set(System.nanoTime());
+      myLoaded = true;
+      LOG.debug("Loaded " + myOwnerProjects.size() + " AWS Connections into the index");
+    }
+  }
+
+  /**
+   * Indexes the connections added to the storage by other nodes
+   * @return false if the index has been refreshed less than {@link #REFRESH_INTERVAL_SECONDS} ago and the storage has not been read
+   */
+  private boolean refresh() {
+    final long now = System.nanoTime();
+    final long lastRefresh = myLastRefreshNanos.get();
+    final long intervalNanos = TimeUnit.SECONDS.toNanos(TeamCityProperties.getInteger(REFRESH_INTERVAL_SECONDS, REFRESH_INTERVAL_SECONDS_DEFAULT));
+    if (now - lastRefresh < intervalNanos || !myLastRefreshNanos.compareAndSet(lastRefresh, now)) {
+      return false;
+    }
+    synchronized (this) {
+      final Map<String, String> storageValues = myStorageSupplier.get().getValues();
+      if (storageValues != null) {
+        storageValues.forEach((awsConnectionId, projectId) -> {
+          if (!myOwnerProjects.containsKey(awsConnectionId)) {
+            index(awsConnectionId, projectId);
+          }
+        });
+      }
+    }
+    return true;
+  }
+
+  private synchronized void index(@NotNull final String awsConnectionId, @NotNull final String projectId) {
+    final String previousProjectId = myOwnerProjects.put(awsConnectionId, projectId);
+    if (previousProjectId != null && !previousProjectId.equals(projectId)) {
+      removeFromProject(awsConnectionId, previousProjectId);
+    }
+    myProjectConnections.computeIfAbsent(projectId, id -> ConcurrentHashMap.newKeySet()).add(awsConnectionId);
+    updateHighWaterMark(awsConnectionId);
+  }
+
+  private void updateHighWaterMark(@NotNull final String awsConnectionId) {
+    final int separatorIndex = awsConnectionId.lastIndexOf('_');
+    final String number = awsConnectionId.substring(separatorIndex + 1);
+    // longer numbers may not fit into an int, such IDs cannot collide with the allocated ones anyway
+    if (separatorIndex <= 0 || number.isEmpty() || number.length() > MAX_ID_NUMBER_LENGTH || !number.chars().allMatch(c -> c >= '0' && c <= '9')) {
+      return;
+    }
+    final int idNumber = Integer.parseInt(number);
+    getHighWaterMark(awsConnectionId.substring(0, separatorIndex)).accumulateAndGet(idNumber, Math::max);
+  }
+
+  @NotNull
+  private AtomicInteger getHighWaterMark(@NotNull final String prefix) {
+    return myIdHighWaterMarks.computeIfAbsent(prefix, p -> new AtomicInteger(AwsConnectionIdGenerator.INITIAL_AWS_CONNECTION_ID));
+  }
+
+  private void removeFromProject(@NotNull final String awsConnectionId, @NotNull final String projectId) {
+    myProjectConnections.computeIfPresent(projectId, (id, connectionIds) -> {
+      connectionIds.remove(awsConnectionId);
+      return connectionIds.isEmpty() ? null : connectionIds;
+    });
+  }
+
+  private void scheduleFlush() {
+    final int delayMillis = TeamCityProperties.getInteger(FLUSH_DELAY_MILLIS, FLUSH_DELAY_MILLIS_DEFAULT);
+    if (delayMillis <= 0 || myDisposed) {
+      flush();
+      return;
+    }
+    if (!myFlushScheduled.compareAndSet(false, true)) {
+      // the scheduled flush persists this change too
+      return;
+    }
+    try {
+      getFlushExecutor().schedule(() -> {
+        // the changes made during the flush schedule the next one
+        myFlushScheduled.set(false);
+        flush();
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      myFlushScheduled.set(false);
+      flush();
+    }
+  }
+
+  private void flush() {
+    try {
+      myStorageSupplier.get().flush();
+    } catch (RuntimeException e) {
+      LOG.warnAndDebugDetails("Failed to flush the AWS Connections index storage: " + e.getMessage(), e);
+    }
+  }
+
+  @NotNull
+  private ScheduledExecutorService getFlushExecutor() {
+    ScheduledExecutorService executor = myFlushExecutor;
+    if (executor == null) {
+      synchronized (this) {
+        executor = myFlushExecutor;
+        if (executor == null) {
+          executor = ExecutorsFactory.newFixedScheduledDaemonExecutor("AWS Connections index flush", 1);
+          myFlushExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+}
@@ -100,6 +100,14 @@ public class AwsConnectionsLogger {
     ), cause);
   }
 
+  public void connectionNotChanged(@NotNull final String awsConnectionId) {
+    Loggers.CLOUD.debug(String.format(
+      "AWS Connection <%s> in the Project <%s> has not changed since it was built, not rebuilding it",
+      awsConnectionId,
+      myProject.getExternalId()
+    ));
+  }
+
   public void rebuildAwsConnectionOnProjectRestore(@NotNull final String awsConnectionId) {
     Loggers.CLOUD.debug(String.format(
       "Found AWS Connection to rebuild after Project restore: rebuilding AWS Connection <%s> in the Project <%s>",
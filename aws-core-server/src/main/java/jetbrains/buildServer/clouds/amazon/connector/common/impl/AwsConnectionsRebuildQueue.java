@@ -0,0 +1,234 @@
+package jetbrains.buildServer.clouds.amazon.connector.common.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.concurrent.*;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionDescriptor;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionDescriptorBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionsHolder;
+import jetbrains.buildServer.clouds.amazon.connector.errors.AwsConnectorException;
+import jetbrains.buildServer.clouds.amazon.connector.impl.StsRequestFingerprint;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Collects the project restores and the AWS Connection changes of an event burst, e.g. a versioned settings update, and rebuilds the affected connections
+ * once the burst is over: a rebuild waits until no events have come for {@link #DEBOUNCE_MILLIS}, but not longer than {@link #MAX_DELAY_MILLIS}.
+ * Repeated events of a connection or a project result in a single rebuild, the connections whose parameters have not changed are not rebuilt.
+ */
+public class AwsConnectionsRebuildQueue {
+  public static final String ENABLED = "teamcity.internal.aws.connection.events.coalescing.enabled";
+  public static final String DEBOUNCE_MILLIS = "teamcity.internal.aws.connection.events.coalescing.debounceInMillis";
+  public static final String MAX_DELAY_MILLIS = "teamcity.internal.aws.connection.events.coalescing.maxDelayInMillis";
+  public static final String REBUILD_THREADS = "teamcity.internal.aws.connection.events.coalescing.rebuildThreads";
+  private static final int DEBOUNCE_MILLIS_DEFAULT = 500;
+  private static final int MAX_DELAY_MILLIS_DEFAULT = 5000;
+  private static final int REBUILD_THREADS_DEFAULT = 4;
+
+  private static final Logger LOG = Logger.getInstance(AwsConnectionsRebuildQueue.class.getName());
+
+  private final AwsConnectionsHolder myAwsConnectionsHolder;
+  private final AwsConnectionDescriptorBuilder myAwsConnectionDescriptorBuilder;
+
+  private final Set<String> myRestoredProjects = new LinkedHashSet<>();
+  private final Map<String, ChangedConnection> myChangedConnections = new LinkedHashMap<>();
+  private long myFirstEventTime;
+  private ScheduledFuture<?> myScheduledRebuild;
+  private volatile ScheduledExecutorService myRebuildExecutor;
+  private volatile ScheduledExecutorService myRebuildPool;
+  private volatile boolean myDisposed;
+
+  public AwsConnectionsRebuildQueue(@NotNull final AwsConnectionsHolder awsConnectionsHolder,
+                                    @NotNull final AwsConnectionDescriptorBuilder awsConnectionDescriptorBuilder) {
+    myAwsConnectionsHolder = awsConnectionsHolder;
+    myAwsConnectionDescriptorBuilder = awsConnectionDescriptorBuilder;
+  }
+
+  public static boolean isEnabled() {
+    return TeamCityProperties.getBoolean(ENABLED);
+  }
+
+  @NotNull
+  static String getParametersHash(@NotNull final SProjectFeatureDescriptor connectionFeature) {
+    final List<String> parameters = new ArrayList<>();
+    parameters.add(connectionFeature.getProjectId());
+    new TreeMap<>(connectionFeature.getParameters()).forEach((name, value) -> {
+      parameters.add(name);
+      parameters.add(value);
+    });
+    return StsRequestFingerprint.of(connectionFeature.getType(), parameters.toArray(new String[0]));
+  }
+
+  public synchronized void projectRestored(@NotNull final String projectId) {
+    myRestoredProjects.add(projectId);
+    scheduleRebuild();
+  }
+
+  public synchronized void connectionChanged(@NotNull final SProject project,
+                                             @NotNull final SProjectFeatureDescriptor before,
+                                             @NotNull final SProjectFeatureDescriptor after) {
+    // the parameters are compared with the ones before the first change of the burst
+    final ChangedConnection previousChange = myChangedConnections.get(after.getId());
+    final String parametersHashBefore = previousChange != null ? previousChange.myParametersHashBefore : getParametersHash(before);
+    myChangedConnections.put(after.getId(), new ChangedConnection(project, after, parametersHashBefore));
+    scheduleRebuild();
+  }
+
+  public synchronized void connectionRemoved(@NotNull final String awsConnectionId) {
+    myChangedConnections.remove(awsConnectionId);
+  }
+
+  public synchronized void projectRemoved(@NotNull final String projectId) {
+    myRestoredProjects.remove(projectId);
+    myChangedConnections.values().removeIf(change -> projectId.equals(change.myProject.getProjectId()));
+  }
+
+  public void dispose() {
+    synchronized (this) {
+      myDisposed = true;
+      myRestoredProjects.clear();
+      myChangedConnections.clear();
+    }
+    for (ScheduledExecutorService executor : Arrays.asList(myRebuildExecutor, myRebuildPool)) {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  private void scheduleRebuild() {
+    if (myDisposed) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    if (myScheduledRebuild == null) {
+      myFirstEventTime = now;
+    } else {
+      myScheduledRebuild.cancel(false);
+    }
+    final long maxDelay = TeamCityProperties.getInteger(MAX_DELAY_MILLIS, MAX_DELAY_MILLIS_DEFAULT) - (now - myFirstEventTime);
+    final long delay = Math.max(0, Math.min(TeamCityProperties.getInteger(DEBOUNCE_MILLIS, DEBOUNCE_MILLIS_DEFAULT), maxDelay));
+    try {
+      myScheduledRebuild = getRebuildExecutor().schedule(this::rebuild, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Not rebuilding the AWS Connections, the server is shutting down");
+    }
+  }
+
+  private void rebuild() {
+    final List<String> restoredProjects;
+    final List<ChangedConnection> changedConnections;
+    synchronized (this) {
+      restoredProjects = new ArrayList<>(myRestoredProjects);
+      changedConnections = new ArrayList<>(myChangedConnections.values());
+      myRestoredProjects.clear();
+      myChangedConnections.clear();
+      myScheduledRebuild = null;
+    }
+    if (restoredProjects.isEmpty() && changedConnections.isEmpty()) {
+      // rebuilt along with the previous burst
+      return;
+    }
+
+    final long startTime = System.currentTimeMillis();
+    final List<Callable<Void>> rebuilds = new ArrayList<>();
+    for (String projectId : restoredProjects) {
+      rebuilds.add(() -> {
+        myAwsConnectionsHolder.rebuildAllConnectionsForProject(projectId);
+        return null;
+      });
+    }
+    int unchangedCount = 0;
+    for (ChangedConnection change : changedConnections) {
+      if (restoredProjects.contains(change.myConnectionFeature.getProjectId())) {
+        // the restore rebuilds all the connections of the project
+        continue;
+      }
+      if (change.myParametersHashBefore.equals(getParametersHash(change.myConnectionFeature))) {
+        unchangedCount++;
+        continue;
+      }
+      rebuilds.add(() -> {
+        rebuildConnection(change);
+        return null;
+      });
+    }
+
+    // the rebuilds of a burst are made in parallel, the next burst waits for them
+    try {
+      getRebuildPool().invokeAll(rebuilds);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Not rebuilding the AWS Connections, the server is shutting down");
+      return;
+    }
+    LOG.info(String.format("Rebuilt the AWS Connections of %d restored projects and %d changed connections in %d ms, %d connections have not changed",
+                           restoredProjects.size(), rebuilds.size() - restoredProjects.size(), System.currentTimeMillis() - startTime, unchangedCount));
+  }
+
+  private void rebuildConnection(@NotNull final ChangedConnection change) {
+    final String connectionId = change.myConnectionFeature.getId();
+    if (myAwsConnectionsHolder.isUniqueAwsConnectionId(connectionId)) {
+      // removed after the change
+      return;
+    }
+    final AwsConnectionsLogger awsConnectionsLogger = new AwsConnectionsLogger(change.myProject);
+    try {
+      final AwsConnectionDescriptor awsConnectionDescriptor = myAwsConnectionDescriptorBuilder.fromFeatureDescriptor(change.myConnectionFeature);
+      myAwsConnectionsHolder.updateAwsConnection(awsConnectionDescriptor);
+      awsConnectionsLogger.connectionUpdated(connectionId);
+    } catch (AwsConnectorException e) {
+      awsConnectionsLogger.failedToUpdate(connectionId, e);
+    }
+  }
+
+  @NotNull
+  private ScheduledExecutorService getRebuildExecutor() {
+    ScheduledExecutorService executor = myRebuildExecutor;
+    if (executor == null) {
+      synchronized (this) {
+        executor = myRebuildExecutor;
+        if (executor == null) {
+          executor = ExecutorsFactory.newFixedScheduledDaemonExecutor("AWS Connections rebuild scheduler", 1);
+          myRebuildExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  @NotNull
+  private ScheduledExecutorService getRebuildPool() {
+    ScheduledExecutorService executor = myRebuildPool;
+    if (executor == null) {
+      synchronized (this) {
+        executor = myRebuildPool;
+        if (executor == null) {
+          executor = ExecutorsFactory.newFixedScheduledDaemonExecutor("AWS Connections rebuild",
+                                                                      Math.max(1, TeamCityProperties.getInteger(REBUILD_THREADS, REBUILD_THREADS_DEFAULT)));
+          myRebuildPool = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  private static final class ChangedConnection {
+    private final SProject myProject;
+    private final SProjectFeatureDescriptor myConnectionFeature;
+    private final String myParametersHashBefore;
+
+    private ChangedConnection(@NotNull final SProject project,
+                              @NotNull final SProjectFeatureDescriptor connectionFeature,
+                              @NotNull final String parametersHashBefore) {
+      myProject = project;
+      myConnectionFeature = connectionFeature;
+      myParametersHashBefore = parametersHashBefore;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package jetbrains.buildServer.clouds.amazon.connector.common.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionDescriptor;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionsHolder;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsCredentialsRequestContext;
+import jetbrains.buildServer.clouds.amazon.connector.impl.StsRequestPriority;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.oauth.OAuthConstants;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.ParamUtil.isAwsConnectionFeature;
+
+/**
+ * Builds the AWS Connections and requests their credentials ahead of the first build which needs them:
+ * all the connections after server startup, starting with the ones used by the most recently finished build configurations,
+ * and a connection right after it has been added or changed. The connections are warmed up in parallel by a bounded fork-join pool.
+ */
+public class AwsConnectionsWarmUp {
+  public static final String ENABLED = "teamcity.internal.aws.connection.warmUp.enabled";
+  public static final String PARALLELISM = "teamcity.internal.aws.connection.warmUp.parallelism";
+  private static final int PARALLELISM_DEFAULT = 4;
+
+  private static final Logger LOG = Logger.getInstance(AwsConnectionsWarmUp.class.getName());
+
+  private final AwsConnectionsHolder myAwsConnectionsHolder;
+  private final ProjectManager myProjectManager;
+
+  private final AtomicLong myWarmedUpCount = new AtomicLong();
+  private final AtomicLong myFailedCount = new AtomicLong();
+  private volatile long myStartupConnectionsCount;
+  private volatile long myStartupWarmUpMillis = -1;
+  private volatile ForkJoinPool myPool;
+
+  public AwsConnectionsWarmUp(@NotNull final AwsConnectionsHolder awsConnectionsHolder,
+                              @NotNull final ProjectManager projectManager,
+                              @NotNull final EventDispatcher<BuildServerListener> eventDispatcher) {
+    myAwsConnectionsHolder = awsConnectionsHolder;
+    myProjectManager = projectManager;
+
+    eventDispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        if (isEnabled()) {
+          execute(() -> warmUpAllConnections());
+        }
+      }
+
+      @Override
+      public void projectFeatureAdded(@NotNull SProject project, @NotNull SProjectFeatureDescriptor projectFeature) {
+        if (isEnabled() && isAwsConnectionFeature(projectFeature)) {
+          execute(() -> warmUp(projectFeature.getId()));
+        }
+      }
+
+      @Override
+      public void projectFeatureChanged(@NotNull SProject project, @NotNull SProjectFeatureDescriptor before, @NotNull SProjectFeatureDescriptor after) {
+        if (isEnabled() && isAwsConnectionFeature(after)) {
+          execute(() -> warmUp(after.getId()));
+        }
+      }
+
+      @Override
+      public void serverShutdown() {
+        dispose();
+      }
+    });
+  }
+
+  private static boolean isEnabled() {
+    return TeamCityProperties.getBoolean(ENABLED);
+  }
+
+  /**
+   * @return the numbers of the connections warmed up and failed to warm up so far, the number of the connections warmed up after startup
+   * and the time it has taken, -1 until it is finished
+   */
+  @NotNull
+  public Map<String, Long> getStats() {
+    final Map<String, Long> stats = new LinkedHashMap<>();
+    stats.put("warmedUp", myWarmedUpCount.get());
+    stats.put("failed", myFailedCount.get());
+    stats.put("startup.connections", myStartupConnectionsCount);
+    stats.put("startup.timeToWarmMillis", myStartupWarmUpMillis);
+    return stats;
+  }
+
+  public void dispose() {
+    final ForkJoinPool pool = myPool;
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+
+  private void warmUpAllConnections() {
+    final long startTime = System.nanoTime();
+    final List<String> connectionIds = getConnectionIdsByPriority();
+    myStartupConnectionsCount = connectionIds.size();
+    LOG.info("Warming up " + connectionIds.size() + " AWS Connections");
+
+    // the pool takes the tasks in the order they have been submitted
+    final AtomicLong finishedCount = new AtomicLong();
+    final AtomicLong failedCount = new AtomicLong();
+    final long progressStep = Math.max(1, connectionIds.size() / 10);
+    final CompletableFuture<?>[] warmUps = new CompletableFuture<?>[connectionIds.size()];
+    for (int i = 0; i < connectionIds.size(); i++) {
+      final String connectionId = connectionIds.get(i);
+      warmUps[i] = CompletableFuture.runAsync(() -> {
+        if (!warmUp(connectionId)) {
+          failedCount.incrementAndGet();
+        }
+        final long finished = finishedCount.incrementAndGet();
+        if (finished % progressStep == 0 && finished < connectionIds.size()) {
+          LOG.info("Warmed up " + finished + " of " + connectionIds.size() + " AWS Connections");
+        }
+      }, getPool());
+    }
+
+    CompletableFuture.allOf(warmUps).whenComplete((result, failure) -> {
+      myStartupWarmUpMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+      LOG.info(String.format("Warmed up %d AWS Connections in %d ms, %d of them have failed",
+                             connectionIds.size(), myStartupWarmUpMillis, failedCount.get()));
+    });
+  }
+
+  /**
+   * @return false if the credentials of the connection could not be requested
+   */
+  private boolean warmUp(@NotNull final String awsConnectionId) {
+    try {
+      IOGuard.allowNetworkCall(() -> AwsCredentialsRequestContext.runWithPriority(StsRequestPriority.BACKGROUND, () -> {
+        final AwsConnectionDescriptor awsConnectionDescriptor = myAwsConnectionsHolder.getAwsConnection(awsConnectionId);
+        return awsConnectionDescriptor.getAwsCredentialsHolder().getAwsCredentials();
+      }));
+      myWarmedUpCount.incrementAndGet();
+      return true;
+    } catch (Exception e) {
+      myFailedCount.incrementAndGet();
+      LOG.debug("Failed to warm up the AWS Connection with ID: " + awsConnectionId + ", reason: " + e.getMessage(), e);
+      return false;
+    }
+  }
+
+  /**
+   * @return the IDs of all the AWS Connections, the ones used by the build configurations with the most recently finished builds go first
+   */
+  @NotNull
+  private List<String> getConnectionIdsByPriority() {
+    final Map<String, Long> lastUsageTimes = new HashMap<>();
+    for (SBuildType buildType : myProjectManager.getActiveBuildTypes()) {
+      final SFinishedBuild lastBuild = buildType.getLastChangesFinished();
+      if (lastBuild == null || lastBuild.getFinishDate() == null) {
+        continue;
+      }
+      final long finishTime = lastBuild.getFinishDate().getTime();
+      for (SBuildFeatureDescriptor buildFeature : buildType.getBuildFeatures()) {
+        final String connectionId = buildFeature.getParameters().get(AwsCloudConnectorConstants.CHOSEN_AWS_CONN_ID_PARAM);
+        if (connectionId != null) {
+          lastUsageTimes.merge(connectionId, finishTime, Math::max);
+        }
+      }
+    }
+
+    final List<String> connectionIds = new ArrayList<>();
+    final SProject rootProject = myProjectManager.getRootProject();
+    final List<SProject> projects = new ArrayList<>(rootProject.getProjects());
+    projects.add(rootProject);
+    for (SProject project : projects) {
+      for (SProjectFeatureDescriptor feature : project.getOwnFeaturesOfType(OAuthConstants.FEATURE_TYPE)) {
+        if (isAwsConnectionFeature(feature)) {
+          connectionIds.add(feature.getId());
+        }
+      }
+    }
+    connectionIds.sort(Comparator.comparingLong((String connectionId) -> lastUsageTimes.getOrDefault(connectionId, 0L)).reversed());
+    return connectionIds;
+  }
+
+  private void execute(@NotNull final Runnable task) {
+    try {
+      getPool().execute(task);
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Not warming up the AWS Connections, the server is shutting down");
+    }
+  }
+
+  @NotNull
+  private ForkJoinPool getPool() {
+    ForkJoinPool pool = myPool;
+    if (pool == null) {
+      synchronized (this) {
+        pool = myPool;
+        if (pool == null) {
+          // FIFO mode: the connections are taken in the order of their priority
+          pool = new ForkJoinPool(Math.max(1, TeamCityProperties.getInteger(PARALLELISM, PARALLELISM_DEFAULT)), forkJoinPool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("AWS Connections warm-up " + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+          }, null, true);
+          myPool = pool;
+        }
+      }
+    }
+    return pool;
+  }
+}
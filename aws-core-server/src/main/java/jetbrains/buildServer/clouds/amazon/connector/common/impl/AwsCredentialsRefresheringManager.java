@@ -5,7 +5,9 @@ import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Date;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionCredentialsFactory;
 import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionDescriptor;
@@ -13,9 +15,12 @@ import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.IOGuard;
 import jetbrains.buildServer.util.executors.ExecutorsFactory;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * All AWS Connections-related management logic is in the {@link AwsConnectionCredentialsFactory}.
+ * Each connection is refreshed right before its session expires,
+ * the connections whose credentials holder reports no session expiration date are not refreshed.
  * @deprecated Use {@link jetbrains.buildServer.serverSide.connections.credentials.ProjectConnectionCredentialsManager} to retrieve credentials.
  */
 @Deprecated
@@ -24,55 +29,102 @@ public class AwsCredentialsRefresheringManager {
   protected static final int SESSION_CREDENTIALS_VALID_HANDICAP_MINUTES = 2;
   private static final Logger LOG = Logger.getInstance(AwsCredentialsRefresheringManager.class.getName());
   private final ScheduledExecutorService myRefresherExecutor;
-  private final ConcurrentHashMap<String, AwsConnectionDescriptor> myAwsConnectionsWithAutoRefresh = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, ScheduledFuture<?>> myScheduledRefreshes = new ConcurrentHashMap<>();
 
   public AwsCredentialsRefresheringManager() {
     myRefresherExecutor = ExecutorsFactory.newFixedScheduledDaemonExecutor("AWS Credentials Refresher executor", 1);
-    myRefresherExecutor
-      .scheduleWithFixedDelay(
-        new CredentialsRefresherTask(),
-        SESSION_CREDENTIALS_VALID_HANDICAP_MINUTES,
-        SESSION_CREDENTIALS_VALID_THRESHOLD_MINUTES,
-        TimeUnit.MINUTES
-      );
   }
 
   public void scheduleCredentialRefreshingTask(@NotNull final AwsConnectionDescriptor awsConnectionDescriptor) {
     String awsConnectionId = awsConnectionDescriptor.getId();
-    myAwsConnectionsWithAutoRefresh.put(awsConnectionId, awsConnectionDescriptor);
-    LOG.debug("Added credentials to auto-refresh collection for AWS Connection with ID: " + awsConnectionId);
+    Date expirationDate = awsConnectionDescriptor.getAwsCredentialsHolder().getSessionExpirationDate();
+    if (expirationDate == null) {
+      cancelScheduledRefresh(awsConnectionId);
+      return;
+    }
+
+    scheduleRefresh(awsConnectionDescriptor, getRefreshDelayMillis(expirationDate));
+    LOG.debug("Scheduled credentials auto-refresh for AWS Connection with ID: " + awsConnectionId);
   }
 
   public void stopCredentialsRefreshingtask(@NotNull final String awsConnectionId) {
-    myAwsConnectionsWithAutoRefresh.remove(awsConnectionId);
+    cancelScheduledRefresh(awsConnectionId);
     LOG.debug("Stopped credentials auto-refresh for AWS Connection with ID: " + awsConnectionId);
   }
 
   public void dispose() {
-    myAwsConnectionsWithAutoRefresh.clear();
+    myScheduledRefreshes.clear();
     myRefresherExecutor.shutdownNow();
   }
 
+  private void scheduleRefresh(@NotNull final AwsConnectionDescriptor awsConnectionDescriptor, final long delayMillis) {
+    myScheduledRefreshes.compute(awsConnectionDescriptor.getId(), (awsConnectionId, previousRefresh) -> {
+      if (previousRefresh != null) {
+        previousRefresh.cancel(false);
+      }
+      return newRefresh(awsConnectionDescriptor, delayMillis);
+    });
+  }
+
+  /**
+   * @return the scheduled refresh, null if the refresher is disposed
+   */
+  @Nullable
+  private ScheduledFuture<?> newRefresh(@NotNull final AwsConnectionDescriptor awsConnectionDescriptor, final long delayMillis) {
+    CredentialsRefresherTask task = new CredentialsRefresherTask(awsConnectionDescriptor);
+    try {
+      task.myScheduledRefresh = myRefresherExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+      return task.myScheduledRefresh;
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Credentials auto-refresh is not scheduled for AWS Connection with ID: " + awsConnectionDescriptor.getId() + ", the refresher is disposed");
+      return null;
+    }
+  }
+
+  private void cancelScheduledRefresh(@NotNull final String awsConnectionId) {
+    ScheduledFuture<?> scheduledRefresh = myScheduledRefreshes.remove(awsConnectionId);
+    if (scheduledRefresh != null) {
+      scheduledRefresh.cancel(false);
+    }
+  }
+
+  private static long getRefreshDelayMillis(@NotNull final Date expirationDate) {
+    Instant refreshTime = expirationDate.toInstant().minus(SESSION_CREDENTIALS_VALID_THRESHOLD_MINUTES + SESSION_CREDENTIALS_VALID_HANDICAP_MINUTES, ChronoUnit.MINUTES);
+    return Math.max(0, refreshTime.toEpochMilli() - System.currentTimeMillis());
+  }
+
   private class CredentialsRefresherTask implements Runnable {
+    private final AwsConnectionDescriptor myAwsConnectionDescriptor;
+    private volatile ScheduledFuture<?> myScheduledRefresh;
+
+    private CredentialsRefresherTask(@NotNull final AwsConnectionDescriptor awsConnectionDescriptor) {
+      myAwsConnectionDescriptor = awsConnectionDescriptor;
+    }
 
     @Override
     public void run() {
-      myAwsConnectionsWithAutoRefresh.forEach((awsConnectionId, awsConnectionDescriptor) -> {
-        try {
-          Date expirationDate = awsConnectionDescriptor.getAwsCredentialsHolder().getSessionExpirationDate();
-          if (expirationDate != null && currentSessionExpired(expirationDate)) {
-            Loggers.CLOUD.debug("Refreshing Session Credentials for AWS Connection with ID: " + awsConnectionId);
-            IOGuard.allowNetworkCall(() -> awsConnectionDescriptor.getAwsCredentialsHolder().refreshCredentials());
-          }
-        } catch (Exception e) {
-          Loggers.CLOUD.warnAndDebugDetails(String.format("Refreshing Session Credentials for AWS Connection <%s> failed: %s ", awsConnectionId, e.getMessage()), e);
+      String awsConnectionId = myAwsConnectionDescriptor.getId();
+      try {
+        Loggers.CLOUD.debug("Refreshing Session Credentials for AWS Connection with ID: " + awsConnectionId);
+        IOGuard.allowNetworkCall(() -> myAwsConnectionDescriptor.getAwsCredentialsHolder().refreshCredentials());
+      } catch (Exception e) {
+        Loggers.CLOUD.warnAndDebugDetails(String.format("Refreshing Session Credentials for AWS Connection <%s> failed: %s ", awsConnectionId, e.getMessage()), e);
+      }
+
+      // the refresh is rescheduled only if it has been neither stopped nor replaced while the credentials were being refreshed,
+      // a connection which no longer reports a session expiration date is not refreshed anymore
+      Date expirationDate = myAwsConnectionDescriptor.getAwsCredentialsHolder().getSessionExpirationDate();
+      myScheduledRefreshes.computeIfPresent(awsConnectionId, (id, currentRefresh) -> {
+        if (currentRefresh != myScheduledRefresh) {
+          return currentRefresh;
         }
+        return expirationDate != null ? newRefresh(myAwsConnectionDescriptor, getDelayAfterRefreshMillis(expirationDate)) : null;
       });
     }
 
-    private boolean currentSessionExpired(@NotNull final Date expirationDate) {
-      return Date.from(Instant.now().plus(SESSION_CREDENTIALS_VALID_THRESHOLD_MINUTES + SESSION_CREDENTIALS_VALID_HANDICAP_MINUTES, ChronoUnit.MINUTES))
-                 .after(expirationDate);
+    private long getDelayAfterRefreshMillis(@NotNull final Date expirationDate) {
+      // when the session could not be renewed, retry with the same pace the periodic refresh used to have
+      return Math.max(getRefreshDelayMillis(expirationDate), TimeUnit.MINUTES.toMillis(SESSION_CREDENTIALS_VALID_THRESHOLD_MINUTES));
     }
   }
 }
@@ -63,7 +63,7 @@ public class AwsConnectionIdGenerator extends BaseExternalIdGenerator implements
   @Nullable
   @Override
   public String showNextId(@NotNull Map<String, String> props) {
-    return generateNewId();
+    return myAwsConnectionsHolder.showNextAwsConnectionId(AWS_CONNECTION_ID_PREFIX);
   }
 
   @Override
@@ -81,13 +81,8 @@ public class AwsConnectionIdGenerator extends BaseExternalIdGenerator implements
   }
 
   @NotNull
-  private synchronized String makeUnique(@NotNull final String userDefinedConnId) {
-    int counter = INITIAL_AWS_CONNECTION_ID;
-    String newAwsConnectionId;
-    do {
-      newAwsConnectionId = formatId(userDefinedConnId, ++counter);
-    } while (!isUnique(newAwsConnectionId));
-    return newAwsConnectionId;
+  private String makeUnique(@NotNull final String userDefinedConnId) {
+    return myAwsConnectionsHolder.allocateAwsConnectionId(userDefinedConnId);
   }
 
   @Override
@@ -6,23 +6,24 @@ import jetbrains.buildServer.clouds.amazon.connector.AwsConnectorFactory;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
 import jetbrains.buildServer.clouds.amazon.connector.connectionTesting.AwsConnectionTester;
 import jetbrains.buildServer.clouds.amazon.connector.impl.AwsConnectionCredentials;
-import jetbrains.buildServer.clouds.amazon.connector.utils.clients.TeamCityStsClientBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.StsClientProvider;
 import jetbrains.buildServer.serverSide.IOGuard;
 import jetbrains.buildServer.serverSide.InvalidProperty;
 import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
 import jetbrains.buildServer.serverSide.impl.ProjectFeatureDescriptorImpl;
 import org.jetbrains.annotations.NotNull;
 import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
-import software.amazon.awssdk.awscore.defaultsmode.DefaultsMode;
 import software.amazon.awssdk.services.sts.StsClient;
-import software.amazon.awssdk.services.sts.StsClientBuilder;
 import software.amazon.awssdk.services.sts.model.GetCallerIdentityRequest;
 
 public class AwsConnectionTesterImpl implements AwsConnectionTester {
   private final AwsConnectorFactory myAwsConnectorFactory;
+  private final StsClientProvider myStsClientProvider;
 
-  public AwsConnectionTesterImpl(@NotNull final AwsConnectorFactory awsConnectorFactory) {
+  public AwsConnectionTesterImpl(@NotNull final AwsConnectorFactory awsConnectorFactory,
+                                 @NotNull final StsClientProvider stsClientProvider) {
     myAwsConnectorFactory = awsConnectorFactory;
+    myStsClientProvider = stsClientProvider;
   }
 
   @Override
@@ -30,16 +31,12 @@ public class AwsConnectionTesterImpl implements AwsConnectionTester {
   public AwsTestConnectionResult testConnection(@NotNull final ProjectFeatureDescriptorImpl connectionFeature) throws ConnectionCredentialsException {
     AwsCredentialsHolder testCredentialsHolder = myAwsConnectorFactory.buildAwsCredentialsProvider(connectionFeature);
 
-    StsClientBuilder stsClientBuilder = StsClient.builder()
-      .defaultsMode(DefaultsMode.STANDARD);
-    TeamCityStsClientBuilder.addConfiguration(stsClientBuilder, connectionFeature.getParameters());
-    try (StsClient sts = stsClientBuilder.build()) {
-      return IOGuard.allowNetworkCall(() ->
-        new AwsTestConnectionResult(
-          sts.getCallerIdentity(createGetCallerIdentityRequest(testCredentialsHolder, connectionFeature))
-        )
-      );
-    }
+    StsClient sts = myStsClientProvider.getClient(connectionFeature.getParameters());
+    return IOGuard.allowNetworkCall(() ->
+      new AwsTestConnectionResult(
+        sts.getCallerIdentity(createGetCallerIdentityRequest(testCredentialsHolder, connectionFeature))
+      )
+    );
   }
 
   @Override
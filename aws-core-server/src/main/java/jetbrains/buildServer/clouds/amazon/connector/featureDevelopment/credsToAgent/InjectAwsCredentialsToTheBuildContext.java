@@ -1,37 +1,76 @@
 package jetbrains.buildServer.clouds.amazon.connector.featureDevelopment.credsToAgent;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 import jetbrains.buildServer.BuildProblemData;
+import jetbrains.buildServer.clouds.amazon.connector.AwsConnectorFactory;
+import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsData;
+import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
 import jetbrains.buildServer.clouds.amazon.connector.LinkedAwsConnectionProvider;
+import jetbrains.buildServer.clouds.amazon.connector.errors.AwsConnectorException;
 import jetbrains.buildServer.clouds.amazon.connector.impl.AwsConnectionCredentials;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsCredentialsRequestContext;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsSessionCredentialsHolder;
+import jetbrains.buildServer.clouds.amazon.connector.impl.StsRequestPriority;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsConnBuildFeatureParams;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.ParamUtil;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.BuildStartContext;
 import jetbrains.buildServer.serverSide.BuildStartContextProcessor;
 import jetbrains.buildServer.serverSide.SBuildFeatureDescriptor;
+import jetbrains.buildServer.serverSide.SBuildType;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
 import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentials;
 import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsConnBuildFeatureParams.*;
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsSessionCredentialsParams.SESSION_DURATION_PARAM;
 
 public class InjectAwsCredentialsToTheBuildContext implements BuildStartContextProcessor {
+  public static final String REQUIRED_VALIDITY_TOLERANCE_MINUTES = "teamcity.internal.aws.connection.buildCredentials.requiredValidityToleranceInMinutes";
+  public static final String TIMEOUT_SECONDS = "teamcity.internal.aws.connection.buildCredentials.timeoutInSeconds";
+  private static final int REQUIRED_VALIDITY_TOLERANCE_MINUTES_DEFAULT = 5;
+  private static final int TIMEOUT_SECONDS_DEFAULT = 60;
+  // AWS limits the sessions of an IAM Role assumed with the credentials of another role to one hour
+  private static final int ROLE_CHAIN_MAX_SESSION_DURATION_MINUTES = 60;
   private final AwsCredentialsInjector myAwsCredentialsInjector;
   @NotNull
   private final LinkedAwsConnectionProvider myLinkedAwsConnectionProvider;
+  @Nullable
+  private final AwsConnectorFactory myAwsConnectorFactory;
 
   private final String INJECT_CREDENTIALS_PROBLEM_ID = "InjectAwsCredentials";
 
   public InjectAwsCredentialsToTheBuildContext(@NotNull final LinkedAwsConnectionProvider linkedAwsConnectionProvider) {
+    this(linkedAwsConnectionProvider, null);
+  }
+
+  /**
+   * @param awsConnectorFactory builds the connections of a starting build to request their sessions concurrently, if null the sessions are requested one by one
+   */
+  public InjectAwsCredentialsToTheBuildContext(@NotNull final LinkedAwsConnectionProvider linkedAwsConnectionProvider,
+                                               @Nullable final AwsConnectorFactory awsConnectorFactory) {
     myAwsCredentialsInjector = new AwsCredentialsInjector();
     myLinkedAwsConnectionProvider = linkedAwsConnectionProvider;
+    myAwsConnectorFactory = awsConnectorFactory;
   }
 
   @Override
@@ -42,7 +81,7 @@ public class InjectAwsCredentialsToTheBuildContext implements BuildStartContextP
       try {
         validateMultipleAwsCredentialsBuildFeatures(awsCredentialsBuildFeatures);
 
-        List<ConnectionCredentials> linkedAwsConnectionCredentials = myLinkedAwsConnectionProvider.getConnectionCredentialsFromBuild(context.getBuild());
+        List<ConnectionCredentials> linkedAwsConnectionCredentials = getConnectionCredentials(context, awsCredentialsBuildFeatures);
         if (linkedAwsConnectionCredentials.isEmpty()) {
           finishBuildWithProblem(context, "Cannot access AWS connection(s) used in this build via AWS Credentials Build Feature. Check connection(s) settings and ensure they are shared with child subprojects and/or available for build steps.");
           return;
@@ -61,6 +100,135 @@ public class InjectAwsCredentialsToTheBuildContext implements BuildStartContextP
     }
   }
 
+  @NotNull
+  private List<ConnectionCredentials> getConnectionCredentials(@NotNull final BuildStartContext context,
+                                                               @NotNull final Collection<SBuildFeatureDescriptor> awsCredentialsBuildFeatures)
+    throws ConnectionCredentialsException {
+    // cached sessions are reused only if they outlive the session duration the build requests for their connection,
+    // the STS requests of a starting build are not throttled in favour of the background ones
+    final AwsCredentialsRequestContext.CredentialsLookup<List<ConnectionCredentials>, ConnectionCredentialsException> lookup =
+      () -> AwsCredentialsRequestContext.runWithPriority(
+        StsRequestPriority.BUILD_START,
+        () -> AwsCredentialsRequestContext.runWithRequiredValidity(
+          getRequiredValidityByConnection(context.getBuild(), awsCredentialsBuildFeatures),
+          () -> {
+            requestSessionsConcurrently(context.getBuild(), awsCredentialsBuildFeatures);
+            return myLinkedAwsConnectionProvider.getConnectionCredentialsFromBuild(context.getBuild());
+          }
+        )
+      );
+
+    // the whole role chain of every connection must be resolved within the timeout, not each of its hops
+    final int timeoutSeconds = TeamCityProperties.getInteger(TIMEOUT_SECONDS, TIMEOUT_SECONDS_DEFAULT);
+    if (timeoutSeconds <= 0) {
+      return lookup.run();
+    }
+    return AwsCredentialsRequestContext.runWithTimeout(Duration.ofSeconds(timeoutSeconds), lookup);
+  }
+
+  /**
+   * Requests the sessions of all connections of the build at once with the non-blocking API and waits until they are cached,
+   * the lookup of the build then finds them instead of requesting them one after another.
+   * The failures are left to that lookup, it reports them to the build.
+   */
+  private void requestSessionsConcurrently(@NotNull final SRunningBuild build,
+                                           @NotNull final Collection<SBuildFeatureDescriptor> awsCredentialsBuildFeatures) {
+    final SBuildType buildType = build.getBuildType();
+    final SProject project = buildType != null ? buildType.getProject() : null;
+    if (myAwsConnectorFactory == null || project == null) {
+      return;
+    }
+    final Set<String> connectionIds = new LinkedHashSet<>();
+    for (SBuildFeatureDescriptor awsCredentialsFeature : awsCredentialsBuildFeatures) {
+      final String connectionId = awsCredentialsFeature.getParameters().get(AwsCloudConnectorConstants.CHOSEN_AWS_CONN_ID_PARAM);
+      if (connectionId != null) {
+        connectionIds.add(connectionId);
+      }
+    }
+    if (connectionIds.size() < 2) {
+      // nothing to request concurrently
+      return;
+    }
+
+    final List<CompletableFuture<AwsCredentialsData>> requests = new ArrayList<>();
+    for (String connectionId : connectionIds) {
+      final SProjectFeatureDescriptor connection = project.findFeatureById(connectionId);
+      if (connection == null || !project.getProjectId().equals(connection.getProjectId()) && !ParamUtil.isAllowedInSubProjects(connection.getParameters())) {
+        continue;
+      }
+      try {
+        final AwsCredentialsHolder credentialsHolder = myAwsConnectorFactory.buildAwsCredentialsProvider(connection);
+        if (credentialsHolder instanceof AwsSessionCredentialsHolder) {
+          requests.add(((AwsSessionCredentialsHolder)credentialsHolder).getAwsCredentialsAsync());
+        }
+      } catch (AwsConnectorException e) {
+        Loggers.CLOUD.debug("Failed to build the AWS Connection " + connectionId + " to request its session: " + e.getMessage());
+      }
+    }
+
+    final CompletableFuture<Void> allRequests = CompletableFuture.allOf(requests.toArray(new CompletableFuture[0]));
+    final Duration remainingTime = AwsCredentialsRequestContext.getRemainingTime();
+    try {
+      if (remainingTime != null) {
+        allRequests.get(remainingTime.toNanos(), TimeUnit.NANOSECONDS);
+      } else {
+        allRequests.get();
+      }
+    } catch (ExecutionException | TimeoutException e) {
+      Loggers.CLOUD.debug("Not all sessions of the AWS Connections of the build " + build.getBuildId() + " have been requested: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return connection ID -> how long its credentials must stay valid: the session duration of its build feature,
+   * limited by the duration the connection is able to issue
+   */
+  @NotNull
+  private Map<String, Duration> getRequiredValidityByConnection(@NotNull final SRunningBuild build,
+                                                                @NotNull final Collection<SBuildFeatureDescriptor> awsCredentialsBuildFeatures) {
+    final SBuildType buildType = build.getBuildType();
+    final SProject project = buildType != null ? buildType.getProject() : null;
+    // a new session is slightly shorter than requested by the time it is checked, the tolerance prevents requesting it again
+    final int toleranceMinutes = TeamCityProperties.getInteger(REQUIRED_VALIDITY_TOLERANCE_MINUTES, REQUIRED_VALIDITY_TOLERANCE_MINUTES_DEFAULT);
+
+    final Map<String, Duration> requiredValidityByConnection = new HashMap<>();
+    for (SBuildFeatureDescriptor awsCredentialsFeature : awsCredentialsBuildFeatures) {
+      final Map<String, String> featureParameters = awsCredentialsFeature.getParameters();
+      final String connectionId = featureParameters.get(AwsCloudConnectorConstants.CHOSEN_AWS_CONN_ID_PARAM);
+      if (connectionId == null || !ParamUtil.isValidSessionDuration(featureParameters.get(SESSION_DURATION_PARAM))) {
+        continue;
+      }
+      int sessionDurationMinutes = ParamUtil.getSessionDurationMinutes(featureParameters);
+      if (project != null && isRoleChain(project, connectionId)) {
+        sessionDurationMinutes = Math.min(sessionDurationMinutes, ROLE_CHAIN_MAX_SESSION_DURATION_MINUTES);
+      }
+      requiredValidityByConnection.merge(connectionId, Duration.ofMinutes(Math.max(0, sessionDurationMinutes - toleranceMinutes)), (a, b) -> a.compareTo(b) >= 0 ? a : b);
+    }
+    return requiredValidityByConnection;
+  }
+
+  /**
+   * @return true if the connection assumes an IAM Role with the credentials of another IAM Role connection
+   */
+  private static boolean isRoleChain(@NotNull final SProject project, @NotNull final String connectionId) {
+    final SProjectFeatureDescriptor connection = project.findFeatureById(connectionId);
+    if (connection == null || !isIamRoleConnection(connection)) {
+      return false;
+    }
+    final String principalConnectionId = connection.getParameters().get(AwsCloudConnectorConstants.CHOSEN_AWS_CONN_ID_PARAM);
+    if (principalConnectionId == null) {
+      return false;
+    }
+    final SProjectFeatureDescriptor principalConnection = project.findFeatureById(principalConnectionId);
+    return principalConnection != null && isIamRoleConnection(principalConnection);
+  }
+
+  private static boolean isIamRoleConnection(@NotNull final SProjectFeatureDescriptor connection) {
+    return AwsCloudConnectorConstants.IAM_ROLE_CREDENTIALS_TYPE.equals(connection.getParameters().get(AwsCloudConnectorConstants.CREDENTIALS_TYPE_PARAM));
+  }
+
   private void finishBuildWithProblem(@NotNull BuildStartContext context, @NotNull String message) {
     final SRunningBuild build = context.getBuild();
     build.addBuildProblem(
@@ -0,0 +1,13 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.util.concurrent.CompletableFuture;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+/**
+ * Same as {@link RequestSessionFunction} for an STS request which does not block the calling thread until STS answers
+ */
+@FunctionalInterface
+public interface AsyncRequestSessionFunction {
+  CompletableFuture<Credentials> get() throws ConnectionCredentialsException;
+}
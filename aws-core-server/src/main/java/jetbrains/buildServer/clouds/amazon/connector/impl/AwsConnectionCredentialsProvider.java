@@ -0,0 +1,124 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsData;
+import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+/**
+ * Credentials provider bound to an AWS connection rather than to a snapshot of its credentials, so an SDK client built with it can live as long as the connection.
+ * The session is taken from {@link AwsCredentialsHolderCache} and kept until it is close to expiry or has not been checked against the cache for
+ * {@link #REVALIDATE_INTERVAL_SECONDS}, so resolving the credentials in between does not allocate.
+ */
+public class AwsConnectionCredentialsProvider implements AwsCredentialsProvider {
+  public static final String MIN_VALIDITY_SECONDS = "teamcity.internal.aws.connection.credentialsProvider.minValidityInSeconds";
+  public static final String REVALIDATE_INTERVAL_SECONDS = "teamcity.internal.aws.connection.credentialsProvider.revalidateIntervalInSeconds";
+  private static final int MIN_VALIDITY_SECONDS_DEFAULT = 5 * 60;
+  private static final int REVALIDATE_INTERVAL_SECONDS_DEFAULT = 60;
+
+  private final AwsCredentialsHolderCache myCache;
+  private final SProjectFeatureDescriptor myAwsConnectionFeature;
+  private final RequestSessionFunction myCredentialsSupplier;
+  private volatile Snapshot mySnapshot;
+
+  public AwsConnectionCredentialsProvider(@NotNull final AwsCredentialsHolderCache cache,
+                                          @NotNull final SProjectFeatureDescriptor awsConnectionFeature,
+                                          @NotNull final RequestSessionFunction credentialsSupplier) {
+    myCache = cache;
+    myAwsConnectionFeature = awsConnectionFeature;
+    myCredentialsSupplier = credentialsSupplier;
+  }
+
+  /**
+   * @return the provider of the connection credentials for {@link AwsSessionCredentialsHolder session holders},
+   * otherwise the provider asking the holder for the credentials every time
+   */
+  @NotNull
+  public static AwsCredentialsProvider of(@NotNull final AwsCredentialsHolder credentialsHolder) {
+    if (credentialsHolder instanceof AwsSessionCredentialsHolder) {
+      return ((AwsSessionCredentialsHolder)credentialsHolder).toCredentialsProvider();
+    }
+    return () -> {
+      try {
+        return toSdkCredentials(credentialsHolder.getAwsCredentials());
+      } catch (ConnectionCredentialsException e) {
+        throw SdkClientException.create("Failed to get the credentials of the AWS connection: " + e.getMessage(), e);
+      }
+    };
+  }
+
+  @Override
+  public AwsCredentials resolveCredentials() {
+    final Snapshot snapshot = mySnapshot;
+    if (snapshot != null && System.currentTimeMillis() < snapshot.myRevalidateAt) {
+      return snapshot.myCredentials;
+    }
+    return revalidate(snapshot);
+  }
+
+  @NotNull
+  private synchronized AwsCredentials revalidate(@Nullable final Snapshot previousSnapshot) {
+    final Snapshot currentSnapshot = mySnapshot;
+    if (currentSnapshot != previousSnapshot) {
+      // another thread has revalidated the session
+      return currentSnapshot.myCredentials;
+    }
+
+    final int minValiditySeconds = TeamCityProperties.getInteger(MIN_VALIDITY_SECONDS, MIN_VALIDITY_SECONDS_DEFAULT);
+    final Credentials session;
+    try {
+      // the cache replaces a session which expires too early with a new one
+      session = myCache.getSession(myAwsConnectionFeature, myCredentialsSupplier, Duration.ofSeconds(minValiditySeconds));
+    } catch (ConnectionCredentialsException e) {
+      throw SdkClientException.create("Failed to get the credentials of the AWS connection " + myAwsConnectionFeature.getId() + ": " + e.getMessage(), e);
+    }
+    if (!AwsCredentialsHolderCache.isCacheEnabled(myAwsConnectionFeature)) {
+      return toSdkCredentials(session);
+    }
+
+    final AwsCredentials credentials = previousSnapshot != null && previousSnapshot.mySession == session
+                                       ? previousSnapshot.myCredentials
+                                       : toSdkCredentials(session);
+    final long revalidateInterval = TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(REVALIDATE_INTERVAL_SECONDS, REVALIDATE_INTERVAL_SECONDS_DEFAULT));
+    final long refreshTime = session.expiration().toEpochMilli() - TimeUnit.SECONDS.toMillis(minValiditySeconds);
+    mySnapshot = new Snapshot(session, credentials, Math.min(System.currentTimeMillis() + revalidateInterval, refreshTime));
+    return credentials;
+  }
+
+  @NotNull
+  private static AwsCredentials toSdkCredentials(@NotNull final Credentials session) {
+    return AwsSessionCredentials.create(session.accessKeyId(), session.secretAccessKey(), session.sessionToken());
+  }
+
+  @NotNull
+  private static AwsCredentials toSdkCredentials(@NotNull final AwsCredentialsData credentialsData) {
+    final String sessionToken = credentialsData.getSessionToken();
+    if (sessionToken != null) {
+      return AwsSessionCredentials.create(credentialsData.getAccessKeyId(), credentialsData.getSecretAccessKey(), sessionToken);
+    }
+    return AwsBasicCredentials.create(credentialsData.getAccessKeyId(), credentialsData.getSecretAccessKey());
+  }
+
+  private static final class Snapshot {
+    private final Credentials mySession;
+    private final AwsCredentials myCredentials;
+    private final long myRevalidateAt;
+
+    private Snapshot(@NotNull final Credentials session, @NotNull final AwsCredentials credentials, final long revalidateAt) {
+      mySession = session;
+      myCredentials = credentials;
+      myRevalidateAt = revalidateAt;
+    }
+  }
+}
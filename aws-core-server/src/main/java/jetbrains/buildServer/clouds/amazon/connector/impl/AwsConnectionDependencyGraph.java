@@ -0,0 +1,89 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import com.intellij.openapi.util.Pair;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reverse dependencies between AWS Connections: an IAM Role connection depends on the connection whose credentials are used to assume the role.
+ * Connections are identified by their IDs, dependents also by their project, so that their cached sessions can be found.
+ */
+class AwsConnectionDependencyGraph {
+  // principal connection ID -> (project ID, connection ID) of the connections using it
+  private final ConcurrentMap<String, Set<Pair<String, String>>> myDependents = new ConcurrentHashMap<>();
+  // (project ID, connection ID) -> principal connection ID
+  private final ConcurrentMap<Pair<String, String>, String> myPrincipals = new ConcurrentHashMap<>();
+
+  /**
+   * Records the connection whose credentials the given connection uses, if it has one.
+   */
+  public void addDependencyOf(@NotNull final SProjectFeatureDescriptor awsConnectionFeature) {
+    final String principalConnectionId = awsConnectionFeature.getParameters().get(AwsCloudConnectorConstants.CHOSEN_AWS_CONN_ID_PARAM);
+    if (principalConnectionId != null && !AwsCloudConnectorConstants.UNSELECTED_AWS_CONNECTION_ID_VALUE.equals(principalConnectionId)) {
+      addDependency(principalConnectionId, awsConnectionFeature.getProjectId(), awsConnectionFeature.getId());
+    }
+  }
+
+  public void addDependency(@NotNull final String principalConnectionId, @NotNull final String dependentProjectId, @NotNull final String dependentConnectionId) {
+    final Pair<String, String> dependent = Pair.create(dependentProjectId, dependentConnectionId);
+    final String previousPrincipal = myPrincipals.put(dependent, principalConnectionId);
+    if (previousPrincipal != null && !previousPrincipal.equals(principalConnectionId)) {
+      removeDependent(previousPrincipal, dependent);
+    }
+    myDependents.computeIfAbsent(principalConnectionId, id -> ConcurrentHashMap.newKeySet()).add(dependent);
+  }
+
+  /**
+   * Forgets which connection the given one depends on, its own dependents are kept.
+   */
+  public void removePrincipalOf(@NotNull final String projectId, @NotNull final String connectionId) {
+    final Pair<String, String> dependent = Pair.create(projectId, connectionId);
+    final String principal = myPrincipals.remove(dependent);
+    if (principal != null) {
+      removeDependent(principal, dependent);
+    }
+  }
+
+  /**
+   * @return (project ID, connection ID) of all connections that directly or indirectly use the given connection
+   */
+  @NotNull
+  public Set<Pair<String, String>> getTransitiveDependents(@NotNull final String connectionId) {
+    final Set<Pair<String, String>> result = new LinkedHashSet<>();
+    final Deque<String> toVisit = new ArrayDeque<>();
+    final Set<String> visited = new HashSet<>();
+    toVisit.add(connectionId);
+    // a misconfigured chain can be cyclic, every connection is visited once
+    while (!toVisit.isEmpty()) {
+      final String current = toVisit.poll();
+      if (!visited.add(current)) {
+        continue;
+      }
+      final Set<Pair<String, String>> dependents = myDependents.get(current);
+      if (dependents == null) {
+        continue;
+      }
+      for (Pair<String, String> dependent : dependents) {
+        result.add(dependent);
+        toVisit.add(dependent.getSecond());
+      }
+    }
+    return result;
+  }
+
+  public void clear() {
+    myDependents.clear();
+    myPrincipals.clear();
+  }
+
+  private void removeDependent(@NotNull final String principalConnectionId, @NotNull final Pair<String, String> dependent) {
+    myDependents.computeIfPresent(principalConnectionId, (id, dependents) -> {
+      dependents.remove(dependent);
+      return dependents.isEmpty() ? null : dependents;
+    });
+  }
+}
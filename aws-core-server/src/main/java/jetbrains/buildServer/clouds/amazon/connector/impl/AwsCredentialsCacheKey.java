@@ -0,0 +1,97 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.util.Map;
+import java.util.Objects;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAssumeIamRoleParams;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Identifies a cached session: the same connection requested with different session parameters
+ * (e.g. the session duration of an AWS Credentials build feature) gets its own entry.
+ */
+public final class AwsCredentialsCacheKey {
+  private final String myProjectId;
+  private final String myConnectionId;
+  private final Integer mySessionDurationMinutes;
+  private final String myRoleSessionName;
+  private final String myStsEndpoint;
+
+  public AwsCredentialsCacheKey(@NotNull final String projectId,
+                                @NotNull final String connectionId,
+                                @Nullable final Integer sessionDurationMinutes,
+                                @Nullable final String roleSessionName,
+                                @Nullable final String stsEndpoint) {
+    myProjectId = projectId;
+    myConnectionId = connectionId;
+    mySessionDurationMinutes = sessionDurationMinutes;
+    myRoleSessionName = roleSessionName;
+    myStsEndpoint = stsEndpoint;
+  }
+
+  @NotNull
+  public static AwsCredentialsCacheKey fromConnectionFeature(@NotNull final SProjectFeatureDescriptor awsConnectionFeature) {
+    final Map<String, String> parameters = awsConnectionFeature.getParameters();
+    return new AwsCredentialsCacheKey(
+      awsConnectionFeature.getProjectId(),
+      awsConnectionFeature.getId(),
+      SessionDurationTiers.getEffectiveSessionDurationMinutes(parameters),
+      parameters.get(AwsAssumeIamRoleParams.IAM_ROLE_SESSION_NAME_PARAM),
+      parameters.get(AwsAccessKeysParams.STS_ENDPOINT_PARAM)
+    );
+  }
+
+  @NotNull
+  public String getProjectId() {
+    return myProjectId;
+  }
+
+  @NotNull
+  public String getConnectionId() {
+    return myConnectionId;
+  }
+
+  @Nullable
+  public Integer getSessionDurationMinutes() {
+    return mySessionDurationMinutes;
+  }
+
+  @Nullable
+  public String getRoleSessionName() {
+    return myRoleSessionName;
+  }
+
+  @Nullable
+  public String getStsEndpoint() {
+    return myStsEndpoint;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    final AwsCredentialsCacheKey that = (AwsCredentialsCacheKey)o;
+    return myProjectId.equals(that.myProjectId) &&
+           myConnectionId.equals(that.myConnectionId) &&
+           Objects.equals(mySessionDurationMinutes, that.mySessionDurationMinutes) &&
+           Objects.equals(myRoleSessionName, that.myRoleSessionName) &&
+           Objects.equals(myStsEndpoint, that.myStsEndpoint);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(myProjectId, myConnectionId, mySessionDurationMinutes, myRoleSessionName, myStsEndpoint);
+  }
+
+  @Override
+  public String toString() {
+    return "AWS Connection " + myConnectionId + " in the project " + myProjectId +
+           (mySessionDurationMinutes != null ? " (session duration " + mySessionDurationMinutes + " min)" : "");
+  }
+}
@@ -0,0 +1,249 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.crypt.EncryptionManager;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+/**
+ * Saves the sessions of {@link AwsCredentialsHolderCache} to a file in the plugin data directory and loads them on server startup,
+ * so that the builds queued during a restart do not request all of their sessions from STS at once.
+ * The file is encrypted by the {@link EncryptionManager} of the server, i.e. with its custom encryption key when one is configured,
+ * and it is created readable by the owner of the server process only.
+ * A restored session is only used while the parameters of its connection and of the connections it assumes its role with are the same as when it was saved.
+ */
+public class AwsCredentialsCachePersistence {
+  public static final String PERSISTENCE_ENABLED = "teamcity.internal.aws.connection.credentialsCache.persistence.enabled";
+  public static final String WRITE_INTERVAL_SECONDS = "teamcity.internal.aws.connection.credentialsCache.persistence.writeIntervalInSeconds";
+  public static final String MIN_REMAINING_VALIDITY_SECONDS = "teamcity.internal.aws.connection.credentialsCache.persistence.minRemainingValidityInSeconds";
+  private static final int WRITE_INTERVAL_SECONDS_DEFAULT = 60;
+  private static final int MIN_REMAINING_VALIDITY_SECONDS_DEFAULT = 5 * 60;
+  private static final String FORMAT_VERSION = "2";
+  private static final String FIELD_SEPARATOR = ",";
+  private static final String NULL_VALUE = "~";
+  private static final Logger LOG = Logger.getInstance(AwsCredentialsCachePersistence.class.getName());
+
+  private final AwsCredentialsHolderCache myCache;
+  private final ProjectManager myProjectManager;
+  private final ServerResponsibility myServerResponsibility;
+  private final EncryptionManager myEncryptionManager;
+  private final File myStorageFile;
+  private volatile ScheduledExecutorService myWriteExecutor;
+  private volatile long myWrittenModificationCount = -1;
+
+  public AwsCredentialsCachePersistence(@NotNull final AwsCredentialsHolderCache cache,
+                                        @NotNull final ProjectManager projectManager,
+                                        @NotNull final ServerResponsibility serverResponsibility,
+                                        @NotNull final ServerPaths serverPaths,
+                                        @NotNull final EncryptionManager encryptionManager,
+                                        @NotNull final EventDispatcher<BuildServerListener> eventDispatcher) {
+    myCache = cache;
+    myProjectManager = projectManager;
+    myServerResponsibility = serverResponsibility;
+    myEncryptionManager = encryptionManager;
+    myStorageFile = new File(new File(serverPaths.getPluginDataDirectory(), "aws-core-plugin"), "credentials-cache.dat");
+
+    eventDispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        if (isEnabled()) {
+          load();
+          startWriting();
+        }
+      }
+
+      @Override
+      public void serverShutdown() {
+        final ScheduledExecutorService executor = myWriteExecutor;
+        if (executor != null) {
+          executor.shutdownNow();
+          write();
+        }
+      }
+    });
+  }
+
+  private boolean isEnabled() {
+    // the data directory is shared between the nodes, only the main node keeps the file
+    return TeamCityProperties.getBoolean(PERSISTENCE_ENABLED) && myServerResponsibility.canWriteToConfigDirectory();
+  }
+
+  private void startWriting() {
+    final int intervalSeconds = Math.max(1, TeamCityProperties.getInteger(WRITE_INTERVAL_SECONDS, WRITE_INTERVAL_SECONDS_DEFAULT));
+    myWriteExecutor = ExecutorsFactory.newFixedScheduledDaemonExecutor("AWS Credentials Cache persistence", 1);
+    myWriteExecutor.scheduleWithFixedDelay(() -> {
+      if (myCache.getModificationCount() != myWrittenModificationCount) {
+        write();
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  void write() {
+    final long modificationCount = myCache.getModificationCount();
+    final Instant minExpiration = getMinExpiration();
+    final StringBuilder content = new StringBuilder(FORMAT_VERSION).append('\n');
+    int sessionsCount = 0;
+    for (Map.Entry<AwsCredentialsCacheKey, Credentials> session : myCache.getSessionsSnapshot().entrySet()) {
+      final AwsCredentialsCacheKey key = session.getKey();
+      final Credentials credentials = session.getValue();
+      final SProjectFeatureDescriptor connectionFeature = findConnectionFeature(key);
+      final String parametersHash = connectionFeature != null ? getConnectionParametersHash(connectionFeature) : null;
+      // long-term keys, e.g. found by the default provider chain, are not written to the disk
+      if (parametersHash == null || credentials.sessionToken() == null || credentials.expiration().isBefore(minExpiration)) {
+        continue;
+      }
+      content.append(String.join(FIELD_SEPARATOR,
+                                 encode(key.getProjectId()),
+                                 encode(key.getConnectionId()),
+                                 key.getSessionDurationMinutes() != null ? String.valueOf(key.getSessionDurationMinutes()) : NULL_VALUE,
+                                 encode(key.getRoleSessionName()),
+                                 encode(key.getStsEndpoint()),
+                                 parametersHash,
+                                 encode(credentials.accessKeyId()),
+                                 encode(credentials.secretAccessKey()),
+                                 encode(credentials.sessionToken()),
+                                 String.valueOf(credentials.expiration().toEpochMilli())))
+             .append('\n');
+      sessionsCount++;
+    }
+
+    try {
+      Files.createDirectories(myStorageFile.getParentFile().toPath());
+      final File tempFile = new File(myStorageFile.getPath() + ".tmp");
+      createOwnerOnlyFile(tempFile.toPath());
+      Files.write(tempFile.toPath(), myEncryptionManager.encrypt(content.toString()).getBytes(StandardCharsets.UTF_8));
+      Files.move(tempFile.toPath(), myStorageFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      myWrittenModificationCount = modificationCount;
+      LOG.debug("Saved " + sessionsCount + " AWS sessions to " + myStorageFile);
+    } catch (IOException | RuntimeException e) {
+      LOG.warnAndDebugDetails("Failed to save AWS sessions to " + myStorageFile + ": " + e.getMessage(), e);
+    }
+  }
+
+  void load() {
+    if (!myStorageFile.isFile()) {
+      return;
+    }
+
+    final Instant minExpiration = getMinExpiration();
+    int restoredCount = 0;
+    try {
+      final String content = myEncryptionManager.decrypt(new String(Files.readAllBytes(myStorageFile.toPath()), StandardCharsets.UTF_8));
+      final String[] lines = content.split("\n");
+      if (lines.length == 0 || !FORMAT_VERSION.equals(lines[0])) {
+        LOG.info("Unsupported format of " + myStorageFile + ", AWS sessions are not restored");
+        return;
+      }
+      for (int i = 1; i < lines.length; i++) {
+        final String[] fields = lines[i].split(FIELD_SEPARATOR, -1);
+        if (fields.length != 10) {
+          continue;
+        }
+        final Instant expiration = Instant.ofEpochMilli(Long.parseLong(fields[9]));
+        if (expiration.isBefore(minExpiration)) {
+          continue;
+        }
+        final AwsCredentialsCacheKey key = new AwsCredentialsCacheKey(
+          decode(fields[0]),
+          decode(fields[1]),
+          NULL_VALUE.equals(fields[2]) ? null : Integer.valueOf(fields[2]),
+          decode(fields[3]),
+          decode(fields[4])
+        );
+        final SProjectFeatureDescriptor connectionFeature = findConnectionFeature(key);
+        if (connectionFeature == null || !fields[5].equals(getConnectionParametersHash(connectionFeature))) {
+          // the connection or its principal has been changed or removed while the server was down
+          continue;
+        }
+        myCache.restoreSession(key, connectionFeature, Credentials.builder()
+                                               .accessKeyId(decode(fields[6]))
+                                               .secretAccessKey(decode(fields[7]))
+                                               .sessionToken(decode(fields[8]))
+                                               .expiration(expiration)
+                                               .build());
+        restoredCount++;
+      }
+      LOG.info("Restored " + restoredCount + " AWS sessions from " + myStorageFile);
+    } catch (IOException | RuntimeException e) {
+      LOG.warnAndDebugDetails("Failed to restore AWS sessions from " + myStorageFile + ": " + e.getMessage(), e);
+    }
+    myWrittenModificationCount = myCache.getModificationCount();
+  }
+
+  @NotNull
+  private static Instant getMinExpiration() {
+    return Instant.now().plus(Duration.ofSeconds(TeamCityProperties.getInteger(MIN_REMAINING_VALIDITY_SECONDS, MIN_REMAINING_VALIDITY_SECONDS_DEFAULT)));
+  }
+
+  @Nullable
+  private SProjectFeatureDescriptor findConnectionFeature(@NotNull final AwsCredentialsCacheKey key) {
+    final SProject project = myProjectManager.findProjectById(key.getProjectId());
+    return project != null ? project.findFeatureById(key.getConnectionId()) : null;
+  }
+
+  /**
+   * @return hash of the parameters of the connection and of the chain of connections whose credentials it uses, null if the chain is broken
+   */
+  @Nullable
+  private String getConnectionParametersHash(@NotNull final SProjectFeatureDescriptor connectionFeature) {
+    final SProject project = myProjectManager.findProjectById(connectionFeature.getProjectId());
+    final List<String> parameters = new ArrayList<>();
+    final Set<String> visited = new HashSet<>();
+    SProjectFeatureDescriptor current = connectionFeature;
+    while (current != null && visited.add(current.getId())) {
+      new TreeMap<>(current.getParameters()).forEach((name, value) -> {
+        parameters.add(name);
+        parameters.add(value);
+      });
+      final String principalConnectionId = current.getParameters().get(AwsCloudConnectorConstants.CHOSEN_AWS_CONN_ID_PARAM);
+      if (principalConnectionId == null || AwsCloudConnectorConstants.UNSELECTED_AWS_CONNECTION_ID_VALUE.equals(principalConnectionId)) {
+        break;
+      }
+      current = project != null ? project.findFeatureById(principalConnectionId) : null;
+      if (current == null) {
+        return null;
+      }
+    }
+    return StsRequestFingerprint.of(connectionFeature.getType(), parameters.toArray(new String[0]));
+  }
+
+  private static void createOwnerOnlyFile(@NotNull final Path file) throws IOException {
+    Files.deleteIfExists(file);
+    if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+      return;
+    }
+    final File createdFile = Files.createFile(file).toFile();
+    createdFile.setReadable(false, false);
+    createdFile.setWritable(false, false);
+    createdFile.setReadable(true, true);
+    createdFile.setWritable(true, true);
+  }
+
+  @NotNull
+  private static String encode(@Nullable final String value) {
+    return value == null ? NULL_VALUE : Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Nullable
+  private static String decode(@NotNull final String value) {
+    return NULL_VALUE.equals(value) ? null : new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+  }
+}
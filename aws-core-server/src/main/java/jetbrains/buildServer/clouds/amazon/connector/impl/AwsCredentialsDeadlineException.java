@@ -0,0 +1,14 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown instead of sending an STS request when too little time is left until the deadline of the credentials lookup,
+ * see {@link AwsCredentialsRequestContext#runWithTimeout}.
+ */
+public class AwsCredentialsDeadlineException extends ConnectionCredentialsException {
+  public AwsCredentialsDeadlineException(@NotNull final String message) {
+    super(message);
+  }
+}
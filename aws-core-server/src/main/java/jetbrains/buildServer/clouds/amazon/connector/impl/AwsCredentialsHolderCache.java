@@ -2,10 +2,24 @@ package jetbrains.buildServer.clouds.amazon.connector.impl;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsData;
 import jetbrains.buildServer.clouds.amazon.connector.utils.AwsConnectionUtils;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsConnBuildFeatureParams;
@@ -13,35 +27,103 @@ import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
 import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.services.sts.model.Credentials;
 
 public class AwsCredentialsHolderCache {
 
   public static final String ENABLE_AWS_CREDENTIALS_CACHE = "teamcity.internal.aws.connection.credentialsCacheEnabled";
   public static final String CREDENTIALS_CACHE_EXPIRATION_BUFFER_SECONDS = "teamcity.internal.aws.connection.credentialsCache.expirationBufferInSeconds";
-  private final Cache<Pair<String, String>, Credentials> myCredentialsCache = CacheBuilder.newBuilder()
-    .expireAfterWrite(Duration.ofHours(12))
-    .build(); // Maximum session duration
+  public static final String IN_FLIGHT_REQUEST_WAIT_TIMEOUT_SECONDS = "teamcity.internal.aws.connection.credentialsCache.inFlightRequestWaitTimeoutInSeconds";
+  public static final String CREDENTIALS_CACHE_MAX_SIZE = "teamcity.internal.aws.connection.credentialsCache.maxSize";
+  private static final int CREDENTIALS_CACHE_MAX_SIZE_DEFAULT = 10_000;
+  public static final String SHARED_SESSIONS_ENABLED = "teamcity.internal.aws.connection.credentialsCache.sharedSessions.enabled";
+  public static final String FAILURE_CACHE_TTL_SECONDS = "teamcity.internal.aws.connection.credentialsCache.failureTtlInSeconds";
+  private static final int FAILURE_CACHE_TTL_SECONDS_DEFAULT = 30;
+  // STS errors which repeat until the connection or the IAM configuration is changed
+  private static final Set<String> NON_RETRYABLE_ERROR_CODES = new HashSet<>(Arrays.asList(
+    "AccessDenied", "AccessDeniedException", "InvalidClientTokenId", "MalformedPolicyDocument"
+  ));
+  private static final int IN_FLIGHT_REQUEST_WAIT_TIMEOUT_SECONDS_DEFAULT = 60;
+  private static final Logger LOG = Logger.getInstance(AwsCredentialsHolderCache.class.getName());
+  private final Cache<AwsCredentialsCacheKey, CachedSession> myCredentialsCache;
+  // Keys of the cached sessions by the project of their connection, lets a project be invalidated without scanning the whole cache
+  private final ConcurrentMap<String, Set<AwsCredentialsCacheKey>> myKeysByProject = new ConcurrentHashMap<>();
+  private final AtomicLong mySizeEvictionCount = new AtomicLong();
+  private final AtomicLong myModificationCount = new AtomicLong();
+  // Sessions by the fingerprint of the STS request, shared by the connections which would make identical requests
+  private final Cache<String, Credentials> mySharedSessions;
+  // Non-retryable failures are rethrown for a short time instead of sending the same failing request again
+  private final Cache<AwsCredentialsCacheKey, ConnectionCredentialsException> myFailures;
+  private final int myFailureTtlSeconds;
+  private final AwsConnectionDependencyGraph myDependencyGraph = new AwsConnectionDependencyGraph();
+  // At most one STS request per key is running at a time, concurrent callers wait for its result
+  private final ConcurrentMap<AwsCredentialsCacheKey, CompletableFuture<Credentials>> myInFlightRequests = new ConcurrentHashMap<>();
+  private final StsRequestDispatcher myStsRequestDispatcher;
+  private final SessionRefreshScheduler myRefreshScheduler;
 
   public AwsCredentialsHolderCache(@NotNull final EventDispatcher<BuildServerListener> eventDispatcher) {
+    this(eventDispatcher, new StsRequestDispatcher(eventDispatcher));
+  }
+
+  public AwsCredentialsHolderCache(@NotNull final EventDispatcher<BuildServerListener> eventDispatcher,
+                                   @NotNull final StsRequestDispatcher stsRequestDispatcher) {
+    this(eventDispatcher, stsRequestDispatcher, new SessionRefreshScheduler());
+  }
+
+  AwsCredentialsHolderCache(@NotNull final EventDispatcher<BuildServerListener> eventDispatcher,
+                            @NotNull final StsRequestDispatcher stsRequestDispatcher,
+                            @NotNull final SessionRefreshScheduler refreshScheduler) {
+    myStsRequestDispatcher = stsRequestDispatcher;
+    myRefreshScheduler = refreshScheduler;
+    myCredentialsCache = CacheBuilder.newBuilder()
+      .expireAfterWrite(Duration.ofHours(12)) // Maximum session duration
+      .maximumSize(TeamCityProperties.getInteger(CREDENTIALS_CACHE_MAX_SIZE, CREDENTIALS_CACHE_MAX_SIZE_DEFAULT))
+      .recordStats()
+      .<AwsCredentialsCacheKey, CachedSession>removalListener(this::onRemoval)
+      .build();
+    myFailureTtlSeconds = TeamCityProperties.getInteger(FAILURE_CACHE_TTL_SECONDS, FAILURE_CACHE_TTL_SECONDS_DEFAULT);
+    myFailures = CacheBuilder.newBuilder()
+      .expireAfterWrite(Duration.ofSeconds(Math.max(myFailureTtlSeconds, 0)))
+      .maximumSize(TeamCityProperties.getInteger(CREDENTIALS_CACHE_MAX_SIZE, CREDENTIALS_CACHE_MAX_SIZE_DEFAULT))
+      .build();
+    mySharedSessions = CacheBuilder.newBuilder()
+      .expireAfterWrite(Duration.ofHours(12))
+      .maximumSize(TeamCityProperties.getInteger(CREDENTIALS_CACHE_MAX_SIZE, CREDENTIALS_CACHE_MAX_SIZE_DEFAULT))
+      .build();
+
     eventDispatcher.addListener(new BuildServerAdapter() {
       @Override
       public void projectFeatureChanged(@NotNull SProject project, @NotNull SProjectFeatureDescriptor before, @NotNull SProjectFeatureDescriptor after) {
-        myCredentialsCache.invalidate(Pair.create(before.getProjectId(), before.getId()));
+        invalidateConnectionWithDependents(before.getProjectId(), before.getId());
       }
 
       @Override
       public void projectFeatureRemoved(@NotNull SProject project, @NotNull SProjectFeatureDescriptor projectFeature) {
-        myCredentialsCache.invalidate(Pair.create(projectFeature.getProjectId(), projectFeature.getId()));
+        invalidateConnectionWithDependents(projectFeature.getProjectId(), projectFeature.getId());
       }
 
       @Override
       public void projectRestored(@NotNull String projectId) {
-        myCredentialsCache.asMap().keySet().forEach(key -> {
-          if (key.getFirst().equals(projectId)) {
-            myCredentialsCache.invalidate(key);
-          }
-        });
+        invalidateProject(projectId);
+      }
+
+      @Override
+      public void projectRemoved(@NotNull SProject project) {
+        invalidateProjectSubtree(project);
+      }
+
+      @Override
+      public void projectMoved(@NotNull SProject project, @NotNull SProject originalParentProject) {
+        // connections available to the subtree depend on its parent projects
+        invalidateProjectSubtree(project);
+      }
+
+      @Override
+      public void serverShutdown() {
+        dispose();
       }
     });
   }
@@ -50,33 +132,639 @@ public class AwsCredentialsHolderCache {
   @NotNull
   public AwsCredentialsData getAwsCredentials(@NotNull SProjectFeatureDescriptor awsConnectionFeature, @NotNull RequestSessionFunction credentialsSupplier)
     throws ConnectionCredentialsException {
-    final Credentials credentials;
-    if (!TeamCityProperties.getBooleanOrTrue(ENABLE_AWS_CREDENTIALS_CACHE) ||
-        "true".equalsIgnoreCase(awsConnectionFeature.getParameters().get(AwsConnBuildFeatureParams.DISABLE_CACHE_PROPERTY))) {
-      credentials = credentialsSupplier.get();
-    } else {
-      credentials = getOrRequestCredentials(awsConnectionFeature, credentialsSupplier);
+    return getAwsCredentials(awsConnectionFeature, credentialsSupplier, AwsCredentialsRequestContext.getRequiredValidity(awsConnectionFeature.getId()));
+  }
+
+  /**
+   * @param requiredValidity how long the returned credentials must stay valid, null if the expiration buffer is enough
+   */
+  @NotNull
+  public AwsCredentialsData getAwsCredentials(@NotNull SProjectFeatureDescriptor awsConnectionFeature,
+                                              @NotNull RequestSessionFunction credentialsSupplier,
+                                              @Nullable Duration requiredValidity)
+    throws ConnectionCredentialsException {
+    return AwsConnectionUtils.getDataFromCredentials(getSession(awsConnectionFeature, credentialsSupplier, requiredValidity));
+  }
+
+  /**
+   * Same as {@link #getAwsCredentials(SProjectFeatureDescriptor, RequestSessionFunction, Duration)}, returns the STS session itself with its expiration
+   */
+  @NotNull
+  public Credentials getSession(@NotNull SProjectFeatureDescriptor awsConnectionFeature,
+                                @NotNull RequestSessionFunction credentialsSupplier,
+                                @Nullable Duration requiredValidity)
+    throws ConnectionCredentialsException {
+    if (!isCacheEnabled(awsConnectionFeature)) {
+      return credentialsSupplier.get();
+    }
+    if (requiredValidity != null) {
+      // the shared sessions are looked up by the supplier, the requirement reaches them through the context
+      return AwsCredentialsRequestContext.runWithRequiredValidity(
+        requiredValidity,
+        () -> getOrRequestCredentials(awsConnectionFeature, credentialsSupplier, requiredValidity)
+      );
+    }
+    return getOrRequestCredentials(awsConnectionFeature, credentialsSupplier, null);
+  }
+
+  @NotNull
+  public CompletableFuture<AwsCredentialsData> getAwsCredentialsAsync(@NotNull SProjectFeatureDescriptor awsConnectionFeature,
+                                                                      @NotNull RequestSessionFunction credentialsSupplier,
+                                                                      @NotNull AsyncRequestSessionFunction asyncCredentialsSupplier) {
+    return getAwsCredentialsAsync(awsConnectionFeature, credentialsSupplier, asyncCredentialsSupplier,
+                                  AwsCredentialsRequestContext.getRequiredValidity(awsConnectionFeature.getId()));
+  }
+
+  /**
+   * Same as {@link #getAwsCredentials(SProjectFeatureDescriptor, RequestSessionFunction, Duration)} without blocking the calling thread while STS is requested.
+   * A cached session completes the returned future at once, otherwise the session is requested with the asynchronous supplier,
+   * callers asking for the same connection meanwhile get the result of that request.
+   * Shared sessions are not looked up by asynchronous requests, the blocking supplier refreshes the session ahead of its expiration.
+   *
+   * @param requiredValidity how long the returned credentials must stay valid, null if the expiration buffer is enough
+   */
+  @NotNull
+  public CompletableFuture<AwsCredentialsData> getAwsCredentialsAsync(@NotNull SProjectFeatureDescriptor awsConnectionFeature,
+                                                                      @NotNull RequestSessionFunction credentialsSupplier,
+                                                                      @NotNull AsyncRequestSessionFunction asyncCredentialsSupplier,
+                                                                      @Nullable Duration requiredValidity) {
+    return getSessionAsync(awsConnectionFeature, credentialsSupplier, asyncCredentialsSupplier, requiredValidity)
+      .thenApply(AwsConnectionUtils::getDataFromCredentials);
+  }
+
+  @NotNull
+  private CompletableFuture<Credentials> getSessionAsync(@NotNull SProjectFeatureDescriptor awsConnectionFeature,
+                                                         @NotNull RequestSessionFunction credentialsSupplier,
+                                                         @NotNull AsyncRequestSessionFunction asyncCredentialsSupplier,
+                                                         @Nullable Duration requiredValidity) {
+    if (!isCacheEnabled(awsConnectionFeature)) {
+      try {
+        return asyncCredentialsSupplier.get();
+      } catch (ConnectionCredentialsException | RuntimeException e) {
+        return StsRequestDispatcher.failedFuture(e);
+      }
+    }
+
+    final AwsCredentialsCacheKey key = AwsCredentialsCacheKey.fromConnectionFeature(awsConnectionFeature);
+    final Credentials cachedCredentials = getCachedCredentials(key, credentialsSupplier, requiredValidity);
+    if (cachedCredentials != null) {
+      return CompletableFuture.completedFuture(cachedCredentials);
+    }
+    myDependencyGraph.addDependencyOf(awsConnectionFeature);
+    final ConnectionCredentialsException recentFailure = myFailures.getIfPresent(key);
+    if (recentFailure != null) {
+      return StsRequestDispatcher.failedFuture(recentFailure);
+    }
+    return requestCredentialsOnceAsync(key, credentialsSupplier, asyncCredentialsSupplier, requiredValidity);
+  }
+
+  static boolean isCacheEnabled(@NotNull SProjectFeatureDescriptor awsConnectionFeature) {
+    return TeamCityProperties.getBooleanOrTrue(ENABLE_AWS_CREDENTIALS_CACHE) &&
+           !"true".equalsIgnoreCase(awsConnectionFeature.getParameters().get(AwsConnBuildFeatureParams.DISABLE_CACHE_PROPERTY));
+  }
+
+  /**
+   * Makes the STS request unless a connection has already made an identical one and its session is still valid.
+   * Sessions are shared only when {@link #SHARED_SESSIONS_ENABLED} is set.
+   *
+   * @param requestFingerprint {@link StsRequestFingerprint} of the request, including the credentials it is signed with
+   */
+  @NotNull
+  public Credentials getSharedSession(@NotNull final String requestFingerprint, @NotNull final RequestSessionFunction stsRequest)
+    throws ConnectionCredentialsException {
+    if (!TeamCityProperties.getBoolean(SHARED_SESSIONS_ENABLED) || !TeamCityProperties.getBooleanOrTrue(ENABLE_AWS_CREDENTIALS_CACHE)) {
+      return stsRequest.get();
+    }
+
+    final Credentials sharedSession = mySharedSessions.getIfPresent(requestFingerprint);
+    if (sharedSession != null) {
+      if (isValidFor(sharedSession, AwsCredentialsRequestContext.getRequiredValidity())) {
+        return sharedSession;
+      }
+      mySharedSessions.asMap().remove(requestFingerprint, sharedSession);
     }
 
-    return AwsConnectionUtils.getDataFromCredentials(credentials);
+    try {
+      // concurrent requests with the same fingerprint wait for the one being loaded
+      return mySharedSessions.get(requestFingerprint, stsRequest::get);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof ConnectionCredentialsException) {
+        throw (ConnectionCredentialsException)cause;
+      }
+      throw new ConnectionCredentialsException("Failed to request AWS credentials: " + cause.getMessage());
+    } catch (UncheckedExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw e;
+    }
   }
 
-  private Credentials getOrRequestCredentials(@NotNull SProjectFeatureDescriptor awsConnectionFeature, @NotNull RequestSessionFunction credentialsSupplier)
+  private Credentials getOrRequestCredentials(@NotNull SProjectFeatureDescriptor awsConnectionFeature,
+                                              @NotNull RequestSessionFunction credentialsSupplier,
+                                              @Nullable Duration requiredValidity)
     throws ConnectionCredentialsException {
-    final Credentials cachedCredentials = myCredentialsCache.getIfPresent(Pair.create(awsConnectionFeature.getProjectId(), awsConnectionFeature.getId()));
-    if (cachedCredentials != null && isNotExpired(cachedCredentials)) {
+    final AwsCredentialsCacheKey key = AwsCredentialsCacheKey.fromConnectionFeature(awsConnectionFeature);
+    final Credentials cachedCredentials = getCachedCredentials(key, credentialsSupplier, requiredValidity);
+    if (cachedCredentials != null) {
       return cachedCredentials;
     } else {
+      myDependencyGraph.addDependencyOf(awsConnectionFeature);
+      final ConnectionCredentialsException recentFailure = myFailures.getIfPresent(key);
+      if (recentFailure != null) {
+        throw recentFailure;
+      }
+      // a session which expires too early for this caller is replaced, the new one serves the shorter requirements as well
+      return requestCredentialsOnce(key, credentialsSupplier, requiredValidity, false);
+    }
+  }
+
+  /**
+   * @return the cached session if it stays valid long enough for the caller
+   */
+  @Nullable
+  private Credentials getCachedCredentials(@NotNull final AwsCredentialsCacheKey key,
+                                           @NotNull final RequestSessionFunction credentialsSupplier,
+                                           @Nullable final Duration requiredValidity) {
+    final CachedSession cachedSession = myCredentialsCache.getIfPresent(key);
+    if (cachedSession == null || !isValidFor(cachedSession.getCredentials(), requiredValidity)) {
+      return null;
+    }
+    cachedSession.markAccessed();
+    if (cachedSession.attachSupplier(credentialsSupplier)) {
+      // the session was restored from disk, it can be refreshed now that the connection has requested it
+      scheduleRefresh(key, cachedSession);
+    }
+    return cachedSession.getCredentials();
+  }
+
+  @NotNull
+  private Credentials requestCredentialsOnce(@NotNull final AwsCredentialsCacheKey key,
+                                             @NotNull final RequestSessionFunction credentialsSupplier,
+                                             @Nullable final Duration requiredValidity,
+                                             final boolean forceRefresh)
+    throws ConnectionCredentialsException {
+    final CompletableFuture<Credentials> request = new CompletableFuture<>();
+    final CompletableFuture<Credentials> inFlightRequest = myInFlightRequests.putIfAbsent(key, request);
+    if (inFlightRequest != null) {
+      return awaitInFlightRequest(key, inFlightRequest);
+    }
+
+    try {
+      // another request could have completed between the cache lookup and the registration of this one
+      final CachedSession cachedSession = forceRefresh ? null : myCredentialsCache.getIfPresent(key);
+      if (cachedSession != null && isValidFor(cachedSession.getCredentials(), requiredValidity)) {
+        request.complete(cachedSession.getCredentials());
+        return cachedSession.getCredentials();
+      }
+
       final Credentials credentials = credentialsSupplier.get();
-      myCredentialsCache.put(Pair.create(awsConnectionFeature.getProjectId(), awsConnectionFeature.getId()), credentials);
+      cacheRequestedSession(key, request, credentials, credentialsSupplier, forceRefresh);
+      request.complete(credentials);
       return credentials;
+    } catch (ConnectionCredentialsException | RuntimeException e) {
+      final Credentials lastKnownGood;
+      try {
+        lastKnownGood = onRequestFailure(key, request, e, requiredValidity);
+      } catch (ConnectionCredentialsException lastKnownGoodTooShort) {
+        request.completeExceptionally(lastKnownGoodTooShort);
+        throw lastKnownGoodTooShort;
+      }
+      if (lastKnownGood != null) {
+        request.complete(lastKnownGood);
+        return lastKnownGood;
+      }
+      request.completeExceptionally(e);
+      throw e;
+    } finally {
+      myInFlightRequests.remove(key, request);
+      if (!request.isDone()) {
+        request.completeExceptionally(new ConnectionCredentialsException("Failed to request AWS credentials for the connection " + key.getConnectionId()));
+      }
     }
   }
 
-  private boolean isNotExpired(Credentials cachedCredentials) {
+  /**
+   * Same as {@link #requestCredentialsOnce} without blocking the calling thread: a caller which finds a request for the key running
+   * gets the future of that request instead of waiting for it
+   */
+  @NotNull
+  private CompletableFuture<Credentials> requestCredentialsOnceAsync(@NotNull final AwsCredentialsCacheKey key,
+                                                                     @NotNull final RequestSessionFunction credentialsSupplier,
+                                                                     @NotNull final AsyncRequestSessionFunction asyncCredentialsSupplier,
+                                                                     @Nullable final Duration requiredValidity) {
+    final CompletableFuture<Credentials> request = new CompletableFuture<>();
+    final CompletableFuture<Credentials> inFlightRequest = myInFlightRequests.putIfAbsent(key, request);
+    if (inFlightRequest != null) {
+      // the callers must not be able to complete the shared request
+      return inFlightRequest.thenApply(credentials -> credentials);
+    }
+
+    final CachedSession cachedSession = myCredentialsCache.getIfPresent(key);
+    if (cachedSession != null && isValidFor(cachedSession.getCredentials(), requiredValidity)) {
+      request.complete(cachedSession.getCredentials());
+      myInFlightRequests.remove(key, request);
+      return CompletableFuture.completedFuture(cachedSession.getCredentials());
+    }
+
+    CompletableFuture<Credentials> stsRequest;
+    try {
+      stsRequest = asyncCredentialsSupplier.get();
+    } catch (ConnectionCredentialsException | RuntimeException e) {
+      stsRequest = StsRequestDispatcher.failedFuture(e);
+    }
+    stsRequest.whenComplete((credentials, failure) -> {
+      try {
+        if (failure == null) {
+          // the blocking supplier refreshes the session ahead of its expiration
+          cacheRequestedSession(key, request, credentials, credentialsSupplier, false);
+          request.complete(credentials);
+          return;
+        }
+        final Throwable cause = StsRequestDispatcher.unwrap(failure);
+        final Credentials lastKnownGood = onRequestFailure(key, request, cause, requiredValidity);
+        if (lastKnownGood != null) {
+          request.complete(lastKnownGood);
+        } else {
+          request.completeExceptionally(cause);
+        }
+      } catch (ConnectionCredentialsException | RuntimeException e) {
+        request.completeExceptionally(e);
+      } finally {
+        myInFlightRequests.remove(key, request);
+      }
+    });
+    return request.thenApply(credentials -> credentials);
+  }
+
+  /**
+   * Caches the session unless the connection has been invalidated while the request was running
+   */
+  private void cacheRequestedSession(@NotNull final AwsCredentialsCacheKey key,
+                                     @NotNull final CompletableFuture<Credentials> request,
+                                     @NotNull final Credentials credentials,
+                                     @NotNull final RequestSessionFunction credentialsSupplier,
+                                     final boolean forceRefresh) {
+    myInFlightRequests.computeIfPresent(key, (k, currentRequest) -> {
+      if (currentRequest != request) {
+        return currentRequest;
+      }
+      final CachedSession newSession = new CachedSession(credentials, credentialsSupplier, forceRefresh ? getLastAccessTime(key) : System.currentTimeMillis());
+      addToProjectIndex(key);
+      myCredentialsCache.put(key, newSession);
+      myModificationCount.incrementAndGet();
+      scheduleRefresh(key, newSession);
+      return null;
+    });
+  }
+
+  /**
+   * @return the last known good credentials if they can replace the failed request, otherwise null: a non-retryable failure is remembered
+   * for {@link #FAILURE_CACHE_TTL_SECONDS} unless the connection has been invalidated while the request was running
+   * @throws ConnectionCredentialsException if the last known good credentials expire before the required validity
+   */
+  @Nullable
+  private Credentials onRequestFailure(@NotNull final AwsCredentialsCacheKey key,
+                                       @NotNull final CompletableFuture<Credentials> request,
+                                       @NotNull final Throwable failure,
+                                       @Nullable final Duration requiredValidity) throws ConnectionCredentialsException {
+    final Credentials lastKnownGood = getLastKnownGoodCredentials(key, failure, requiredValidity);
+    if (lastKnownGood != null) {
+      return lastKnownGood;
+    }
+    if (myFailureTtlSeconds > 0 && isNonRetryable(failure)) {
+      myInFlightRequests.computeIfPresent(key, (k, currentRequest) -> {
+        if (currentRequest == request) {
+          addToProjectIndex(key);
+          myFailures.put(key, new ConnectionCredentialsException(String.format(
+            "Failed to request AWS credentials for the connection %s, the request will not be repeated for %d seconds: %s",
+            key.getConnectionId(), myFailureTtlSeconds, failure.getMessage())));
+        }
+        return currentRequest;
+      });
+    }
+    return null;
+  }
+
+  /**
+   * @return the cached session if STS is unavailable or did not answer before the deadline of the lookup and the session has not expired yet,
+   * even if it is inside the expiration buffer
+   * @throws ConnectionCredentialsException if the cached session expires before the required validity
+   */
+  @Nullable
+  private Credentials getLastKnownGoodCredentials(@NotNull final AwsCredentialsCacheKey key,
+                                                  @NotNull final Throwable failure,
+                                                  @Nullable final Duration requiredValidity) throws ConnectionCredentialsException {
+    if (!(failure instanceof StsCircuitOpenException) && !(failure instanceof AwsCredentialsDeadlineException) && !StsCircuitBreaker.isTransientFailure(failure)) {
+      return null;
+    }
+    final CachedSession cachedSession = myCredentialsCache.getIfPresent(key);
+    if (cachedSession == null || !cachedSession.getCredentials().expiration().isAfter(Instant.now())) {
+      return null;
+    }
+    if (requiredValidity != null && cachedSession.getCredentials().expiration().isBefore(Instant.now().plus(requiredValidity))) {
+      throw new ConnectionCredentialsException(String.format(
+        "Failed to request AWS credentials for the connection %s, the last known credentials expire at %s, earlier than the required %d minutes: %s",
+        key.getConnectionId(), cachedSession.getCredentials().expiration(), requiredValidity.toMinutes(), failure.getMessage()));
+    }
+    LOG.warn(String.format("STS is unavailable, using the last known credentials of the connection %s which expire at %s: %s",
+                           key.getConnectionId(), cachedSession.getCredentials().expiration(), failure.getMessage()));
+    cachedSession.markAccessed();
+    return cachedSession.getCredentials();
+  }
+
+  @NotNull
+  private Credentials awaitInFlightRequest(@NotNull final AwsCredentialsCacheKey key, @NotNull final CompletableFuture<Credentials> inFlightRequest)
+    throws ConnectionCredentialsException {
+    final int timeoutSeconds = TeamCityProperties.getInteger(IN_FLIGHT_REQUEST_WAIT_TIMEOUT_SECONDS, IN_FLIGHT_REQUEST_WAIT_TIMEOUT_SECONDS_DEFAULT);
+    final Duration remainingTime = AwsCredentialsRequestContext.getRemainingTime();
+    try {
+      if (remainingTime != null && remainingTime.getSeconds() < timeoutSeconds) {
+        try {
+          return inFlightRequest.get(remainingTime.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          throw new AwsCredentialsDeadlineException("The deadline has passed while waiting for the AWS credentials of the connection " + key.getConnectionId());
+        }
+      }
+      return inFlightRequest.get(timeoutSeconds, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof ConnectionCredentialsException) {
+        throw (ConnectionCredentialsException)cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException)cause;
+      }
+      throw new ConnectionCredentialsException("Failed to request AWS credentials for the connection " + key.getConnectionId() + ": " + cause.getMessage());
+    } catch (TimeoutException e) {
+      throw new ConnectionCredentialsException(
+        String.format("Timed out after %d seconds waiting for the AWS credentials of the connection %s", timeoutSeconds, key.getConnectionId()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConnectionCredentialsException("Interrupted while waiting for the AWS credentials of the connection " + key.getConnectionId());
+    }
+  }
+
+  private long getLastAccessTime(@NotNull final AwsCredentialsCacheKey key) {
+    final CachedSession cachedSession = myCredentialsCache.getIfPresent(key);
+    return cachedSession != null ? cachedSession.getLastAccessTime() : System.currentTimeMillis();
+  }
+
+  private void scheduleRefresh(@NotNull final AwsCredentialsCacheKey key, @NotNull final CachedSession cachedSession) {
+    if (cachedSession.getSupplier() != null) {
+      cachedSession.setRefreshTask(myRefreshScheduler.schedule(cachedSession.getCredentials().expiration(), () -> refreshAhead(key, cachedSession)));
+    }
+  }
+
+  private void refreshAhead(@NotNull final AwsCredentialsCacheKey key, @NotNull final CachedSession cachedSession) {
+    if (myCredentialsCache.getIfPresent(key) != cachedSession) {
+      return;
+    }
+
+    if (myRefreshScheduler.isIdle(cachedSession.getLastAccessTime())) {
+      LOG.debug("Credentials of the AWS Connection " + key.getConnectionId() + " have not been used recently and will not be refreshed");
+      myCredentialsCache.asMap().remove(key, cachedSession);
+      return;
+    }
+
+    try {
+      LOG.debug("Refreshing credentials of the AWS Connection " + key.getConnectionId() + " ahead of their expiration");
+      // a shared session is reused only if it outlives the current one
+      final Duration currentLifetime = Duration.between(Instant.now(), cachedSession.getCredentials().expiration()).plusSeconds(1);
+      final RequestSessionFunction supplier = cachedSession.getSupplier();
+      if (supplier != null) {
+        AwsCredentialsRequestContext.runWithPriority(
+          StsRequestPriority.BACKGROUND,
+          () -> AwsCredentialsRequestContext.runWithRequiredValidity(currentLifetime, () -> requestCredentialsOnce(key, supplier, null, true))
+        );
+      }
+    } catch (Exception e) {
+      // the current session stays in the cache until it expires, the next lookup after that will request a new one
+      LOG.warnAndDebugDetails("Failed to refresh credentials of the AWS Connection " + key.getConnectionId() + " ahead of their expiration: " + e.getMessage(), e);
+    }
+  }
+
+  public void dispose() {
+    myRefreshScheduler.dispose();
+    // the sessions are kept for the persistence which saves them on shutdown
+  }
+
+  /**
+   * @return the dispatcher the connections send their STS requests through
+   */
+  @NotNull
+  public StsRequestDispatcher getStsRequestDispatcher() {
+    return myStsRequestDispatcher;
+  }
+
+  /**
+   * @return number of sessions evicted because the cache reached its maximum size
+   */
+  public long getSizeEvictionCount() {
+    return mySizeEvictionCount.get();
+  }
+
+  /**
+   * @return hit, miss and eviction counts of the cache, the evictions include the expired sessions
+   */
+  @NotNull
+  public CacheStats getStats() {
+    return myCredentialsCache.stats();
+  }
+
+  public long getSize() {
+    return myCredentialsCache.size();
+  }
+
+  /**
+   * @return sessions currently held by the cache, used to persist them
+   */
+  @NotNull
+  Map<AwsCredentialsCacheKey, Credentials> getSessionsSnapshot() {
+    final Map<AwsCredentialsCacheKey, Credentials> sessions = new HashMap<>();
+    myCredentialsCache.asMap().forEach((key, cachedSession) -> sessions.put(key, cachedSession.getCredentials()));
+    return sessions;
+  }
+
+  /**
+   * Puts a session loaded from disk, it is refreshed ahead of expiration only after the connection requests it.
+   * The session is invalidated with its connection and with the connection whose credentials it was requested with.
+   */
+  void restoreSession(@NotNull final AwsCredentialsCacheKey key, @NotNull final SProjectFeatureDescriptor awsConnectionFeature, @NotNull final Credentials credentials) {
+    myDependencyGraph.addDependencyOf(awsConnectionFeature);
+    addToProjectIndex(key);
+    myCredentialsCache.asMap().putIfAbsent(key, new CachedSession(credentials, null, System.currentTimeMillis()));
+  }
+
+  /**
+   * @return a counter increased on every change of the cached sessions
+   */
+  long getModificationCount() {
+    return myModificationCount.get();
+  }
+
+  private void onRemoval(@NotNull final RemovalNotification<AwsCredentialsCacheKey, CachedSession> notification) {
+    myModificationCount.incrementAndGet();
+    final CachedSession removedSession = notification.getValue();
+    if (removedSession != null) {
+      removedSession.cancelRefresh();
+    }
+    if (notification.getCause() == RemovalCause.REPLACED) {
+      return;
+    }
+    if (notification.getCause() == RemovalCause.SIZE) {
+      mySizeEvictionCount.incrementAndGet();
+      LOG.debug("Credentials of the " + notification.getKey() + " were evicted from the cache, the maximum size is reached");
+    }
+    removeFromProjectIndex(notification.getKey());
+  }
+
+  private static boolean isNonRetryable(@NotNull final Throwable failure) {
+    Throwable current = failure;
+    while (current != null) {
+      if (current instanceof AwsServiceException) {
+        final AwsErrorDetails errorDetails = ((AwsServiceException)current).awsErrorDetails();
+        return errorDetails != null && NON_RETRYABLE_ERROR_CODES.contains(errorDetails.errorCode());
+      }
+      current = current.getCause();
+    }
+    return false;
+  }
+
+  private void addToProjectIndex(@NotNull final AwsCredentialsCacheKey key) {
+    myKeysByProject.compute(key.getProjectId(), (projectId, keys) -> {
+      final Set<AwsCredentialsCacheKey> projectKeys = keys != null ? keys : ConcurrentHashMap.newKeySet();
+      projectKeys.add(key);
+      return projectKeys;
+    });
+  }
+
+  private void removeFromProjectIndex(@Nullable final AwsCredentialsCacheKey key) {
+    if (key == null) {
+      return;
+    }
+    myKeysByProject.computeIfPresent(key.getProjectId(), (projectId, keys) -> {
+      keys.remove(key);
+      return keys.isEmpty() ? null : keys;
+    });
+  }
+
+  private void invalidateProjectSubtree(@NotNull final SProject project) {
+    invalidateProject(project.getProjectId());
+    for (SProject subProject : project.getProjects()) {
+      invalidateProject(subProject.getProjectId());
+    }
+  }
+
+  private void invalidateProject(@NotNull final String projectId) {
+    invalidateProjectKeys(projectId, key -> true);
+  }
+
+  private void invalidateConnectionWithDependents(@NotNull final String projectId, @NotNull final String connectionId) {
+    invalidateConnection(projectId, connectionId);
+    // sessions of the IAM Roles assumed with the credentials of this connection are no longer trusted either
+    for (Pair<String, String> dependent : myDependencyGraph.getTransitiveDependents(connectionId)) {
+      LOG.debug("Invalidating credentials of the AWS Connection " + dependent.getSecond() + " which depends on the changed AWS Connection " + connectionId);
+      invalidateConnection(dependent.getFirst(), dependent.getSecond());
+    }
+    // the principal is recorded again on the next request, the connection could have been switched to another one
+    myDependencyGraph.removePrincipalOf(projectId, connectionId);
+  }
+
+  private void invalidateConnection(@NotNull final String projectId, @NotNull final String connectionId) {
+    // the connection can be cached with several session durations
+    invalidateProjectKeys(projectId, key -> key.getConnectionId().equals(connectionId));
+  }
+
+  private void invalidateProjectKeys(@NotNull final String projectId, @NotNull final Predicate<AwsCredentialsCacheKey> filter) {
+    if (!myInFlightRequests.isEmpty()) {
+      myInFlightRequests.keySet().removeIf(key -> key.getProjectId().equals(projectId) && filter.test(key));
+    }
+    final Set<AwsCredentialsCacheKey> projectKeys = myKeysByProject.get(projectId);
+    if (projectKeys == null) {
+      return;
+    }
+    for (AwsCredentialsCacheKey key : new ArrayList<>(projectKeys)) {
+      if (filter.test(key)) {
+        invalidate(key);
+      }
+    }
+  }
+
+  private void invalidate(@NotNull final AwsCredentialsCacheKey key) {
+    myInFlightRequests.remove(key);
+    myCredentialsCache.invalidate(key);
+    myFailures.invalidate(key);
+    removeFromProjectIndex(key);
+  }
+
+  private boolean isValidFor(@NotNull Credentials cachedCredentials, @Nullable Duration requiredValidity) {
     // We add a configurable buffer amount to prevent passing credentials right about to expire
-    final Instant currentInstance = Instant.now().plus(TeamCityProperties.getInteger(CREDENTIALS_CACHE_EXPIRATION_BUFFER_SECONDS, 1), ChronoUnit.SECONDS);
+    Duration buffer = Duration.of(TeamCityProperties.getInteger(CREDENTIALS_CACHE_EXPIRATION_BUFFER_SECONDS, 1), ChronoUnit.SECONDS);
+    if (requiredValidity != null && requiredValidity.compareTo(buffer) > 0) {
+      buffer = requiredValidity;
+    }
     return cachedCredentials.expiration().isAfter(
-      currentInstance);
+      Instant.now().plus(buffer));
+  }
+
+  private static final class CachedSession {
+    private final Credentials myCredentials;
+    private volatile RequestSessionFunction mySupplier;
+    private volatile long myLastAccessTime;
+    private volatile ScheduledFuture<?> myRefreshTask;
+
+    private CachedSession(@NotNull final Credentials credentials, @Nullable final RequestSessionFunction supplier, final long lastAccessTime) {
+      myCredentials = credentials;
+      mySupplier = supplier;
+      myLastAccessTime = lastAccessTime;
+    }
+
+    @NotNull
+    Credentials getCredentials() {
+      return myCredentials;
+    }
+
+    @Nullable
+    RequestSessionFunction getSupplier() {
+      return mySupplier;
+    }
+
+    /**
+     * @return true if the session had no supplier before
+     */
+    boolean attachSupplier(@NotNull final RequestSessionFunction supplier) {
+      if (mySupplier != null) {
+        return false;
+      }
+      synchronized (this) {
+        if (mySupplier != null) {
+          return false;
+        }
+        mySupplier = supplier;
+        return true;
+      }
+    }
+
+    long getLastAccessTime() {
+      return myLastAccessTime;
+    }
+
+    void markAccessed() {
+      myLastAccessTime = System.currentTimeMillis();
+    }
+
+    void setRefreshTask(@Nullable final ScheduledFuture<?> refreshTask) {
+      myRefreshTask = refreshTask;
+    }
+
+    void cancelRefresh() {
+      final ScheduledFuture<?> refreshTask = myRefreshTask;
+      if (refreshTask != null) {
+        refreshTask.cancel(false);
+      }
+    }
   }
 }
@@ -0,0 +1,157 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.time.Duration;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+
+/**
+ * Carries the requirements of the current credentials lookup through the connection APIs
+ * that do not accept them as arguments (e.g. {@link jetbrains.buildServer.clouds.amazon.connector.LinkedAwsConnectionProvider}).
+ */
+public final class AwsCredentialsRequestContext {
+  private static final ThreadLocal<Duration> ourRequiredValidity = new ThreadLocal<>();
+  // connection ID -> required validity, set by lookups which resolve several connections with different requirements
+  private static final ThreadLocal<Map<String, Duration>> ourRequiredValidityByConnection = new ThreadLocal<>();
+  private static final ThreadLocal<StsRequestPriority> ourPriority = new ThreadLocal<>();
+  // System.nanoTime() by which the lookup must complete
+  private static final ThreadLocal<Long> ourDeadline = new ThreadLocal<>();
+
+  private AwsCredentialsRequestContext() {
+  }
+
+  /**
+   * @return how long the credentials requested by the current thread must stay valid, null if there is no requirement
+   */
+  @Nullable
+  public static Duration getRequiredValidity() {
+    return ourRequiredValidity.get();
+  }
+
+  /**
+   * @return how long the credentials of the given connection requested by the current thread must stay valid, null if there is no requirement
+   */
+  @Nullable
+  public static Duration getRequiredValidity(@NotNull final String connectionId) {
+    final Map<String, Duration> requiredValidityByConnection = ourRequiredValidityByConnection.get();
+    return requiredValidityByConnection != null ? requiredValidityByConnection.get(connectionId) : ourRequiredValidity.get();
+  }
+
+  public static <T, E extends Exception> T runWithRequiredValidity(@NotNull final Duration requiredValidity,
+                                                                   @NotNull final CredentialsLookup<T, E> lookup) throws E {
+    return runWith(ourRequiredValidity, requiredValidity, lookup);
+  }
+
+  /**
+   * Runs the lookup with a separate requirement for every connection, the connections missing in the map have none.
+   */
+  public static <T, E extends Exception> T runWithRequiredValidity(@NotNull final Map<String, Duration> requiredValidityByConnection,
+                                                                   @NotNull final CredentialsLookup<T, E> lookup) throws E {
+    return runWith(ourRequiredValidityByConnection, requiredValidityByConnection, lookup);
+  }
+
+  /**
+   * Runs the lookup without the validity requirements of the current thread,
+   * e.g. for the principal of an IAM Role connection, whose credentials are only used to assume the role.
+   */
+  public static <T, E extends Exception> T runWithoutRequiredValidity(@NotNull final CredentialsLookup<T, E> lookup) throws E {
+    final Duration requiredValidity = ourRequiredValidity.get();
+    final Map<String, Duration> requiredValidityByConnection = ourRequiredValidityByConnection.get();
+    ourRequiredValidity.remove();
+    ourRequiredValidityByConnection.remove();
+    try {
+      return lookup.run();
+    } finally {
+      if (requiredValidity != null) {
+        ourRequiredValidity.set(requiredValidity);
+      }
+      if (requiredValidityByConnection != null) {
+        ourRequiredValidityByConnection.set(requiredValidityByConnection);
+      }
+    }
+  }
+
+  /**
+   * @return priority of the STS requests made by the current thread, {@link StsRequestPriority#INTERACTIVE} if it has not been set
+   */
+  @NotNull
+  public static StsRequestPriority getPriority() {
+    final StsRequestPriority priority = ourPriority.get();
+    return priority != null ? priority : StsRequestPriority.INTERACTIVE;
+  }
+
+  public static <T, E extends Exception> T runWithPriority(@NotNull final StsRequestPriority priority,
+                                                           @NotNull final CredentialsLookup<T, E> lookup) throws E {
+    return runWith(ourPriority, priority, lookup);
+  }
+
+  /**
+   * Runs the lookup with a deadline shared by all the STS requests it makes, including the ones for the linked connections of a role chain.
+   * A nested call can only make the deadline earlier.
+   */
+  public static <T, E extends Exception> T runWithTimeout(@NotNull final Duration timeout,
+                                                          @NotNull final CredentialsLookup<T, E> lookup) throws E {
+    final long deadline = System.nanoTime() + timeout.toNanos();
+    final Long currentDeadline = ourDeadline.get();
+    return runWith(ourDeadline, currentDeadline != null && currentDeadline - deadline < 0 ? currentDeadline : deadline, lookup);
+  }
+
+  /**
+   * @return the deadline of the current thread as {@link System#nanoTime()}, used to carry it to the threads which make the requests
+   */
+  @Nullable
+  static Long getDeadline() {
+    return ourDeadline.get();
+  }
+
+  static <T, E extends Exception> T runWithDeadline(@Nullable final Long deadline,
+                                                    @NotNull final CredentialsLookup<T, E> lookup) throws E {
+    return deadline != null ? runWith(ourDeadline, deadline, lookup) : lookup.run();
+  }
+
+  /**
+   * @return time left until the deadline of the current thread, null if there is no deadline
+   */
+  @Nullable
+  public static Duration getRemainingTime() {
+    final Long deadline = ourDeadline.get();
+    return deadline != null ? Duration.ofNanos(Math.max(0, deadline - System.nanoTime())) : null;
+  }
+
+  /**
+   * @return the configuration with the call and attempt timeouts limited by the time left until the deadline of the current thread
+   */
+  @NotNull
+  public static AwsRequestOverrideConfiguration withRemainingTime(@NotNull final AwsRequestOverrideConfiguration overrideConfiguration) {
+    final Duration remainingTime = getRemainingTime();
+    if (remainingTime == null) {
+      return overrideConfiguration;
+    }
+    return overrideConfiguration.toBuilder()
+                                .apiCallTimeout(remainingTime)
+                                .apiCallAttemptTimeout(remainingTime)
+                                .build();
+  }
+
+  private static <V, T, E extends Exception> T runWith(@NotNull final ThreadLocal<V> threadLocal,
+                                                       @NotNull final V value,
+                                                       @NotNull final CredentialsLookup<T, E> lookup) throws E {
+    final V previous = threadLocal.get();
+    threadLocal.set(value);
+    try {
+      return lookup.run();
+    } finally {
+      if (previous == null) {
+        threadLocal.remove();
+      } else {
+        threadLocal.set(previous);
+      }
+    }
+  }
+
+  @FunctionalInterface
+  public interface CredentialsLookup<T, E extends Exception> {
+    T run() throws E;
+  }
+}
@@ -0,0 +1,39 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsData;
+import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+
+/**
+ * Holder of temporary STS credentials which can be asked for a session that stays valid long enough for the caller.
+ */
+public interface AwsSessionCredentialsHolder extends AwsCredentialsHolder {
+
+  /**
+   * @param requiredValidity how long the returned session must stay valid, a cached session expiring earlier is replaced by a new one
+   */
+  @NotNull
+  AwsCredentialsData getAwsCredentials(@NotNull Duration requiredValidity) throws ConnectionCredentialsException;
+
+  /**
+   * Same as {@link #getAwsCredentials()} without blocking the calling thread while the session is requested from STS
+   */
+  @NotNull
+  CompletableFuture<AwsCredentialsData> getAwsCredentialsAsync();
+
+  /**
+   * Same as {@link #getAwsCredentials(Duration)} without blocking the calling thread while the session is requested from STS
+   */
+  @NotNull
+  CompletableFuture<AwsCredentialsData> getAwsCredentialsAsync(@NotNull Duration requiredValidity);
+
+  /**
+   * @return the provider which resolves the current session of the connection, see {@link AwsConnectionCredentialsProvider}
+   */
+  @NotNull
+  AwsCredentialsProvider toCredentialsProvider();
+}
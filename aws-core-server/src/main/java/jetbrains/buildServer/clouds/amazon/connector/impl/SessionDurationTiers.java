@@ -0,0 +1,64 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsSessionCredentialsParams;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.ParamUtil;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Optionally rounds requested session durations up to a small set of tiers,
+ * so that builds asking for 55, 60 and 65 minutes can share one cached session.
+ * The tiers must not exceed the maximum session duration of the assumed IAM roles.
+ */
+public final class SessionDurationTiers {
+  public static final String SESSION_DURATION_BUCKETING_ENABLED = "teamcity.internal.aws.connection.sessionDurationBucketing.enabled";
+  public static final String SESSION_DURATION_TIERS_MINUTES = "teamcity.internal.aws.connection.sessionDurationBucketing.tiersInMinutes";
+  private static final String SESSION_DURATION_TIERS_MINUTES_DEFAULT = "15,30,60,120,240,480,720";
+
+  private SessionDurationTiers() {
+  }
+
+  /**
+   * @return the session duration that should be requested from STS for the connection parameters,
+   * or null if the parameters do not specify one
+   */
+  @Nullable
+  public static Integer getEffectiveSessionDurationMinutes(@NotNull final Map<String, String> connectionParameters) {
+    if (connectionParameters.get(AwsSessionCredentialsParams.SESSION_DURATION_PARAM) == null) {
+      return null;
+    }
+
+    final int requestedMinutes = ParamUtil.getSessionDurationMinutes(connectionParameters);
+    if (!TeamCityProperties.getBoolean(SESSION_DURATION_BUCKETING_ENABLED)) {
+      return requestedMinutes;
+    }
+    return roundUpToTier(requestedMinutes);
+  }
+
+  static int roundUpToTier(final int requestedMinutes) {
+    for (int tier : getTiers()) {
+      if (tier >= requestedMinutes) {
+        return Math.min(tier, AwsSessionCredentialsParams.MAX_SESSION_DURATION);
+      }
+    }
+    return requestedMinutes;
+  }
+
+  @NotNull
+  private static SortedSet<Integer> getTiers() {
+    final SortedSet<Integer> tiers = new TreeSet<>();
+    final String tiersProperty = TeamCityProperties.getProperty(SESSION_DURATION_TIERS_MINUTES, SESSION_DURATION_TIERS_MINUTES_DEFAULT);
+    for (String tier : StringUtil.split(tiersProperty, ",")) {
+      try {
+        tiers.add(Integer.parseInt(tier.trim()));
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return tiers;
+  }
+}
@@ -0,0 +1,110 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides when the cached STS sessions are renewed ahead of their expiration: after {@link #REFRESH_AHEAD_LIFETIME_FRACTION} of the remaining lifetime,
+ * shortened by a random jitter, and only if the session has been used within {@link #REFRESH_AHEAD_IDLE_TIMEOUT_SECONDS}.
+ */
+class SessionRefreshScheduler {
+  public static final String REFRESH_AHEAD_ENABLED = "teamcity.internal.aws.connection.credentialsCache.refreshAhead.enabled";
+  public static final String REFRESH_AHEAD_LIFETIME_FRACTION = "teamcity.internal.aws.connection.credentialsCache.refreshAhead.lifetimeFraction";
+  public static final String REFRESH_AHEAD_JITTER_FRACTION = "teamcity.internal.aws.connection.credentialsCache.refreshAhead.jitterFraction";
+  public static final String REFRESH_AHEAD_IDLE_TIMEOUT_SECONDS = "teamcity.internal.aws.connection.credentialsCache.refreshAhead.idleTimeoutInSeconds";
+  private static final double REFRESH_AHEAD_LIFETIME_FRACTION_DEFAULT = 0.8;
+  private static final double REFRESH_AHEAD_JITTER_FRACTION_DEFAULT = 0.1;
+  private static final int REFRESH_AHEAD_IDLE_TIMEOUT_SECONDS_DEFAULT = 30 * 60;
+
+  private static final Logger LOG = Logger.getInstance(SessionRefreshScheduler.class.getName());
+
+  private volatile ScheduledExecutorService myExecutor;
+
+  SessionRefreshScheduler() {
+  }
+
+  /**
+   * @param executor runs the refreshes instead of the executor created on the first schedule
+   */
+  SessionRefreshScheduler(@NotNull final ScheduledExecutorService executor) {
+    myExecutor = executor;
+  }
+
+  /**
+   * @return the scheduled refresh, null if refresh-ahead is disabled, the session has expired or the scheduler is disposed
+   */
+  @Nullable
+  ScheduledFuture<?> schedule(@NotNull final Instant expiration, @NotNull final Runnable refresh) {
+    if (!TeamCityProperties.getBooleanOrTrue(REFRESH_AHEAD_ENABLED)) {
+      return null;
+    }
+
+    final long lifetimeMillis = Duration.between(Instant.now(), expiration).toMillis();
+    if (lifetimeMillis <= 0) {
+      return null;
+    }
+    // jitter makes sessions requested at the same moment renew at different times
+    final double jitter = getFraction(REFRESH_AHEAD_JITTER_FRACTION, REFRESH_AHEAD_JITTER_FRACTION_DEFAULT) * ThreadLocalRandom.current().nextDouble();
+    final long delayMillis = (long)(lifetimeMillis * getFraction(REFRESH_AHEAD_LIFETIME_FRACTION, REFRESH_AHEAD_LIFETIME_FRACTION_DEFAULT) * (1 - jitter));
+
+    try {
+      return getExecutor().schedule(refresh, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Credentials refresh is not scheduled, the executor is shut down");
+      return null;
+    }
+  }
+
+  /**
+   * @return true if a session last used at the given time is not worth refreshing
+   */
+  boolean isIdle(final long lastAccessTime) {
+    final long idleTimeoutMillis = TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(REFRESH_AHEAD_IDLE_TIMEOUT_SECONDS, REFRESH_AHEAD_IDLE_TIMEOUT_SECONDS_DEFAULT));
+    return System.currentTimeMillis() - lastAccessTime >= idleTimeoutMillis;
+  }
+
+  void dispose() {
+    final ScheduledExecutorService executor = myExecutor;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  @NotNull
+  private ScheduledExecutorService getExecutor() {
+    ScheduledExecutorService executor = myExecutor;
+    if (executor == null) {
+      synchronized (this) {
+        executor = myExecutor;
+        if (executor == null) {
+          executor = ExecutorsFactory.newFixedScheduledDaemonExecutor("AWS Credentials Cache refresher", 1);
+          myExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  private static double getFraction(@NotNull final String propertyName, final double defaultValue) {
+    final String value = TeamCityProperties.getPropertyOrNull(propertyName);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      final double fraction = Double.parseDouble(value);
+      return fraction > 0 && fraction <= 1 ? fraction : defaultValue;
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+/**
+ * Same as {@link StsEndpointRequest} for an STS request which does not block the calling thread until STS answers
+ */
+@FunctionalInterface
+public interface StsAsyncEndpointRequest {
+  CompletableFuture<Credentials> send(@NotNull Map<String, String> endpointProperties) throws ConnectionCredentialsException;
+}
@@ -0,0 +1,170 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.util.concurrent.CompletableFuture;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.AbortedException;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+/**
+ * Stops sending requests to an STS endpoint after several consecutive transient failures (connection errors, timeouts, throttling, 5xx).
+ * After the open period a single trial request is let through, its result closes the breaker or opens it again.
+ */
+public class StsCircuitBreaker {
+  public static final String FAILURE_THRESHOLD = "teamcity.internal.aws.connection.sts.circuitBreaker.failureThreshold";
+  public static final String OPEN_DURATION_SECONDS = "teamcity.internal.aws.connection.sts.circuitBreaker.openDurationInSeconds";
+  private static final int FAILURE_THRESHOLD_DEFAULT = 5;
+  private static final int OPEN_DURATION_SECONDS_DEFAULT = 30;
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String myEndpoint;
+  private State myState = State.CLOSED;
+  private int myConsecutiveFailures;
+  private long myOpenedAt;
+  private boolean myTrialInProgress;
+  private long myTransitionsCount;
+
+  public StsCircuitBreaker(@NotNull final String endpoint) {
+    myEndpoint = endpoint;
+  }
+
+  @NotNull
+  public Credentials call(@NotNull final RequestSessionFunction stsRequest) throws ConnectionCredentialsException {
+    acquire();
+    final Credentials credentials;
+    try {
+      credentials = stsRequest.get();
+    } catch (ConnectionCredentialsException | RuntimeException e) {
+      onFailure(e);
+      throw e;
+    }
+    onSuccess();
+    return credentials;
+  }
+
+  /**
+   * Same as {@link #call} for a request which completes asynchronously, the breaker records its result once it completes
+   */
+  @NotNull
+  public CompletableFuture<Credentials> callAsync(@NotNull final AsyncRequestSessionFunction stsRequest) {
+    try {
+      acquire();
+    } catch (StsCircuitOpenException e) {
+      return StsRequestDispatcher.failedFuture(e);
+    }
+    final CompletableFuture<Credentials> request;
+    try {
+      request = stsRequest.get();
+    } catch (ConnectionCredentialsException | RuntimeException e) {
+      onFailure(e);
+      return StsRequestDispatcher.failedFuture(e);
+    }
+    return request.whenComplete((credentials, failure) -> {
+      if (failure == null) {
+        onSuccess();
+      } else {
+        onFailure(StsRequestDispatcher.unwrap(failure));
+      }
+    });
+  }
+
+  @NotNull
+  public synchronized State getState() {
+    return myState;
+  }
+
+  public synchronized long getTransitionsCount() {
+    return myTransitionsCount;
+  }
+
+  public static boolean isTransientFailure(@NotNull final Throwable failure) {
+    Throwable current = failure;
+    while (current != null) {
+      if (current instanceof AbortedException) {
+        return false;
+      }
+      if (current instanceof AwsServiceException) {
+        final AwsServiceException serviceException = (AwsServiceException)current;
+        return serviceException.statusCode() >= 500 || serviceException.isThrottlingException();
+      }
+      if (current instanceof SdkClientException) {
+        return true;
+      }
+      current = current.getCause();
+    }
+    return false;
+  }
+
+  private static boolean isCancellation(@NotNull final Throwable failure) {
+    Throwable current = failure;
+    while (current != null) {
+      if (current instanceof AbortedException || current instanceof InterruptedException || current instanceof AwsCredentialsDeadlineException) {
+        return true;
+      }
+      current = current.getCause();
+    }
+    return false;
+  }
+
+  private synchronized void acquire() throws StsCircuitOpenException {
+    if (myState == State.CLOSED) {
+      return;
+    }
+
+    final long openDurationMillis = TeamCityProperties.getInteger(OPEN_DURATION_SECONDS, OPEN_DURATION_SECONDS_DEFAULT) * 1000L;
+    if (myState == State.OPEN && System.currentTimeMillis() - myOpenedAt >= openDurationMillis) {
+      transitionTo(State.HALF_OPEN);
+    }
+    if (myState == State.HALF_OPEN && !myTrialInProgress) {
+      myTrialInProgress = true;
+      return;
+    }
+    throw new StsCircuitOpenException("STS endpoint " + myEndpoint + " is temporarily unavailable after repeated failures, the request was not sent");
+  }
+
+  private synchronized void onSuccess() {
+    myConsecutiveFailures = 0;
+    myTrialInProgress = false;
+    if (myState != State.CLOSED) {
+      transitionTo(State.CLOSED);
+    }
+  }
+
+  private synchronized void onFailure(@NotNull final Throwable failure) {
+    final boolean wasTrial = myTrialInProgress;
+    myTrialInProgress = false;
+    if (isCancellation(failure)) {
+      // a hedged request which has lost or a request which has not been sent before the deadline says nothing about the endpoint
+      return;
+    }
+    if (!isTransientFailure(failure)) {
+      // the endpoint has answered, the failure is caused by the request
+      if (wasTrial) {
+        transitionTo(State.CLOSED);
+      }
+      myConsecutiveFailures = 0;
+      return;
+    }
+
+    myConsecutiveFailures++;
+    if (wasTrial || myConsecutiveFailures >= TeamCityProperties.getInteger(FAILURE_THRESHOLD, FAILURE_THRESHOLD_DEFAULT)) {
+      myOpenedAt = System.currentTimeMillis();
+      if (myState != State.OPEN) {
+        transitionTo(State.OPEN);
+      }
+    }
+  }
+
+  private void transitionTo(@NotNull final State state) {
+    Loggers.CLOUD.info(String.format("STS circuit breaker for the endpoint %s: %s -> %s", myEndpoint, myState, state));
+    myState = state;
+    myTransitionsCount++;
+  }
+}
@@ -0,0 +1,13 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown instead of sending an STS request while the endpoint is considered unavailable.
+ */
+public class StsCircuitOpenException extends ConnectionCredentialsException {
+  public StsCircuitOpenException(@NotNull final String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,14 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.util.Map;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+/**
+ * STS request which can be sent to any endpoint, the endpoint and its signing region are set in the given connection properties
+ */
+@FunctionalInterface
+public interface StsEndpointRequest {
+  Credentials send(@NotNull Map<String, String> endpointProperties) throws ConnectionCredentialsException;
+}
@@ -0,0 +1,191 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.TeamCityStsClientBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.regions.Region;
+
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams.STS_ENDPOINT_PARAM;
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams.STS_GLOBAL_ENDPOINT;
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants.REGION_NAME_PARAM;
+
+/**
+ * Orders the STS endpoints a connection with the {@link TeamCityStsClientBuilder#STS_ENDPOINT_AUTO} endpoint can use by their latency.
+ * The candidates are the regional endpoint of the connection region, the regions listed in {@link #ADDITIONAL_REGIONS} and the global endpoint.
+ * Other regions are not tried on their own, an opt-in region which is not enabled for the account would reject the requests.
+ * <p>
+ * The latency is measured by connecting to the endpoints in the background, so that it does not depend on how many requests each endpoint has served.
+ * An endpoint which has failed recently is tried only after the others.
+ */
+public class StsEndpointSelector {
+  public static final String ADDITIONAL_REGIONS = "teamcity.internal.aws.connection.sts.autoEndpoint.additionalRegions";
+  public static final String PROBE_INTERVAL_SECONDS = "teamcity.internal.aws.connection.sts.autoEndpoint.probeIntervalInSeconds";
+  public static final String FAILURE_COOLDOWN_SECONDS = "teamcity.internal.aws.connection.sts.autoEndpoint.failureCooldownInSeconds";
+  private static final int PROBE_INTERVAL_SECONDS_DEFAULT = 300;
+  private static final int FAILURE_COOLDOWN_SECONDS_DEFAULT = 60;
+  private static final int PROBE_TIMEOUT_MILLIS = 2000;
+  private static final double LATENCY_SMOOTHING = 0.3;
+  private static final Logger LOG = Logger.getInstance(StsEndpointSelector.class.getName());
+
+  private final ConcurrentMap<String, EndpointStats> myStats = new ConcurrentHashMap<>();
+  private volatile ScheduledExecutorService myProbeExecutor;
+
+  public static boolean isAuto(@NotNull final Map<String, String> connectionProperties) {
+    return TeamCityStsClientBuilder.isAutoEndpoint(connectionProperties.get(STS_ENDPOINT_PARAM));
+  }
+
+  /**
+   * @return copies of the connection properties with the STS endpoint and its signing region set to each candidate, the preferred one first
+   */
+  @NotNull
+  public List<Map<String, String>> getCandidates(@NotNull final Map<String, String> connectionProperties) {
+    final String connectionRegion = StringUtil.isNotEmpty(connectionProperties.get(REGION_NAME_PARAM))
+                                    ? connectionProperties.get(REGION_NAME_PARAM)
+                                    : AwsCloudConnectorConstants.REGION_NAME_DEFAULT;
+    final Map<String, String> regionsByEndpoint = new LinkedHashMap<>();
+    final List<String> regions = new ArrayList<>();
+    regions.add(connectionRegion);
+    regions.addAll(Arrays.asList(StringUtil.emptyIfNull(TeamCityProperties.getPropertyOrNull(ADDITIONAL_REGIONS)).split(",")));
+    for (String region : regions) {
+      if (region.trim().isEmpty()) {
+        continue;
+      }
+      try {
+        regionsByEndpoint.putIfAbsent(TeamCityStsClientBuilder.getRegionalEndpoint(Region.of(region.trim())).toString(), region.trim());
+      } catch (IllegalArgumentException e) {
+        LOG.warn("Ignoring the invalid region " + region + " of the automatic STS endpoint selection");
+      }
+    }
+    regionsByEndpoint.putIfAbsent(STS_GLOBAL_ENDPOINT, Region.US_EAST_1.id());
+
+    // the measurements are copied because they can change while the endpoints are sorted
+    final Map<String, Long> ranks = new HashMap<>();
+    for (String endpoint : regionsByEndpoint.keySet()) {
+      probeIfOutdated(endpoint);
+      final EndpointStats stats = getStats(endpoint);
+      ranks.put(endpoint, stats.isFailedRecently() ? Long.MAX_VALUE : Math.min(stats.getLatencyNanos(), Long.MAX_VALUE - 1));
+    }
+    final List<String> endpoints = new ArrayList<>(regionsByEndpoint.keySet());
+    // the sort is stable, endpoints without measurements keep the order of preference
+    endpoints.sort(Comparator.comparing(ranks::get));
+
+    final List<Map<String, String>> candidates = new ArrayList<>();
+    for (String endpoint : endpoints) {
+      final Map<String, String> candidate = new HashMap<>(connectionProperties);
+      candidate.put(STS_ENDPOINT_PARAM, endpoint);
+      candidate.put(REGION_NAME_PARAM, regionsByEndpoint.get(endpoint));
+      candidates.add(candidate);
+    }
+    return candidates;
+  }
+
+  public void recordSuccess(@NotNull final String endpoint) {
+    getStats(endpoint).recordSuccess();
+  }
+
+  public void recordFailure(@NotNull final String endpoint) {
+    getStats(endpoint).recordFailure();
+  }
+
+  @NotNull
+  private EndpointStats getStats(@NotNull final String endpoint) {
+    return myStats.computeIfAbsent(endpoint, e -> new EndpointStats());
+  }
+
+  private void probeIfOutdated(@NotNull final String endpoint) {
+    final EndpointStats stats = getStats(endpoint);
+    final long intervalMillis = TeamCityProperties.getInteger(PROBE_INTERVAL_SECONDS, PROBE_INTERVAL_SECONDS_DEFAULT) * 1000L;
+    // a non-positive interval disables the probes, the endpoints are then ordered by preference and failures only
+    if (intervalMillis <= 0 || !stats.startProbeIfOutdated(intervalMillis)) {
+      return;
+    }
+    try {
+      getProbeExecutor().submit(() -> {
+        final URI uri = URI.create(endpoint);
+        final long start = System.nanoTime();
+        try (Socket socket = new Socket()) {
+          socket.connect(new InetSocketAddress(uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 443), PROBE_TIMEOUT_MILLIS);
+          stats.recordLatency(System.nanoTime() - start);
+        } catch (IOException e) {
+          LOG.debug("Failed to connect to the STS endpoint " + endpoint + ": " + e.getMessage());
+          stats.recordFailure();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // shutting down
+    }
+  }
+
+  @NotNull
+  private ScheduledExecutorService getProbeExecutor() {
+    ScheduledExecutorService executor = myProbeExecutor;
+    if (executor == null) {
+      synchronized (this) {
+        executor = myProbeExecutor;
+        if (executor == null) {
+          executor = ExecutorsFactory.newFixedScheduledDaemonExecutor("AWS STS endpoints latency probe", 1);
+          myProbeExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  public void dispose() {
+    final ScheduledExecutorService executor = myProbeExecutor;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  private static final class EndpointStats {
+    private long myLatencyNanos = Long.MAX_VALUE;
+    private long myLastProbeTime;
+    private long myLastFailureTime;
+
+    synchronized boolean startProbeIfOutdated(final long intervalMillis) {
+      final long now = System.currentTimeMillis();
+      if (myLastProbeTime != 0 && now - myLastProbeTime < intervalMillis) {
+        return false;
+      }
+      myLastProbeTime = now;
+      return true;
+    }
+
+    synchronized void recordLatency(final long latencyNanos) {
+      myLatencyNanos = myLatencyNanos == Long.MAX_VALUE
+                       ? latencyNanos
+                       : (long)(LATENCY_SMOOTHING * latencyNanos + (1 - LATENCY_SMOOTHING) * myLatencyNanos);
+    }
+
+    synchronized void recordSuccess() {
+      myLastFailureTime = 0;
+    }
+
+    synchronized void recordFailure() {
+      myLastFailureTime = System.currentTimeMillis();
+    }
+
+    synchronized long getLatencyNanos() {
+      return myLatencyNanos;
+    }
+
+    synchronized boolean isFailedRecently() {
+      final long cooldownMillis = TeamCityProperties.getInteger(FAILURE_COOLDOWN_SECONDS, FAILURE_COOLDOWN_SECONDS_DEFAULT) * 1000L;
+      return myLastFailureTime != 0 && System.currentTimeMillis() - myLastFailureTime < cooldownMillis;
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Limits the rate of STS requests with a token bucket per AWS account and role (per access key for the sessions of static keys),
+ * and the number of concurrent STS requests of each project, so that a single project cannot use up the STS quota of the account.
+ * Requests of a lower {@link StsRequestPriority priority} can only take the tokens above the part reserved for the higher ones.
+ * A request which cannot be sent within {@link #MAX_QUEUE_TIME_SECONDS} fails with {@link StsRequestThrottledException}.
+ */
+public class StsRateLimiter {
+  public static final String RATE_LIMITER_ENABLED = "teamcity.internal.aws.connection.sts.rateLimiter.enabled";
+  public static final String REQUESTS_PER_SECOND = "teamcity.internal.aws.connection.sts.rateLimiter.requestsPerSecond";
+  public static final String BURST = "teamcity.internal.aws.connection.sts.rateLimiter.burst";
+  public static final String MAX_QUEUE_TIME_SECONDS = "teamcity.internal.aws.connection.sts.rateLimiter.maxQueueTimeInSeconds";
+  public static final String PROJECT_MAX_CONCURRENT_REQUESTS = "teamcity.internal.aws.connection.sts.rateLimiter.projectMaxConcurrentRequests";
+  private static final int REQUESTS_PER_SECOND_DEFAULT = 10;
+  private static final int BURST_DEFAULT = 20;
+  private static final int MAX_QUEUE_TIME_SECONDS_DEFAULT = 15;
+  private static final int PROJECT_MAX_CONCURRENT_REQUESTS_DEFAULT = 4;
+
+  private final ConcurrentMap<String, TokenBucket> myBuckets = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, Semaphore> myProjectBulkheads = new ConcurrentHashMap<>();
+  private final ConcurrentMap<StsRequestPriority, PriorityStats> myStats = new ConcurrentHashMap<>();
+
+  public static boolean isEnabled() {
+    return TeamCityProperties.getBoolean(RATE_LIMITER_ENABLED);
+  }
+
+  /**
+   * Waits until the request can be sent
+   *
+   * @return the permit which must be released when the request completes
+   */
+  @NotNull
+  public Permit acquire(@NotNull final String limiterKey, @NotNull final String projectId, @NotNull final StsRequestPriority priority)
+    throws ConnectionCredentialsException {
+    final PriorityStats stats = myStats.computeIfAbsent(priority, p -> new PriorityStats());
+    final long start = System.nanoTime();
+    final long deadline = start + TimeUnit.SECONDS.toNanos(TeamCityProperties.getInteger(MAX_QUEUE_TIME_SECONDS, MAX_QUEUE_TIME_SECONDS_DEFAULT));
+
+    final Semaphore bulkhead = myProjectBulkheads.computeIfAbsent(
+      projectId, id -> new Semaphore(Math.max(1, TeamCityProperties.getInteger(PROJECT_MAX_CONCURRENT_REQUESTS, PROJECT_MAX_CONCURRENT_REQUESTS_DEFAULT))));
+    try {
+      if (!bulkhead.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+        stats.recordThrottled(System.nanoTime() - start);
+        throw new StsRequestThrottledException(String.format(
+          "Too many concurrent STS requests of the project %s, the request for %s was not sent", projectId, limiterKey));
+      }
+
+      final TokenBucket bucket = myBuckets.computeIfAbsent(limiterKey, key -> new TokenBucket());
+      long waitNanos;
+      while ((waitNanos = bucket.tryTake(priority.getReservedFraction())) > 0) {
+        final long remainingNanos = deadline - System.nanoTime();
+        if (remainingNanos <= 0) {
+          bulkhead.release();
+          stats.recordThrottled(System.nanoTime() - start);
+          throw new StsRequestThrottledException(String.format(
+            "The rate limit of STS requests for %s has been reached, the %s request was not sent", limiterKey, priority.name().toLowerCase()));
+        }
+        try {
+          TimeUnit.NANOSECONDS.sleep(Math.min(waitNanos, remainingNanos));
+        } catch (InterruptedException e) {
+          bulkhead.release();
+          throw e;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConnectionCredentialsException("Interrupted while waiting for the STS rate limiter");
+    }
+
+    stats.recordAcquired(System.nanoTime() - start);
+    return bulkhead::release;
+  }
+
+  /**
+   * @return number of requests, throttled requests and the total and maximum queue time in milliseconds by priority
+   */
+  @NotNull
+  public Map<String, Long> getStats() {
+    final Map<String, Long> result = new TreeMap<>();
+    myStats.forEach((priority, stats) -> {
+      final String prefix = priority.name().toLowerCase() + ".";
+      result.put(prefix + "requests", stats.myRequests.get());
+      result.put(prefix + "throttled", stats.myThrottled.get());
+      result.put(prefix + "queueTimeMillis", TimeUnit.NANOSECONDS.toMillis(stats.myQueueTimeNanos.get()));
+      result.put(prefix + "maxQueueTimeMillis", TimeUnit.NANOSECONDS.toMillis(stats.myMaxQueueTimeNanos.get()));
+    });
+    return result;
+  }
+
+  @FunctionalInterface
+  public interface Permit extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  private static final class TokenBucket {
+    private double myTokens = -1;
+    private long myLastRefillTime;
+
+    /**
+     * @return 0 if a token has been taken, otherwise the time to wait before trying again in nanoseconds
+     */
+    synchronized long tryTake(final double reservedFraction) {
+      final double ratePerSecond = Math.max(1, TeamCityProperties.getInteger(REQUESTS_PER_SECOND, REQUESTS_PER_SECOND_DEFAULT));
+      final double capacity = Math.max(1, TeamCityProperties.getInteger(BURST, BURST_DEFAULT));
+      final long now = System.nanoTime();
+      if (myTokens < 0) {
+        myTokens = capacity;
+      } else {
+        myTokens = Math.min(capacity, myTokens + (now - myLastRefillTime) * ratePerSecond / TimeUnit.SECONDS.toNanos(1));
+      }
+      myLastRefillTime = now;
+
+      final double required = Math.min(capacity, 1 + reservedFraction * capacity);
+      if (myTokens >= required) {
+        myTokens -= 1;
+        return 0;
+      }
+      return Math.max(1, (long)((required - myTokens) / ratePerSecond * TimeUnit.SECONDS.toNanos(1)));
+    }
+  }
+
+  private static final class PriorityStats {
+    private final AtomicLong myRequests = new AtomicLong();
+    private final AtomicLong myThrottled = new AtomicLong();
+    private final AtomicLong myQueueTimeNanos = new AtomicLong();
+    private final AtomicLong myMaxQueueTimeNanos = new AtomicLong();
+
+    void recordAcquired(final long queueTimeNanos) {
+      myRequests.incrementAndGet();
+      recordQueueTime(queueTimeNanos);
+    }
+
+    void recordThrottled(final long queueTimeNanos) {
+      myRequests.incrementAndGet();
+      myThrottled.incrementAndGet();
+      recordQueueTime(queueTimeNanos);
+    }
+
+    private void recordQueueTime(final long queueTimeNanos) {
+      myQueueTimeNanos.addAndGet(queueTimeNanos);
+      myMaxQueueTimeNanos.accumulateAndGet(queueTimeNanos, Math::max);
+    }
+  }
+}
@@ -0,0 +1,329 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.TeamCityStsClientBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAssumeIamRoleParams;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+/**
+ * Sends the STS requests of the AWS Connections: checks the deadline of the lookup, waits for the rate limiter,
+ * picks the endpoint, fails over to the next one and hedges slow requests, every attempt goes through the circuit breaker of its endpoint.
+ */
+public class StsRequestDispatcher {
+  public static final String STS_CIRCUIT_BREAKER_ENABLED = "teamcity.internal.aws.connection.sts.circuitBreaker.enabled";
+  public static final String MIN_STS_REQUEST_TIME_MILLIS = "teamcity.internal.aws.connection.sts.minRequestTimeInMillis";
+  private static final int MIN_STS_REQUEST_TIME_MILLIS_DEFAULT = 500;
+  private static final Logger LOG = Logger.getInstance(StsRequestDispatcher.class.getName());
+
+  private final ConcurrentMap<String, StsCircuitBreaker> myCircuitBreakers = new ConcurrentHashMap<>();
+  private final StsEndpointSelector myEndpointSelector = new StsEndpointSelector();
+  private final StsRequestHedger myRequestHedger = new StsRequestHedger();
+  private final StsRateLimiter myRateLimiter = new StsRateLimiter();
+
+  public StsRequestDispatcher(@NotNull final EventDispatcher<BuildServerListener> eventDispatcher) {
+    eventDispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        dispose();
+      }
+    });
+  }
+
+  /**
+   * Sends the STS request through the circuit breaker of the endpoint the connection uses.
+   * While the breaker is open, the request fails with {@link StsCircuitOpenException} without reaching STS.
+   */
+  @NotNull
+  public Credentials call(@NotNull final Map<String, String> connectionProperties, @NotNull final RequestSessionFunction stsRequest)
+    throws ConnectionCredentialsException {
+    if (!TeamCityProperties.getBooleanOrTrue(STS_CIRCUIT_BREAKER_ENABLED)) {
+      return stsRequest.get();
+    }
+    return myCircuitBreakers.computeIfAbsent(getStsEndpointKey(connectionProperties), StsCircuitBreaker::new).call(stsRequest);
+  }
+
+  /**
+   * Sends the STS request to the endpoint of the connection through its circuit breaker.
+   * If the connection uses the {@link TeamCityStsClientBuilder#STS_ENDPOINT_AUTO} endpoint, the request is sent to the fastest candidate endpoint
+   * and to the next ones after connection errors, throttling and 5xx responses.
+   * If {@link StsRequestHedger#HEDGING_ENABLED hedging} is enabled, a slow request is repeated starting with the next candidate endpoint.
+   * If the {@link StsRateLimiter#RATE_LIMITER_ENABLED rate limiter} is enabled, the request and its hedge wait for it with the priority of the current thread.
+   * If the current thread has a {@link AwsCredentialsRequestContext#runWithTimeout deadline}, every attempt fails with {@link AwsCredentialsDeadlineException}
+   * without being sent once less than {@link #MIN_STS_REQUEST_TIME_MILLIS} is left.
+   */
+  @NotNull
+  public Credentials call(@NotNull final SProjectFeatureDescriptor awsConnectionFeature, @NotNull final StsEndpointRequest stsRequest)
+    throws ConnectionCredentialsException {
+    final StsEndpointRequest request = withDeadline(awsConnectionFeature, stsRequest);
+    final Map<String, String> connectionProperties = awsConnectionFeature.getParameters();
+    final List<Map<String, String>> candidates = StsEndpointSelector.isAuto(connectionProperties)
+                                                 ? myEndpointSelector.getCandidates(connectionProperties)
+                                                 : Collections.singletonList(connectionProperties);
+    if (!StsRequestHedger.isEnabled()) {
+      return callWithRateLimit(awsConnectionFeature, AwsCredentialsRequestContext.getPriority(), () -> callWithFailover(candidates, request));
+    }
+
+    final List<Map<String, String>> hedgeCandidates = new ArrayList<>(candidates);
+    Collections.rotate(hedgeCandidates, -1);
+    final StsRequestPriority priority = AwsCredentialsRequestContext.getPriority();
+    // the hedge is sent from another thread, it takes its own permit with the priority of the request
+    return myRequestHedger.call(() -> callWithRateLimit(awsConnectionFeature, priority, () -> callWithFailover(candidates, request)),
+                                () -> callWithRateLimit(awsConnectionFeature, priority, () -> callWithFailover(hedgeCandidates, request)));
+  }
+
+  /**
+   * Same as {@link #call(Map, RequestSessionFunction)} for a request which completes asynchronously
+   */
+  @NotNull
+  public CompletableFuture<Credentials> callAsync(@NotNull final Map<String, String> connectionProperties, @NotNull final AsyncRequestSessionFunction stsRequest) {
+    if (!TeamCityProperties.getBooleanOrTrue(STS_CIRCUIT_BREAKER_ENABLED)) {
+      try {
+        return stsRequest.get();
+      } catch (ConnectionCredentialsException | RuntimeException e) {
+        return failedFuture(e);
+      }
+    }
+    return myCircuitBreakers.computeIfAbsent(getStsEndpointKey(connectionProperties), StsCircuitBreaker::new).callAsync(stsRequest);
+  }
+
+  /**
+   * Same as {@link #call(SProjectFeatureDescriptor, StsEndpointRequest)} for a request which does not block the calling thread until STS answers.
+   * The request goes through the circuit breakers, fails over to the next {@link TeamCityStsClientBuilder#STS_ENDPOINT_AUTO auto} endpoint and honours the deadline
+   * of the current thread, it is neither hedged nor rate limited: both would block a thread while the request waits.
+   */
+  @NotNull
+  public CompletableFuture<Credentials> callAsync(@NotNull final SProjectFeatureDescriptor awsConnectionFeature, @NotNull final StsAsyncEndpointRequest stsRequest) {
+    final StsAsyncEndpointRequest request = withDeadline(awsConnectionFeature, stsRequest);
+    final Map<String, String> connectionProperties = awsConnectionFeature.getParameters();
+    final List<Map<String, String>> candidates = StsEndpointSelector.isAuto(connectionProperties)
+                                                 ? myEndpointSelector.getCandidates(connectionProperties)
+                                                 : Collections.singletonList(connectionProperties);
+    return callWithFailoverAsync(candidates, 0, request);
+  }
+
+  /**
+   * @return number of STS requests made with hedging enabled, number of hedged requests sent for them and number of hedged requests which were faster
+   */
+  @NotNull
+  public Map<String, Long> getStsHedgingStats() {
+    final Map<String, Long> stats = new TreeMap<>();
+    stats.put("requests", myRequestHedger.getRequestsCount());
+    stats.put("hedges", myRequestHedger.getHedgesCount());
+    stats.put("hedgeWins", myRequestHedger.getHedgeWinsCount());
+    return stats;
+  }
+
+  /**
+   * @return statistics of the STS rate limiter, see {@link StsRateLimiter#getStats()}
+   */
+  @NotNull
+  public Map<String, Long> getStsRateLimiterStats() {
+    return myRateLimiter.getStats();
+  }
+
+  /**
+   * @return states of the STS circuit breakers by endpoint
+   */
+  @NotNull
+  public Map<String, StsCircuitBreaker.State> getCircuitBreakerStates() {
+    final Map<String, StsCircuitBreaker.State> states = new TreeMap<>();
+    myCircuitBreakers.forEach((endpoint, circuitBreaker) -> states.put(endpoint, circuitBreaker.getState()));
+    return states;
+  }
+
+  /**
+   * @return number of state changes of the STS circuit breakers by endpoint
+   */
+  @NotNull
+  public Map<String, Long> getCircuitBreakerTransitionsCounts() {
+    final Map<String, Long> transitionsCounts = new TreeMap<>();
+    myCircuitBreakers.forEach((endpoint, circuitBreaker) -> transitionsCounts.put(endpoint, circuitBreaker.getTransitionsCount()));
+    return transitionsCounts;
+  }
+
+  public void dispose() {
+    myEndpointSelector.dispose();
+    myRequestHedger.dispose();
+  }
+
+  /**
+   * @return the request which checks the deadline of the current thread and carries it to the thread the request is sent from
+   */
+  @NotNull
+  private static StsEndpointRequest withDeadline(@NotNull final SProjectFeatureDescriptor awsConnectionFeature, @NotNull final StsEndpointRequest stsRequest) {
+    final Long deadline = AwsCredentialsRequestContext.getDeadline();
+    if (deadline == null) {
+      return stsRequest;
+    }
+    return endpointProperties -> AwsCredentialsRequestContext.runWithDeadline(deadline, () -> {
+      checkRemainingTime(awsConnectionFeature);
+      return stsRequest.send(endpointProperties);
+    });
+  }
+
+  @NotNull
+  private static StsAsyncEndpointRequest withDeadline(@NotNull final SProjectFeatureDescriptor awsConnectionFeature, @NotNull final StsAsyncEndpointRequest stsRequest) {
+    final Long deadline = AwsCredentialsRequestContext.getDeadline();
+    if (deadline == null) {
+      return stsRequest;
+    }
+    // the request to the next endpoint is sent from the thread which has completed the previous one
+    return endpointProperties -> AwsCredentialsRequestContext.runWithDeadline(deadline, () -> {
+      checkRemainingTime(awsConnectionFeature);
+      return stsRequest.send(endpointProperties);
+    });
+  }
+
+  private static void checkRemainingTime(@NotNull final SProjectFeatureDescriptor awsConnectionFeature) throws AwsCredentialsDeadlineException {
+    final Duration remainingTime = AwsCredentialsRequestContext.getRemainingTime();
+    final int minRequestTimeMillis = TeamCityProperties.getInteger(MIN_STS_REQUEST_TIME_MILLIS, MIN_STS_REQUEST_TIME_MILLIS_DEFAULT);
+    if (remainingTime != null && remainingTime.toMillis() < minRequestTimeMillis) {
+      throw new AwsCredentialsDeadlineException(String.format(
+        "AWS credentials for the connection %s were not requested: %d ms left until the deadline, at least %d ms are required for an STS request",
+        awsConnectionFeature.getId(), remainingTime.toMillis(), minRequestTimeMillis));
+    }
+  }
+
+  /**
+   * @return the AWS account and the role the session is requested for, or the access key the session of static keys is requested with
+   */
+  @NotNull
+  private static String getRateLimiterKey(@NotNull final SProjectFeatureDescriptor awsConnectionFeature) {
+    final Map<String, String> connectionProperties = awsConnectionFeature.getParameters();
+    final String roleArn = connectionProperties.get(AwsAssumeIamRoleParams.IAM_ROLE_ARN_PARAM);
+    if (roleArn != null && !roleArn.isEmpty()) {
+      // arn:partition:iam::account:role/name
+      final String[] arnParts = roleArn.split(":", 6);
+      return arnParts.length == 6 ? arnParts[4] + "/" + arnParts[5] : roleArn;
+    }
+    final String accessKeyId = connectionProperties.get(AwsAccessKeysParams.ACCESS_KEY_ID_PARAM);
+    if (accessKeyId != null && !accessKeyId.isEmpty()) {
+      return accessKeyId;
+    }
+    return awsConnectionFeature.getProjectId() + "/" + awsConnectionFeature.getId();
+  }
+
+  @NotNull
+  private Credentials callWithRateLimit(@NotNull final SProjectFeatureDescriptor awsConnectionFeature,
+                                        @NotNull final StsRequestPriority priority,
+                                        @NotNull final RequestSessionFunction stsRequest) throws ConnectionCredentialsException {
+    if (!StsRateLimiter.isEnabled()) {
+      return stsRequest.get();
+    }
+    checkRemainingTime(awsConnectionFeature);
+    try (StsRateLimiter.Permit ignored = myRateLimiter.acquire(getRateLimiterKey(awsConnectionFeature), awsConnectionFeature.getProjectId(), priority)) {
+      return stsRequest.get();
+    }
+  }
+
+  @NotNull
+  private Credentials callWithFailover(@NotNull final List<Map<String, String>> candidates, @NotNull final StsEndpointRequest stsRequest)
+    throws ConnectionCredentialsException {
+    if (candidates.size() == 1) {
+      final Map<String, String> endpointProperties = candidates.get(0);
+      return call(endpointProperties, () -> stsRequest.send(endpointProperties));
+    }
+
+    Exception lastFailure = null;
+    for (Map<String, String> endpointProperties : candidates) {
+      final String endpoint = endpointProperties.get(AwsAccessKeysParams.STS_ENDPOINT_PARAM);
+      try {
+        final Credentials credentials = call(endpointProperties, () -> stsRequest.send(endpointProperties));
+        myEndpointSelector.recordSuccess(endpoint);
+        return credentials;
+      } catch (ConnectionCredentialsException | RuntimeException e) {
+        if (!(e instanceof StsCircuitOpenException) && !StsCircuitBreaker.isTransientFailure(e)) {
+          throw e;
+        }
+        myEndpointSelector.recordFailure(endpoint);
+        LOG.info("STS request to " + endpoint + " failed, trying the next endpoint: " + e.getMessage());
+        lastFailure = e;
+      }
+    }
+    if (lastFailure instanceof ConnectionCredentialsException) {
+      throw (ConnectionCredentialsException)lastFailure;
+    }
+    if (lastFailure instanceof RuntimeException) {
+      throw (RuntimeException)lastFailure;
+    }
+    throw new ConnectionCredentialsException("No STS endpoint is available for the connection");
+  }
+
+  @NotNull
+  private CompletableFuture<Credentials> callWithFailoverAsync(@NotNull final List<Map<String, String>> candidates,
+                                                               final int candidateIndex,
+                                                               @NotNull final StsAsyncEndpointRequest stsRequest) {
+    final Map<String, String> endpointProperties = candidates.get(candidateIndex);
+    final String endpoint = endpointProperties.get(AwsAccessKeysParams.STS_ENDPOINT_PARAM);
+    final CompletableFuture<Credentials> request = callAsync(endpointProperties, () -> stsRequest.send(endpointProperties));
+    if (candidates.size() == 1) {
+      return request;
+    }
+
+    return request.handle((credentials, failure) -> {
+      if (failure == null) {
+        myEndpointSelector.recordSuccess(endpoint);
+        return CompletableFuture.completedFuture(credentials);
+      }
+      final Throwable cause = unwrap(failure);
+      if (!(cause instanceof StsCircuitOpenException) && !StsCircuitBreaker.isTransientFailure(cause)) {
+        return StsRequestDispatcher.<Credentials>failedFuture(cause);
+      }
+      myEndpointSelector.recordFailure(endpoint);
+      if (candidateIndex + 1 >= candidates.size()) {
+        return StsRequestDispatcher.<Credentials>failedFuture(cause);
+      }
+      LOG.info("STS request to " + endpoint + " failed, trying the next endpoint: " + cause.getMessage());
+      return callWithFailoverAsync(candidates, candidateIndex + 1, stsRequest);
+    }).thenCompose(next -> next);
+  }
+
+  @NotNull
+  static <T> CompletableFuture<T> failedFuture(@NotNull final Throwable failure) {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    future.completeExceptionally(failure);
+    return future;
+  }
+
+  /**
+   * @return the failure of an asynchronous request without the wrappers added by the futures it has passed through
+   */
+  @NotNull
+  static Throwable unwrap(@NotNull final Throwable failure) {
+    Throwable current = failure;
+    while ((current instanceof CompletionException || current instanceof ExecutionException) && current.getCause() != null) {
+      current = current.getCause();
+    }
+    return current;
+  }
+
+  @NotNull
+  private static String getStsEndpointKey(@NotNull final Map<String, String> connectionProperties) {
+    final String stsEndpoint = connectionProperties.get(AwsAccessKeysParams.STS_ENDPOINT_PARAM);
+    if (stsEndpoint != null && !stsEndpoint.isEmpty()) {
+      return stsEndpoint;
+    }
+    final String region = connectionProperties.get(AwsCloudConnectorConstants.REGION_NAME_PARAM);
+    return region != null ? region : AwsCloudConnectorConstants.REGION_NAME_DEFAULT;
+  }
+}
@@ -0,0 +1,33 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * SHA-256 fingerprint of everything that determines the result of an STS request,
+ * including the credentials used to sign it. Equal fingerprints mean byte-identical requests made by the same principal.
+ */
+public final class StsRequestFingerprint {
+
+  private StsRequestFingerprint() {
+  }
+
+  @NotNull
+  public static String of(@NotNull final String operation, @Nullable final String... requestParts) {
+    final Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putString(operation, StandardCharsets.UTF_8);
+    if (requestParts != null) {
+      for (String part : requestParts) {
+        // the length prefix keeps ("ab", "c") and ("a", "bc") apart, -1 keeps null apart from an empty string
+        hasher.putInt(part != null ? part.length() : -1);
+        if (part != null) {
+          hasher.putString(part, StandardCharsets.UTF_8);
+        }
+      }
+    }
+    return hasher.hash().toString();
+  }
+}
@@ -0,0 +1,277 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import jetbrains.buildServer.log.Loggers;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+/**
+ * Sends a second identical STS request if the first one has not completed within a percentile of the recent request durations.
+ * The first request is sent from the calling thread, the hedged one from a pool of at most {@link #THREADS} threads.
+ * The first successful response is used and the other request is cancelled.
+ * The hedges are limited by a budget which grows by {@link #MAX_RATE} with every request, so they cannot multiply the load on STS when it is slow for everybody.
+ */
+public class StsRequestHedger {
+  public static final String HEDGING_ENABLED = "teamcity.internal.aws.connection.sts.hedging.enabled";
+  public static final String DELAY_PERCENTILE = "teamcity.internal.aws.connection.sts.hedging.delayPercentile";
+  public static final String DEFAULT_DELAY_MILLIS = "teamcity.internal.aws.connection.sts.hedging.defaultDelayInMillis";
+  public static final String MAX_RATE = "teamcity.internal.aws.connection.sts.hedging.maxRate";
+  public static final String THREADS = "teamcity.internal.aws.connection.sts.hedging.threads";
+  private static final int DELAY_PERCENTILE_DEFAULT = 95;
+  private static final int DEFAULT_DELAY_MILLIS_DEFAULT = 1000;
+  private static final double MAX_RATE_DEFAULT = 0.05;
+  private static final int THREADS_DEFAULT = 16;
+  private static final int MAX_BUDGET = 10;
+  private static final int MIN_SAMPLES = 20;
+  private static final int SAMPLES_COUNT = 128;
+
+  private final long[] myDurations = new long[SAMPLES_COUNT];
+  private int mySamplesCount;
+  private int myNextSample;
+  private double myBudget;
+  private final Semaphore myHedgeSlots = new Semaphore(Math.max(1, TeamCityProperties.getInteger(THREADS, THREADS_DEFAULT)));
+  private final AtomicLong myRequestsCount = new AtomicLong();
+  private final AtomicLong myHedgesCount = new AtomicLong();
+  private final AtomicLong myHedgeWinsCount = new AtomicLong();
+  private volatile ScheduledExecutorService myExecutor;
+
+  public static boolean isEnabled() {
+    return TeamCityProperties.getBoolean(HEDGING_ENABLED);
+  }
+
+  /**
+   * Sends the request from the current thread. If it is still running after the hedging delay, and the budget and a hedging thread are available,
+   * the hedge is sent. If the hedge succeeds first, the current thread is interrupted to abort the request and the hedge result is returned.
+   *
+   * @param request the request to send
+   * @param hedge the identical request to send if the first one is slow, it can use another endpoint
+   */
+  @NotNull
+  public Credentials call(@NotNull final RequestSessionFunction request, @NotNull final RequestSessionFunction hedge) throws ConnectionCredentialsException {
+    myRequestsCount.incrementAndGet();
+    addBudget();
+
+    final long start = System.nanoTime();
+    final HedgedRequest hedgedRequest = new HedgedRequest(Thread.currentThread(), hedge);
+    ScheduledFuture<?> hedgeTimer = null;
+    try {
+      hedgeTimer = getExecutor().schedule(hedgedRequest::sendHedge, getDelayMillis(), TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      Loggers.CLOUD.debug("STS request is not hedged, the executor is shut down");
+    }
+
+    try {
+      final Credentials credentials;
+      try {
+        credentials = request.get();
+      } catch (ConnectionCredentialsException | RuntimeException e) {
+        final CompletableFuture<Credentials> hedgeResult = hedgedRequest.finishRequest();
+        if (hedgeResult == null) {
+          throw e;
+        }
+        return awaitHedge(hedgeResult, e);
+      }
+      recordDuration(System.nanoTime() - start);
+      hedgedRequest.finishRequest();
+      return credentials;
+    } finally {
+      if (hedgeTimer != null) {
+        hedgeTimer.cancel(false);
+      }
+      hedgedRequest.cancelHedge();
+    }
+  }
+
+  /**
+   * @return the hedge result, the failure of the request if the hedge has failed too
+   */
+  @NotNull
+  private static Credentials awaitHedge(@NotNull final CompletableFuture<Credentials> hedgeResult, @NotNull final Exception requestFailure)
+    throws ConnectionCredentialsException {
+    try {
+      return hedgeResult.get();
+    } catch (ExecutionException e) {
+      if (requestFailure instanceof ConnectionCredentialsException) {
+        throw (ConnectionCredentialsException)requestFailure;
+      }
+      throw (RuntimeException)requestFailure;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConnectionCredentialsException("Interrupted while requesting AWS credentials");
+    }
+  }
+
+  /**
+   * State of a request sent from the calling thread and of its hedge
+   */
+  private final class HedgedRequest {
+    private final Thread myRequestThread;
+    private final RequestSessionFunction myHedge;
+    private final CompletableFuture<Credentials> myHedgeResult = new CompletableFuture<>();
+    private boolean myRequestFinished;
+    private boolean myRequestInterrupted;
+    private boolean myHoldsHedgeSlot;
+    private Future<?> myHedgeFuture;
+
+    private HedgedRequest(@NotNull final Thread requestThread, @NotNull final RequestSessionFunction hedge) {
+      myRequestThread = requestThread;
+      myHedge = hedge;
+    }
+
+    private synchronized void sendHedge() {
+      if (myRequestFinished || !tryTakeBudget()) {
+        return;
+      }
+      if (!myHedgeSlots.tryAcquire()) {
+        Loggers.CLOUD.debug("STS request is not hedged, all hedging threads are busy");
+        return;
+      }
+      myHoldsHedgeSlot = true;
+      myHedgesCount.incrementAndGet();
+      Loggers.CLOUD.debug("STS request is slow, sending a hedged request");
+      final long start = System.nanoTime();
+      try {
+        myHedgeFuture = getExecutor().submit(() -> {
+          try {
+            final Credentials credentials = myHedge.get();
+            recordDuration(System.nanoTime() - start);
+            onHedgeSucceeded();
+            myHedgeResult.complete(credentials);
+          } catch (ConnectionCredentialsException | RuntimeException e) {
+            myHedgeResult.completeExceptionally(e);
+          } finally {
+            releaseHedgeSlot();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        releaseHedgeSlot();
+      }
+    }
+
+    private synchronized void releaseHedgeSlot() {
+      if (myHoldsHedgeSlot) {
+        myHoldsHedgeSlot = false;
+        myHedgeSlots.release();
+      }
+    }
+
+    private synchronized void onHedgeSucceeded() {
+      if (myRequestFinished) {
+        return;
+      }
+      myHedgeWinsCount.incrementAndGet();
+      // the request which has lost is not needed anymore
+      myRequestInterrupted = true;
+      myRequestThread.interrupt();
+    }
+
+    /**
+     * Called from the request thread when the request completes
+     *
+     * @return the result of the hedge if it has been sent
+     */
+    @Nullable
+    private synchronized CompletableFuture<Credentials> finishRequest() {
+      myRequestFinished = true;
+      if (myRequestInterrupted) {
+        // clears the interruption made to abort the request
+        Thread.interrupted();
+      }
+      return myHedgeFuture != null ? myHedgeResult : null;
+    }
+
+    private synchronized void cancelHedge() {
+      myRequestFinished = true;
+      if (myHedgeFuture != null && myHedgeFuture.cancel(true) && !myHedgeResult.isDone()) {
+        // the hedge might have not started, so it will not release the slot itself
+        releaseHedgeSlot();
+      }
+    }
+  }
+
+  private synchronized void addBudget() {
+    myBudget = Math.min(MAX_BUDGET, myBudget + getMaxRate());
+  }
+
+  private synchronized boolean tryTakeBudget() {
+    if (myBudget < 1) {
+      return false;
+    }
+    myBudget -= 1;
+    return true;
+  }
+
+  private synchronized void recordDuration(final long durationNanos) {
+    myDurations[myNextSample] = durationNanos;
+    myNextSample = (myNextSample + 1) % SAMPLES_COUNT;
+    mySamplesCount = Math.min(SAMPLES_COUNT, mySamplesCount + 1);
+  }
+
+  synchronized long getDelayMillis() {
+    if (mySamplesCount < MIN_SAMPLES) {
+      return TeamCityProperties.getInteger(DEFAULT_DELAY_MILLIS, DEFAULT_DELAY_MILLIS_DEFAULT);
+    }
+    final long[] durations = Arrays.copyOf(myDurations, mySamplesCount);
+    Arrays.sort(durations);
+    final int percentile = Math.max(1, Math.min(100, TeamCityProperties.getInteger(DELAY_PERCENTILE, DELAY_PERCENTILE_DEFAULT)));
+    final int index = Math.min(durations.length - 1, (int)Math.ceil(percentile / 100.0 * durations.length) - 1);
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(durations[Math.max(0, index)]));
+  }
+
+  private static double getMaxRate() {
+    final String value = TeamCityProperties.getPropertyOrNull(MAX_RATE);
+    if (value == null) {
+      return MAX_RATE_DEFAULT;
+    }
+    try {
+      final double rate = Double.parseDouble(value);
+      return rate >= 0 && rate <= 1 ? rate : MAX_RATE_DEFAULT;
+    } catch (NumberFormatException e) {
+      return MAX_RATE_DEFAULT;
+    }
+  }
+
+  public long getRequestsCount() {
+    return myRequestsCount.get();
+  }
+
+  public long getHedgesCount() {
+    return myHedgesCount.get();
+  }
+
+  /**
+   * @return number of hedged requests which completed before the request they were sent for
+   */
+  public long getHedgeWinsCount() {
+    return myHedgeWinsCount.get();
+  }
+
+  @NotNull
+  private ScheduledExecutorService getExecutor() {
+    ScheduledExecutorService executor = myExecutor;
+    if (executor == null) {
+      synchronized (this) {
+        executor = myExecutor;
+        if (executor == null) {
+          // one more thread for the hedging timers
+          executor = ExecutorsFactory.newFixedScheduledDaemonExecutor("AWS STS hedged requests", Math.max(1, TeamCityProperties.getInteger(THREADS, THREADS_DEFAULT)) + 1);
+          myExecutor = executor;
+        }
+      }
+    }
+    return executor;
+  }
+
+  public void dispose() {
+    final ScheduledExecutorService executor = myExecutor;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+/**
+ * Priority of the STS requests made by the current thread, see {@link AwsCredentialsRequestContext#runWithPriority}.
+ * Requests of a lower priority leave a part of the rate limit to the higher ones.
+ */
+public enum StsRequestPriority {
+  BUILD_START(0),
+  INTERACTIVE(0.2),
+  BACKGROUND(0.5);
+
+  private final double myReservedFraction;
+
+  StsRequestPriority(final double reservedFraction) {
+    myReservedFraction = reservedFraction;
+  }
+
+  /**
+   * @return fraction of the rate limiter tokens the requests of this priority cannot use
+   */
+  double getReservedFraction() {
+    return myReservedFraction;
+  }
+}
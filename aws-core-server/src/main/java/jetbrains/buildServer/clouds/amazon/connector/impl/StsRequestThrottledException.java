@@ -0,0 +1,13 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown instead of sending an STS request which has waited too long for the rate limiter.
+ */
+public class StsRequestThrottledException extends ConnectionCredentialsException {
+  public StsRequestThrottledException(@NotNull final String message) {
+    super(message);
+  }
+}
@@ -7,6 +7,7 @@ import java.util.Map;
 import jetbrains.buildServer.clouds.amazon.connector.AwsConnectorFactory;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
 import jetbrains.buildServer.clouds.amazon.connector.errors.AwsConnectorException;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsCredentialsHolderCache;
 import jetbrains.buildServer.clouds.amazon.connector.impl.BaseAwsCredentialsBuilder;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
 import jetbrains.buildServer.serverSide.InvalidProperty;
@@ -20,8 +21,15 @@ import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.Aws
 
 public class DefaultProviderCredentialsBuilder extends BaseAwsCredentialsBuilder {
 
+  private final SharedDefaultCredentialsProvider myCredentialsProvider;
+  private final AwsCredentialsHolderCache myCache;
+
   public DefaultProviderCredentialsBuilder(@NotNull final AwsConnectorFactory awsConnectorFactory,
-                                           @NotNull final AwsConnectionCredentialsFactory awsCredentialsFactory) {
+                                           @NotNull final AwsConnectionCredentialsFactory awsCredentialsFactory,
+                                           @NotNull final SharedDefaultCredentialsProvider credentialsProvider,
+                                           @NotNull final AwsCredentialsHolderCache cache) {
+    myCredentialsProvider = credentialsProvider;
+    myCache = cache;
     awsConnectorFactory.registerAwsCredentialsBuilder(this);
     awsCredentialsFactory.registerAwsCredentialsBuilder(this);
   }
@@ -32,7 +40,7 @@ public class DefaultProviderCredentialsBuilder extends BaseAwsCredentialsBuilder
     if (! TeamCityProperties.getBoolean(DEFAULT_CREDS_PROVIDER_FEATURE_PROPERTY_NAME)) {
       throw new AwsConnectorException(DISABLED_AWS_CONNECTION_TYPE_ERROR_MSG);
     }
-    return new DefaultProviderCredentialsHolder(featureDescriptor);
+    return new DefaultProviderCredentialsHolder(featureDescriptor, myCredentialsProvider, myCache);
   }
 
   @Override
@@ -1,53 +1,41 @@
-
-
 package jetbrains.buildServer.clouds.amazon.connector.impl.defaultProviderType;
 
+import java.time.Instant;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsData;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
 import jetbrains.buildServer.clouds.amazon.connector.errors.AwsConnectorException;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsCredentialsHolderCache;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import software.amazon.awssdk.auth.credentials.AwsCredentials;
 import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
-import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+import software.amazon.awssdk.services.sts.model.Credentials;
 
 public class DefaultProviderCredentialsHolder implements AwsCredentialsHolder {
+  public static final String CACHE_TTL_SECONDS = "teamcity.internal.aws.connection.defaultProvider.cacheTtlInSeconds";
+  private static final int CACHE_TTL_SECONDS_DEFAULT = 5 * 60;
 
   private final SProjectFeatureDescriptor connectionFeatureDescriptor;
+  private final SharedDefaultCredentialsProvider myCredentialsProvider;
+  private final AwsCredentialsHolderCache myCache;
 
-  public DefaultProviderCredentialsHolder(@NotNull final SProjectFeatureDescriptor featureDescriptor) {
+  public DefaultProviderCredentialsHolder(@NotNull final SProjectFeatureDescriptor featureDescriptor,
+                                          @NotNull final SharedDefaultCredentialsProvider credentialsProvider,
+                                          @NotNull final AwsCredentialsHolderCache cache) {
     connectionFeatureDescriptor = featureDescriptor;
+    myCredentialsProvider = credentialsProvider;
+    myCache = cache;
   }
 
   @NotNull
   @Override
-  public AwsCredentialsData getAwsCredentials() throws AwsConnectorException {
-    AwsCredentials credentials = constructNewDefaultProviderCredentials();
-    return new AwsCredentialsData() {
-      @NotNull
-      @Override
-      public String getAccessKeyId() {
-        return credentials.accessKeyId();
-      }
-
-      @NotNull
-      @Override
-      public String getSecretAccessKey() {
-        return credentials.secretAccessKey();
-      }
-
-      @Nullable
-      @Override
-      public String getSessionToken() {
-        if (credentials instanceof AwsSessionCredentials) {
-          return ((AwsSessionCredentials) credentials).sessionToken();
-        } else {
-          return null;
-        }
-      }
-    };
+  public AwsCredentialsData getAwsCredentials() throws ConnectionCredentialsException {
+    return myCache.getAwsCredentials(connectionFeatureDescriptor, this::resolveDefaultProviderCredentials);
   }
 
   @Override
@@ -61,9 +49,11 @@ public class DefaultProviderCredentialsHolder implements AwsCredentialsHolder {
     return null;
   }
 
-  private AwsCredentials constructNewDefaultProviderCredentials() throws AwsConnectorException {
-    try (DefaultCredentialsProvider dcp = DefaultCredentialsProvider.builder().build()) {
-      return dcp.resolveCredentials();
+  @NotNull
+  private Credentials resolveDefaultProviderCredentials() throws AwsConnectorException {
+    final AwsCredentials credentials;
+    try {
+      credentials = myCredentialsProvider.resolveCredentials();
     } catch (Exception e) {
       String errorMsg = String.format(
         "Failed to use the DefaultAWSCredentialsProviderChain, Connection ID: %s, project ID: %s, reason %s",
@@ -74,5 +64,16 @@ public class DefaultProviderCredentialsHolder implements AwsCredentialsHolder {
 
       throw new AwsConnectorException(errorMsg);
     }
+
+    // credentials without expiration, e.g. from the environment, are looked up in the chain again after the TTL
+    final Instant expiration = credentials.expirationTime().orElseGet(
+      () -> Instant.now().plusMillis(TimeUnit.SECONDS.toMillis(TeamCityProperties.getInteger(CACHE_TTL_SECONDS, CACHE_TTL_SECONDS_DEFAULT)))
+    );
+    return Credentials.builder()
+                      .accessKeyId(credentials.accessKeyId())
+                      .secretAccessKey(credentials.secretAccessKey())
+                      .sessionToken(credentials instanceof AwsSessionCredentials ? ((AwsSessionCredentials)credentials).sessionToken() : null)
+                      .expiration(expiration)
+                      .build();
   }
-}
\ No newline at end of file
+}
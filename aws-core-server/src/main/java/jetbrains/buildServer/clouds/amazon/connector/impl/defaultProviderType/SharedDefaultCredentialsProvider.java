@@ -0,0 +1,61 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl.defaultProviderType;
+
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+
+/**
+ * The default credentials provider chain shared by all the connections of the default provider type.
+ * The chain remembers the provider which has found the credentials, instance profile and container credentials are prefetched and refreshed
+ * in the background, so resolving them does not call the metadata endpoints. The provider is closed on server shutdown.
+ */
+public class SharedDefaultCredentialsProvider {
+
+  private volatile DefaultCredentialsProvider myProvider;
+  private volatile boolean myClosed;
+
+  public SharedDefaultCredentialsProvider(@NotNull final EventDispatcher<BuildServerListener> eventDispatcher) {
+    eventDispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        dispose();
+      }
+    });
+  }
+
+  @NotNull
+  public AwsCredentials resolveCredentials() {
+    return getProvider().resolveCredentials();
+  }
+
+  @NotNull
+  private DefaultCredentialsProvider getProvider() {
+    DefaultCredentialsProvider provider = myProvider;
+    if (provider == null) {
+      synchronized (this) {
+        if (myClosed) {
+          throw new IllegalStateException("The server is shutting down");
+        }
+        provider = myProvider;
+        if (provider == null) {
+          provider = DefaultCredentialsProvider.builder()
+                                               .asyncCredentialUpdateEnabled(true)
+                                               .build();
+          myProvider = provider;
+        }
+      }
+    }
+    return provider;
+  }
+
+  public synchronized void dispose() {
+    myClosed = true;
+    if (myProvider != null) {
+      myProvider.close();
+      myProvider = null;
+    }
+  }
+}
@@ -15,7 +15,9 @@ import jetbrains.buildServer.clouds.amazon.connector.featureDevelopment.AwsExter
 import jetbrains.buildServer.clouds.amazon.connector.featureDevelopment.ChosenAwsConnPropertiesProcessor;
 import jetbrains.buildServer.clouds.amazon.connector.impl.AwsCredentialsHolderCache;
 import jetbrains.buildServer.clouds.amazon.connector.impl.BaseAwsCredentialsBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.StsAsyncClientProvider;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.StsClientProvider;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.TeamCityStsClientBuilder;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.StsEndpointParamValidator;
@@ -24,6 +26,7 @@ import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
 import jetbrains.buildServer.serverSide.SecurityContextEx;
 import jetbrains.buildServer.util.amazon.AWSException;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import software.amazon.awssdk.core.exception.SdkException;
 
 import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAssumeIamRoleParams.*;
@@ -33,6 +36,7 @@ public class IamRoleCredentialsBuilder extends BaseAwsCredentialsBuilder {
   private final LinkedAwsConnectionProvider myLinkedConnectionProvider;
   private final AwsExternalIdsManager myAwsExternalIdsManager;
   private final StsClientProvider myStsClientProvider;
+  @Nullable private final StsAsyncClientProvider myStsAsyncClientProvider;
   private final AwsCredentialsHolderCache myCache;
   @NotNull private final SecurityContextEx mySecurityContext;
 
@@ -43,8 +47,20 @@ public class IamRoleCredentialsBuilder extends BaseAwsCredentialsBuilder {
                                    @NotNull final StsClientProvider stsClientProvider,
                                    @NotNull AwsCredentialsHolderCache cache,
                                    @NotNull SecurityContextEx securityContext) {
+    this(awsConnectorFactory, awsCredentialsFactory, linkedConnectionProvider, awsExternalIdsManager, stsClientProvider, null, cache, securityContext);
+  }
+
+  public IamRoleCredentialsBuilder(@NotNull final AwsConnectorFactory awsConnectorFactory,
+                                   @NotNull final AwsConnectionCredentialsFactory awsCredentialsFactory,
+                                   @NotNull final LinkedAwsConnectionProvider linkedConnectionProvider,
+                                   @NotNull final AwsExternalIdsManager awsExternalIdsManager,
+                                   @NotNull final StsClientProvider stsClientProvider,
+                                   @Nullable final StsAsyncClientProvider stsAsyncClientProvider,
+                                   @NotNull AwsCredentialsHolderCache cache,
+                                   @NotNull SecurityContextEx securityContext) {
     myLinkedConnectionProvider = linkedConnectionProvider;
     myStsClientProvider = stsClientProvider;
+    myStsAsyncClientProvider = stsAsyncClientProvider;
     myCache = cache;
     mySecurityContext = securityContext;
     awsConnectorFactory.registerAwsCredentialsBuilder(this);
@@ -61,6 +77,7 @@ public class IamRoleCredentialsBuilder extends BaseAwsCredentialsBuilder {
         featureDescriptor,
         myLinkedConnectionProvider,
         myStsClientProvider,
+        myStsAsyncClientProvider,
         myAwsExternalIdsManager,
         myCache,
         mySecurityContext
@@ -88,9 +105,11 @@ public class IamRoleCredentialsBuilder extends BaseAwsCredentialsBuilder {
         new InvalidProperty(IAM_ROLE_SESSION_NAME_PARAM, "The Session Name is not valid, must satisfy regular expression pattern: " + VALID_ROLE_SESSION_NAME_REGEX));
     }
 
-    if (!StsEndpointParamValidator.isValidStsEndpoint(properties.get(AwsAccessKeysParams.STS_ENDPOINT_PARAM))) {
+    final String stsEndpoint = properties.get(AwsAccessKeysParams.STS_ENDPOINT_PARAM);
+    if (!TeamCityStsClientBuilder.isAutoEndpoint(stsEndpoint) && !StsEndpointParamValidator.isValidStsEndpoint(stsEndpoint)) {
       invalidProperties.add(
-        new InvalidProperty(AwsAccessKeysParams.STS_ENDPOINT_PARAM, "The STS endpoint is not a valid URL, please, provide a valid URL"));
+        new InvalidProperty(AwsAccessKeysParams.STS_ENDPOINT_PARAM,
+                            "The STS endpoint is not a valid URL, please, provide a valid URL or \"" + TeamCityStsClientBuilder.STS_ENDPOINT_AUTO + "\""));
     }
 
     return invalidProperties;
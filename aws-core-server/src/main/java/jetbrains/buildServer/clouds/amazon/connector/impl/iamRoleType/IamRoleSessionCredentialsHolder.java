@@ -2,18 +2,23 @@
 
 package jetbrains.buildServer.clouds.amazon.connector.impl.iamRoleType;
 
+import java.time.Duration;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsData;
-import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
 import jetbrains.buildServer.clouds.amazon.connector.LinkedAwsConnectionProvider;
 import jetbrains.buildServer.clouds.amazon.connector.errors.AwsConnectorException;
 import jetbrains.buildServer.clouds.amazon.connector.featureDevelopment.AwsExternalIdsManager;
 import jetbrains.buildServer.clouds.amazon.connector.impl.AwsConnectionCredentials;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsConnectionCredentialsProvider;
 import jetbrains.buildServer.clouds.amazon.connector.impl.AwsCredentialsHolderCache;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsCredentialsRequestContext;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsSessionCredentialsHolder;
+import jetbrains.buildServer.clouds.amazon.connector.impl.SessionDurationTiers;
+import jetbrains.buildServer.clouds.amazon.connector.impl.StsRequestFingerprint;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.StsAsyncClientProvider;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.StsClientProvider;
-import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsSessionCredentialsParams;
-import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.ParamUtil;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.IOGuard;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
@@ -23,21 +28,29 @@ import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCreden
 import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
 import software.amazon.awssdk.services.sts.StsClient;
 import software.amazon.awssdk.services.sts.model.AssumeRoleRequest;
+import software.amazon.awssdk.services.sts.model.AssumeRoleResponse;
 import software.amazon.awssdk.services.sts.model.Credentials;
 
 import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAssumeIamRoleParams.IAM_ROLE_ARN_PARAM;
 import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAssumeIamRoleParams.IAM_ROLE_SESSION_NAME_PARAM;
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams.STS_ENDPOINT_PARAM;
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants.REGION_NAME_PARAM;
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsConnectionCredentialsConstants.*;
 
-public class IamRoleSessionCredentialsHolder implements AwsCredentialsHolder {
+public class IamRoleSessionCredentialsHolder implements AwsSessionCredentialsHolder {
 
   public static final String IAM_ROLE_ALLOW_ACCESS_TO_PARENT_PROJECTS = "teamcity.internal.aws.connection.iamRole.allowAccessToParentProjects";
   private final SProjectFeatureDescriptor myAwsConnectionFeature;
   private final LinkedAwsConnectionProvider myLinkedConnectionProvider;
   private final StsClientProvider myStsClientProvider;
+  @Nullable private final StsAsyncClientProvider myStsAsyncClientProvider;
   private final AwsExternalIdsManager myAwsExternalIdsManager;
   private final AwsCredentialsHolderCache myCache;
+  private final AwsConnectionCredentialsProvider myCredentialsProvider;
   @NotNull private final SecurityContextEx mySecurityContext;
 
 
@@ -47,12 +60,27 @@ public class IamRoleSessionCredentialsHolder implements AwsCredentialsHolder {
                                          @NotNull final AwsExternalIdsManager awsExternalIdsManager,
                                          @NotNull AwsCredentialsHolderCache cache,
                                          @NotNull SecurityContextEx securityContext) {
+    this(iamRoleConnectionFeature, linkedConnectionProvider, stsClientProvider, null, awsExternalIdsManager, cache, securityContext);
+  }
+
+  /**
+   * @param stsAsyncClientProvider sends the STS requests of {@link #getAwsCredentialsAsync}, if null they are sent from the calling thread
+   */
+  public IamRoleSessionCredentialsHolder(@NotNull final SProjectFeatureDescriptor iamRoleConnectionFeature,
+                                         @NotNull final LinkedAwsConnectionProvider linkedConnectionProvider,
+                                         @NotNull final StsClientProvider stsClientProvider,
+                                         @Nullable final StsAsyncClientProvider stsAsyncClientProvider,
+                                         @NotNull final AwsExternalIdsManager awsExternalIdsManager,
+                                         @NotNull AwsCredentialsHolderCache cache,
+                                         @NotNull SecurityContextEx securityContext) {
     myAwsConnectionFeature = iamRoleConnectionFeature;
     myLinkedConnectionProvider = linkedConnectionProvider;
     myStsClientProvider = stsClientProvider;
+    myStsAsyncClientProvider = stsAsyncClientProvider;
     myAwsExternalIdsManager = awsExternalIdsManager;
     myCache = cache;
     mySecurityContext = securityContext;
+    myCredentialsProvider = new AwsConnectionCredentialsProvider(cache, iamRoleConnectionFeature, this::requestSession);
   }
 
   @Nullable
@@ -92,6 +120,30 @@ public class IamRoleSessionCredentialsHolder implements AwsCredentialsHolder {
     return myCache.getAwsCredentials(myAwsConnectionFeature, this::requestSession);
   }
 
+  @NotNull
+  @Override
+  public AwsCredentialsData getAwsCredentials(@NotNull Duration requiredValidity) throws ConnectionCredentialsException {
+    return myCache.getAwsCredentials(myAwsConnectionFeature, this::requestSession, requiredValidity);
+  }
+
+  @NotNull
+  @Override
+  public CompletableFuture<AwsCredentialsData> getAwsCredentialsAsync() {
+    return myCache.getAwsCredentialsAsync(myAwsConnectionFeature, this::requestSession, this::requestSessionAsync);
+  }
+
+  @NotNull
+  @Override
+  public CompletableFuture<AwsCredentialsData> getAwsCredentialsAsync(@NotNull Duration requiredValidity) {
+    return myCache.getAwsCredentialsAsync(myAwsConnectionFeature, this::requestSession, this::requestSessionAsync, requiredValidity);
+  }
+
+  @NotNull
+  @Override
+  public AwsCredentialsProvider toCredentialsProvider() {
+    return myCredentialsProvider;
+  }
+
   @Override
   public void refreshCredentials() {
     //TODO: TW-78235 refactor other parts of AWS Core plugin not to use refreshing logic
@@ -106,30 +158,56 @@ public class IamRoleSessionCredentialsHolder implements AwsCredentialsHolder {
 
 
   private Credentials requestSession() throws ConnectionCredentialsException {
-    // TW-98038 Credentials must be requested unchecked because we need to access the project of the connection
-    final ConnectionCredentials connectionCredentials;
-    if (TeamCityProperties.getBooleanOrTrue(IAM_ROLE_ALLOW_ACCESS_TO_PARENT_PROJECTS)) {
-      connectionCredentials = mySecurityContext.runAsSystemUnchecked(
-        () -> myLinkedConnectionProvider.getLinkedConnectionCredentials(myAwsConnectionFeature));
-    } else {
-      connectionCredentials = myLinkedConnectionProvider.getLinkedConnectionCredentials(myAwsConnectionFeature);
+    // the principal credentials are only used to assume the role, the validity required from the role session does not apply to them
+    final ConnectionCredentials connectionCredentials = AwsCredentialsRequestContext.runWithoutRequiredValidity(this::getPrincipalCredentials);
+    final AssumeRoleRequest request = createAssumeRoleRequest(connectionCredentials);
+    final AwsRequestOverrideConfiguration overrideConfiguration = request.overrideConfiguration().get();
+
+    return myCache.getSharedSession(getRequestFingerprint(connectionCredentials, request), () -> {
+      return myCache.getStsRequestDispatcher().call(myAwsConnectionFeature, endpointProperties -> {
+        StsClient sts = myStsClientProvider.getClient(endpointProperties);
+        // the role chain shares the deadline of the lookup, every hop gets only the time which is left
+        AssumeRoleRequest requestWithTimeout = request.toBuilder()
+                                                      .overrideConfiguration(AwsCredentialsRequestContext.withRemainingTime(overrideConfiguration))
+                                                      .build();
+        return IOGuard.allowNetworkCall(() -> sts.assumeRole(requestWithTimeout)).credentials();
+      });
+    });
+  }
+
+  /**
+   * The principal credentials are looked up on the calling thread, only the request to assume the role does not block it
+   */
+  private CompletableFuture<Credentials> requestSessionAsync() throws ConnectionCredentialsException {
+    if (myStsAsyncClientProvider == null) {
+      return CompletableFuture.completedFuture(requestSession());
     }
-    StsClient sts = myStsClientProvider
-      .getClientWithCredentials(
-        new AwsConnectionCredentials(
-          connectionCredentials
-        ),
-        myAwsConnectionFeature.getParameters()
-      );
 
+    final ConnectionCredentials connectionCredentials = AwsCredentialsRequestContext.runWithoutRequiredValidity(this::getPrincipalCredentials);
+    final AssumeRoleRequest request = createAssumeRoleRequest(connectionCredentials);
+    final AwsRequestOverrideConfiguration overrideConfiguration = request.overrideConfiguration().get();
+
+    return myCache.getStsRequestDispatcher().callAsync(myAwsConnectionFeature, endpointProperties -> {
+      AssumeRoleRequest requestWithTimeout = request.toBuilder()
+                                                    .overrideConfiguration(AwsCredentialsRequestContext.withRemainingTime(overrideConfiguration))
+                                                    .build();
+      return myStsAsyncClientProvider.getClient(endpointProperties).assumeRole(requestWithTimeout).thenApply(AssumeRoleResponse::credentials);
+    });
+  }
+
+  @NotNull
+  private AssumeRoleRequest createAssumeRoleRequest(@NotNull final ConnectionCredentials connectionCredentials) {
     Map<String, String> connectionProperties = myAwsConnectionFeature.getParameters();
+    AwsRequestOverrideConfiguration overrideConfiguration = AwsRequestOverrideConfiguration.builder()
+                                                                                           .credentialsProvider(new AwsConnectionCredentials(connectionCredentials).toAWSCredentialsProvider())
+                                                                                           .build();
     AssumeRoleRequest.Builder assumeRoleRequest = AssumeRoleRequest.builder()
                                                                    .roleArn(connectionProperties.get(IAM_ROLE_ARN_PARAM))
-                                                                   .roleSessionName(connectionProperties.get(IAM_ROLE_SESSION_NAME_PARAM));
+                                                                   .roleSessionName(connectionProperties.get(IAM_ROLE_SESSION_NAME_PARAM))
+                                                                   .overrideConfiguration(overrideConfiguration);
 
-    String sessionDurationParam = connectionProperties.get(AwsSessionCredentialsParams.SESSION_DURATION_PARAM);
-    if (sessionDurationParam != null) {
-      int sessionDurationMinutes = ParamUtil.getSessionDurationMinutes(connectionProperties);
+    Integer sessionDurationMinutes = SessionDurationTiers.getEffectiveSessionDurationMinutes(connectionProperties);
+    if (sessionDurationMinutes != null) {
       assumeRoleRequest.durationSeconds(sessionDurationMinutes * 60);
     }
 
@@ -137,7 +215,34 @@ public class IamRoleSessionCredentialsHolder implements AwsCredentialsHolder {
     if (externalId != null) {
       assumeRoleRequest.externalId(externalId);
     }
+    return assumeRoleRequest.build();
+  }
+
+  @NotNull
+  private String getRequestFingerprint(@NotNull final ConnectionCredentials connectionCredentials, @NotNull final AssumeRoleRequest request) {
+    Map<String, String> connectionProperties = myAwsConnectionFeature.getParameters();
+    Map<String, String> principalProperties = connectionCredentials.getProperties();
+    return StsRequestFingerprint.of(
+      "AssumeRole",
+      principalProperties.get(ACCESS_KEY_ID),
+      principalProperties.get(SECRET_ACCESS_KEY),
+      principalProperties.get(SESSION_TOKEN),
+      request.roleArn(),
+      request.roleSessionName(),
+      request.externalId(),
+      request.durationSeconds() != null ? String.valueOf(request.durationSeconds() / 60) : null,
+      connectionProperties.get(STS_ENDPOINT_PARAM),
+      connectionProperties.get(REGION_NAME_PARAM)
+    );
+  }
 
-    return IOGuard.allowNetworkCall(() -> sts.assumeRole(assumeRoleRequest.build())).credentials();
+  @NotNull
+  private ConnectionCredentials getPrincipalCredentials() throws ConnectionCredentialsException {
+    // TW-98038 Credentials must be requested unchecked because we need to access the project of the connection
+    if (TeamCityProperties.getBooleanOrTrue(IAM_ROLE_ALLOW_ACCESS_TO_PARENT_PROJECTS)) {
+      return mySecurityContext.runAsSystemUnchecked(
+        () -> myLinkedConnectionProvider.getLinkedConnectionCredentials(myAwsConnectionFeature));
+    }
+    return myLinkedConnectionProvider.getLinkedConnectionCredentials(myAwsConnectionFeature);
   }
 }
\ No newline at end of file
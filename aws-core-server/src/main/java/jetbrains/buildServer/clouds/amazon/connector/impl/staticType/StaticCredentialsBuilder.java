@@ -8,7 +8,9 @@ import jetbrains.buildServer.clouds.amazon.connector.AwsConnectorFactory;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
 import jetbrains.buildServer.clouds.amazon.connector.impl.AwsCredentialsHolderCache;
 import jetbrains.buildServer.clouds.amazon.connector.impl.BaseAwsCredentialsBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.StsAsyncClientProvider;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.StsClientProvider;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.TeamCityStsClientBuilder;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.*;
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.serverSide.InvalidProperty;
@@ -17,17 +19,28 @@ import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionCredent
 import jetbrains.buildServer.util.StringUtil;
 import org.apache.commons.lang.BooleanUtils;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class StaticCredentialsBuilder extends BaseAwsCredentialsBuilder {
 
   private final StsClientProvider myStsClientProvider;
+  @Nullable private final StsAsyncClientProvider myStsAsyncClientProvider;
   private final AwsCredentialsHolderCache myCache;
 
   public StaticCredentialsBuilder(@NotNull final AwsConnectorFactory awsConnectorFactory,
                                   @NotNull final AwsConnectionCredentialsFactory awsCredentialsFactory,
                                   @NotNull final StsClientProvider stsClientProvider,
                                   @NotNull AwsCredentialsHolderCache cache) {
+    this(awsConnectorFactory, awsCredentialsFactory, stsClientProvider, null, cache);
+  }
+
+  public StaticCredentialsBuilder(@NotNull final AwsConnectorFactory awsConnectorFactory,
+                                  @NotNull final AwsConnectionCredentialsFactory awsCredentialsFactory,
+                                  @NotNull final StsClientProvider stsClientProvider,
+                                  @Nullable final StsAsyncClientProvider stsAsyncClientProvider,
+                                  @NotNull AwsCredentialsHolderCache cache) {
     myCache = cache;
+    myStsAsyncClientProvider = stsAsyncClientProvider;
     awsConnectorFactory.registerAwsCredentialsBuilder(this);
     awsCredentialsFactory.registerAwsCredentialsBuilder(this);
 
@@ -66,10 +79,13 @@ public class StaticCredentialsBuilder extends BaseAwsCredentialsBuilder {
       invalidProperties.add(new InvalidProperty(AwsSessionCredentialsParams.SESSION_DURATION_PARAM, "Session duration is not valid"));
     }
 
+    final String stsEndpoint = properties.get(AwsAccessKeysParams.STS_ENDPOINT_PARAM);
     if (BooleanUtils.toBoolean(properties.get(AwsAccessKeysParams.SESSION_CREDENTIALS_PARAM)) &&
-        !StsEndpointParamValidator.isValidStsEndpoint(properties.get(AwsAccessKeysParams.STS_ENDPOINT_PARAM))) {
+        !TeamCityStsClientBuilder.isAutoEndpoint(stsEndpoint) &&
+        !StsEndpointParamValidator.isValidStsEndpoint(stsEndpoint)) {
       invalidProperties.add(
-        new InvalidProperty(AwsAccessKeysParams.STS_ENDPOINT_PARAM, "The STS endpoint is not a valid URL, please, provide a valid URL"));
+        new InvalidProperty(AwsAccessKeysParams.STS_ENDPOINT_PARAM,
+                            "The STS endpoint is not a valid URL, please, provide a valid URL or \"" + TeamCityStsClientBuilder.STS_ENDPOINT_AUTO + "\""));
     }
 
     return invalidProperties;
@@ -99,6 +115,7 @@ public class StaticCredentialsBuilder extends BaseAwsCredentialsBuilder {
       featureDescriptor,
       getBasicCredentialsProvider(featureDescriptor),
       myStsClientProvider,
+      myStsAsyncClientProvider,
       myCache
     );
   }
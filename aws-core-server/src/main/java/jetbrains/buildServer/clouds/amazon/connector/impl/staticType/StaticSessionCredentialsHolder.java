@@ -1,11 +1,19 @@
 package jetbrains.buildServer.clouds.amazon.connector.impl.staticType;
 
+import java.time.Duration;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsData;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
 import jetbrains.buildServer.clouds.amazon.connector.impl.AwsConnectionCredentials;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsConnectionCredentialsProvider;
 import jetbrains.buildServer.clouds.amazon.connector.impl.AwsCredentialsHolderCache;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsCredentialsRequestContext;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsSessionCredentialsHolder;
+import jetbrains.buildServer.clouds.amazon.connector.impl.SessionDurationTiers;
+import jetbrains.buildServer.clouds.amazon.connector.impl.StsRequestFingerprint;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.StsAsyncClientProvider;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.StsClientProvider;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.ParamUtil;
 import jetbrains.buildServer.serverSide.IOGuard;
@@ -13,24 +21,45 @@ import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
 import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
 import software.amazon.awssdk.services.sts.StsClient;
 import software.amazon.awssdk.services.sts.model.Credentials;
 import software.amazon.awssdk.services.sts.model.GetSessionTokenRequest;
+import software.amazon.awssdk.services.sts.model.GetSessionTokenResponse;
 
-public class StaticSessionCredentialsHolder implements AwsCredentialsHolder {
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams.STS_ENDPOINT_PARAM;
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants.REGION_NAME_PARAM;
+
+public class StaticSessionCredentialsHolder implements AwsSessionCredentialsHolder {
   private final SProjectFeatureDescriptor myAwsConnectionFeature;
   private final AwsCredentialsHolder myBasicCredentialsHolder;
   private final StsClientProvider myStsClientProvider;
+  @Nullable private final StsAsyncClientProvider myStsAsyncClientProvider;
   private final AwsCredentialsHolderCache myCache;
+  private final AwsConnectionCredentialsProvider myCredentialsProvider;
 
   public StaticSessionCredentialsHolder(@NotNull final SProjectFeatureDescriptor awsConnectionFeature,
                                         @NotNull final AwsCredentialsHolder basicCredentialsHolder,
                                         @NotNull final StsClientProvider stsClientProvider,
                                         @NotNull AwsCredentialsHolderCache cache) {
+    this(awsConnectionFeature, basicCredentialsHolder, stsClientProvider, null, cache);
+  }
+
+  /**
+   * @param stsAsyncClientProvider sends the STS requests of {@link #getAwsCredentialsAsync}, if null they are sent from the calling thread
+   */
+  public StaticSessionCredentialsHolder(@NotNull final SProjectFeatureDescriptor awsConnectionFeature,
+                                        @NotNull final AwsCredentialsHolder basicCredentialsHolder,
+                                        @NotNull final StsClientProvider stsClientProvider,
+                                        @Nullable final StsAsyncClientProvider stsAsyncClientProvider,
+                                        @NotNull AwsCredentialsHolderCache cache) {
     myAwsConnectionFeature = awsConnectionFeature;
     myBasicCredentialsHolder = basicCredentialsHolder;
     myStsClientProvider = stsClientProvider;
+    myStsAsyncClientProvider = stsAsyncClientProvider;
     myCache = cache;
+    myCredentialsProvider = new AwsConnectionCredentialsProvider(cache, awsConnectionFeature, this::requestSession);
   }
 
   @NotNull
@@ -39,6 +68,30 @@ public class StaticSessionCredentialsHolder implements AwsCredentialsHolder {
     return myCache.getAwsCredentials(myAwsConnectionFeature, this::requestSession);
   }
 
+  @NotNull
+  @Override
+  public AwsCredentialsData getAwsCredentials(@NotNull Duration requiredValidity) throws ConnectionCredentialsException {
+    return myCache.getAwsCredentials(myAwsConnectionFeature, this::requestSession, requiredValidity);
+  }
+
+  @NotNull
+  @Override
+  public CompletableFuture<AwsCredentialsData> getAwsCredentialsAsync() {
+    return myCache.getAwsCredentialsAsync(myAwsConnectionFeature, this::requestSession, this::requestSessionAsync);
+  }
+
+  @NotNull
+  @Override
+  public CompletableFuture<AwsCredentialsData> getAwsCredentialsAsync(@NotNull Duration requiredValidity) {
+    return myCache.getAwsCredentialsAsync(myAwsConnectionFeature, this::requestSession, this::requestSessionAsync, requiredValidity);
+  }
+
+  @NotNull
+  @Override
+  public AwsCredentialsProvider toCredentialsProvider() {
+    return myCredentialsProvider;
+  }
+
   @Override
   public void refreshCredentials() {
     //TODO: TW-78235 refactor other parts of AWS Core plugin not to use refreshing logic
@@ -53,21 +106,56 @@ public class StaticSessionCredentialsHolder implements AwsCredentialsHolder {
 
   private Credentials requestSession() throws ConnectionCredentialsException {
     final Map<String, String> connectionProperties = myAwsConnectionFeature.getParameters();
+    final AwsCredentialsData basicCredentials = myBasicCredentialsHolder.getAwsCredentials();
+    final GetSessionTokenRequest getSessionTokenRequest = createGetSessionTokenRequest(basicCredentials);
+    final AwsRequestOverrideConfiguration overrideConfiguration = getSessionTokenRequest.overrideConfiguration().get();
+
+    String requestFingerprint = StsRequestFingerprint.of(
+      "GetSessionToken",
+      basicCredentials.getAccessKeyId(),
+      basicCredentials.getSecretAccessKey(),
+      String.valueOf(getSessionTokenRequest.durationSeconds() / 60),
+      connectionProperties.get(STS_ENDPOINT_PARAM),
+      connectionProperties.get(REGION_NAME_PARAM)
+    );
+
+    return myCache.getSharedSession(requestFingerprint, () -> {
+      return myCache.getStsRequestDispatcher().call(myAwsConnectionFeature, endpointProperties -> {
+        StsClient sts = myStsClientProvider.getClient(endpointProperties);
+        GetSessionTokenRequest requestWithTimeout = getSessionTokenRequest.toBuilder()
+          .overrideConfiguration(AwsCredentialsRequestContext.withRemainingTime(overrideConfiguration))
+          .build();
+        return IOGuard.allowNetworkCall(() -> sts.getSessionToken(requestWithTimeout)).credentials();
+      });
+    });
+  }
+
+  private CompletableFuture<Credentials> requestSessionAsync() throws ConnectionCredentialsException {
+    if (myStsAsyncClientProvider == null) {
+      return CompletableFuture.completedFuture(requestSession());
+    }
+
+    final GetSessionTokenRequest getSessionTokenRequest = createGetSessionTokenRequest(myBasicCredentialsHolder.getAwsCredentials());
+    final AwsRequestOverrideConfiguration overrideConfiguration = getSessionTokenRequest.overrideConfiguration().get();
+    return myCache.getStsRequestDispatcher().callAsync(myAwsConnectionFeature, endpointProperties -> {
+      GetSessionTokenRequest requestWithTimeout = getSessionTokenRequest.toBuilder()
+        .overrideConfiguration(AwsCredentialsRequestContext.withRemainingTime(overrideConfiguration))
+        .build();
+      return myStsAsyncClientProvider.getClient(endpointProperties).getSessionToken(requestWithTimeout).thenApply(GetSessionTokenResponse::credentials);
+    });
+  }
 
-    StsClient sts = myStsClientProvider
-      .getClientWithCredentials(
-        new AwsConnectionCredentials(
-          myBasicCredentialsHolder.getAwsCredentials(),
-          connectionProperties
-        ),
-        connectionProperties
-      );
-
-    int sessionDurationMinutes = ParamUtil.getSessionDurationMinutes(connectionProperties);
-    GetSessionTokenRequest getSessionTokenRequest = GetSessionTokenRequest.builder()
+  @NotNull
+  private GetSessionTokenRequest createGetSessionTokenRequest(@NotNull final AwsCredentialsData basicCredentials) {
+    final Map<String, String> connectionProperties = myAwsConnectionFeature.getParameters();
+    Integer effectiveSessionDuration = SessionDurationTiers.getEffectiveSessionDurationMinutes(connectionProperties);
+    int sessionDurationMinutes = effectiveSessionDuration != null ? effectiveSessionDuration : ParamUtil.getSessionDurationMinutes(connectionProperties);
+    AwsRequestOverrideConfiguration overrideConfiguration = AwsRequestOverrideConfiguration.builder()
+      .credentialsProvider(new AwsConnectionCredentials(basicCredentials, connectionProperties).toAWSCredentialsProvider())
+      .build();
+    return GetSessionTokenRequest.builder()
       .durationSeconds(sessionDurationMinutes * 60)
+      .overrideConfiguration(overrideConfiguration)
       .build();
-
-    return IOGuard.allowNetworkCall(() -> sts.getSessionToken(getSessionTokenRequest)).credentials();
   }
 }
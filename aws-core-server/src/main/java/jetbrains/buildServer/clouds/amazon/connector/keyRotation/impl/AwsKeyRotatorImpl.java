@@ -5,6 +5,7 @@ package jetbrains.buildServer.clouds.amazon.connector.keyRotation.impl;
 import jetbrains.buildServer.clouds.amazon.connector.errors.KeyRotationException;
 import jetbrains.buildServer.clouds.amazon.connector.keyRotation.AwsKeyRotator;
 import jetbrains.buildServer.clouds.amazon.connector.keyRotation.RotateKeyApi;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.AwsSdkHttpClients;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.ParamUtil;
 import jetbrains.buildServer.log.Loggers;
@@ -12,6 +13,7 @@ import jetbrains.buildServer.serverSide.*;
 import jetbrains.buildServer.serverSide.oauth.OAuthConnectionDescriptor;
 import jetbrains.buildServer.serverSide.oauth.OAuthConnectionsManager;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 public class AwsKeyRotatorImpl implements AwsKeyRotator {
 
@@ -20,16 +22,31 @@ public class AwsKeyRotatorImpl implements AwsKeyRotator {
   private final SecurityContextEx mySecurityContext;
   private final ConfigActionFactory myConfigActionFactory;
   private final OldKeysCleaner myOldKeysCleaner;
+  @Nullable
+  private final AwsSdkHttpClients myHttpClients;
 
+  /**
+   * @deprecated the rotation clients get their own HTTP clients, use the constructor accepting {@link AwsSdkHttpClients}
+   */
+  @Deprecated
   public AwsKeyRotatorImpl(@NotNull final OAuthConnectionsManager oAuthConnectionsManager,
                            @NotNull final SecurityContextEx securityContext,
                            @NotNull final ConfigActionFactory configActionFactory,
                            @NotNull final OldKeysCleaner oldKeysCleaner) {
+    this(oAuthConnectionsManager, securityContext, configActionFactory, oldKeysCleaner, null);
+  }
+
+  public AwsKeyRotatorImpl(@NotNull final OAuthConnectionsManager oAuthConnectionsManager,
+                           @NotNull final SecurityContextEx securityContext,
+                           @NotNull final ConfigActionFactory configActionFactory,
+                           @NotNull final OldKeysCleaner oldKeysCleaner,
+                           @Nullable final AwsSdkHttpClients httpClients) {
     myOAuthConnectionsManager = oAuthConnectionsManager;
     mySecurityContext = securityContext;
     myConfigActionFactory = configActionFactory;
 
     myOldKeysCleaner = oldKeysCleaner;
+    myHttpClients = httpClients;
   }
 
   public void rotateConnectionKeys(@NotNull final String connectionId, @NotNull final SProject project) throws KeyRotationException {
@@ -54,6 +71,7 @@ public class AwsKeyRotatorImpl implements AwsKeyRotator {
       myConfigActionFactory,
       awsConnectionDescriptor,
       project,
+      myHttpClients,
       ROTATE_TIMEOUT_SEC
     );
   }
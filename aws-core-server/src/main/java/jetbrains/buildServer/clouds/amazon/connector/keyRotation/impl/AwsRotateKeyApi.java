@@ -7,7 +7,7 @@ import java.util.Map;
 import jetbrains.buildServer.Used;
 import jetbrains.buildServer.clouds.amazon.connector.errors.KeyRotationException;
 import jetbrains.buildServer.clouds.amazon.connector.keyRotation.RotateKeyApi;
-import jetbrains.buildServer.clouds.amazon.connector.utils.clients.ClientConfigurationBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.AwsSdkHttpClients;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
 import jetbrains.buildServer.log.Loggers;
@@ -21,6 +21,7 @@ import jetbrains.buildServer.serverSide.oauth.OAuthConnectionsManager;
 import jetbrains.buildServer.users.SUser;
 import jetbrains.buildServer.util.retry.Retrier;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
@@ -45,12 +46,26 @@ public class AwsRotateKeyApi implements RotateKeyApi {
   private final AwsCredentialsProvider myPreviousCredentials;
   private AwsCredentialsProvider myNewCredentials;
 
+  /**
+   * @deprecated the clients get their own HTTP clients, use the constructor accepting {@link AwsSdkHttpClients}
+   */
+  @Deprecated
   public AwsRotateKeyApi(@NotNull final OAuthConnectionsManager oAuthConnectionsManager,
                          @NotNull final SecurityContextEx securityContext,
                          @NotNull final ConfigActionFactory configActionFactory,
                          @NotNull final OAuthConnectionDescriptor awsConnectionDescriptor,
                          @NotNull final SProject project,
                          final int rotateTimeoutSec) {
+    this(oAuthConnectionsManager, securityContext, configActionFactory, awsConnectionDescriptor, project, null, rotateTimeoutSec);
+  }
+
+  public AwsRotateKeyApi(@NotNull final OAuthConnectionsManager oAuthConnectionsManager,
+                         @NotNull final SecurityContextEx securityContext,
+                         @NotNull final ConfigActionFactory configActionFactory,
+                         @NotNull final OAuthConnectionDescriptor awsConnectionDescriptor,
+                         @NotNull final SProject project,
+                         @Nullable final AwsSdkHttpClients httpClients,
+                         final int rotateTimeoutSec) {
     myOAuthConnectionsManager = oAuthConnectionsManager;
     mySecurityContext = securityContext;
     myConfigActionFactory = configActionFactory;
@@ -62,23 +77,14 @@ public class AwsRotateKeyApi implements RotateKeyApi {
       .get(AwsCloudConnectorConstants.REGION_NAME_PARAM);
     Region region = Region.of(connectionRegion);
 
-    myIam = IamClient.builder()
+    myIam = AwsSdkHttpClients.configure(httpClients, IamClient.builder(), AwsSdkHttpClients.IAM)
       .region(region)
       .defaultsMode(DefaultsMode.STANDARD)
-      .httpClientBuilder(ClientConfigurationBuilder.createClientBuilder("iam"))
-      .overrideConfiguration(
-        ClientConfigurationBuilder.clientOverrideConfigurationBuilder()
-          .build())
       .build();
 
-    mySts = StsClient.builder()
+    mySts = AwsSdkHttpClients.configure(httpClients, StsClient.builder(), AwsSdkHttpClients.STS)
       .defaultsMode(DefaultsMode.STANDARD)
       .region(region)
-      .httpClientBuilder(ClientConfigurationBuilder.createClientBuilder("sts"))
-      .overrideConfiguration(
-        ClientConfigurationBuilder.clientOverrideConfigurationBuilder()
-          .build()
-      )
       .build();
 
     myPreviousCredentials = StaticCredentialsProvider.create(
@@ -0,0 +1,20 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
+
+import jetbrains.buildServer.clouds.amazon.connector.errors.AwsConnectorException;
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.core.SdkClient;
+
+/**
+ * Shared AWS SDK clients of the AWS connections.
+ * A client is configured with the region of the connection and the shared HTTP client of its service,
+ * the credentials are resolved from the connection for each request, so the client stays usable until the connection changes.
+ */
+public interface AwsConnectionClientProvider {
+
+  /**
+   * @param clientClass interface of a synchronous AWS SDK client, e.g. {@code S3Client.class}
+   * @return the shared client, closing it has no effect. Pooled clients are closed when their connection is changed or removed and on server shutdown
+   */
+  @NotNull
+  <C extends SdkClient> C getClient(@NotNull final String awsConnectionId, @NotNull final Class<C> clientClass) throws AwsConnectorException;
+}
@@ -0,0 +1,300 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.oauth.OAuthConstants;
+import jetbrains.buildServer.serverSide.oauth.aws.AwsConnectionProvider;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.executors.ExecutorsFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import software.amazon.awssdk.awscore.client.builder.AwsClientBuilder;
+import software.amazon.awssdk.core.client.builder.SdkSyncClientBuilder;
+import software.amazon.awssdk.http.*;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.ProxyConfiguration;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricCollector;
+import software.amazon.awssdk.metrics.NoOpMetricCollector;
+
+/**
+ * Keeps one HTTP client with its connection pool per endpoint family for all AWS SDK clients created by the plugin,
+ * and one non-blocking Netty client per family for the asynchronous SDK clients.
+ * SDK clients do not close an HTTP client they have been given, the shared clients are closed on server shutdown.
+ */
+public class AwsSdkHttpClients {
+  public static final String MAX_CONNECTIONS = "teamcity.internal.aws.connection.httpClient.maxConnections";
+  public static final String CONNECTION_MAX_IDLE_TIME_SECONDS = "teamcity.internal.aws.connection.httpClient.connectionMaxIdleTimeInSeconds";
+  public static final String STS_PREWARM_ENABLED = "teamcity.internal.aws.connection.httpClient.stsPrewarm.enabled";
+  private static final int MAX_CONNECTIONS_DEFAULT = 50;
+  private static final int CONNECTION_MAX_IDLE_TIME_SECONDS_DEFAULT = 60;
+
+  public static final String STS = "sts";
+  public static final String IAM = "iam";
+  public static final String EC2 = "ec2";
+
+  private static final Logger LOG = Logger.getInstance(AwsSdkHttpClients.class.getName());
+
+  private final ConcurrentMap<String, SharedHttpClient> myClients = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, SdkAsyncHttpClient> myAsyncClients = new ConcurrentHashMap<>();
+  private final ProjectManager myProjectManager;
+
+  public AwsSdkHttpClients(@NotNull final ProjectManager projectManager,
+                           @NotNull final EventDispatcher<BuildServerListener> eventDispatcher) {
+    myProjectManager = projectManager;
+
+    eventDispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverStartup() {
+        if (TeamCityProperties.getBoolean(STS_PREWARM_ENABLED)) {
+          final ScheduledExecutorService executor = ExecutorsFactory.newFixedScheduledDaemonExecutor("AWS STS connections pre-warming", 1);
+          executor.submit(() -> prewarmStsConnections());
+          executor.shutdown();
+        }
+      }
+
+      @Override
+      public void serverShutdown() {
+        dispose();
+      }
+    });
+  }
+
+  /**
+   * Sets the shared HTTP client of the family to the client builder
+   */
+  @NotNull
+  public <B extends AwsClientBuilder<B, C> & SdkSyncClientBuilder<B, C>, C> B configure(@NotNull final B clientBuilder, @NotNull final String family) {
+    return clientBuilder.httpClient(getHttpClient(family));
+  }
+
+  /**
+   * Same as {@link #configure} if the shared clients are given, otherwise the client builder gets an HTTP client of its own,
+   * as it did before the clients were shared
+   */
+  @NotNull
+  public static <B extends AwsClientBuilder<B, C> & SdkSyncClientBuilder<B, C>, C> B configure(@Nullable final AwsSdkHttpClients httpClients,
+                                                                                              @NotNull final B clientBuilder,
+                                                                                              @NotNull final String family) {
+    if (httpClients != null) {
+      return httpClients.configure(clientBuilder, family);
+    }
+    return clientBuilder
+      .httpClientBuilder(ClientConfigurationBuilder.createClientBuilder(family))
+      .overrideConfiguration(ClientConfigurationBuilder.clientOverrideConfigurationBuilder()
+                                                       .build());
+  }
+
+  @NotNull
+  public SdkHttpClient getHttpClient(@NotNull final String family) {
+    return myClients.computeIfAbsent(family, f -> new SharedHttpClient(createHttpClient(f)));
+  }
+
+  /**
+   * @return connection pool statistics of the families used since the server start, as reported by the last request of each family
+   */
+  @NotNull
+  public Map<String, PoolStatistics> getPoolStatistics() {
+    final Map<String, PoolStatistics> result = new TreeMap<>();
+    myClients.forEach((family, client) -> result.put(family, client.getStatistics()));
+    return result;
+  }
+
+  @NotNull
+  private static SdkHttpClient createHttpClient(@NotNull final String family) {
+    final SdkHttpClient.Builder<?> builder = ClientConfigurationBuilder.createClientBuilder(family);
+    if (builder instanceof ApacheHttpClient.Builder) {
+      ((ApacheHttpClient.Builder)builder)
+        .maxConnections(TeamCityProperties.getInteger(MAX_CONNECTIONS, MAX_CONNECTIONS_DEFAULT))
+        .connectionMaxIdleTime(Duration.ofSeconds(TeamCityProperties.getInteger(CONNECTION_MAX_IDLE_TIME_SECONDS, CONNECTION_MAX_IDLE_TIME_SECONDS_DEFAULT)))
+        .useIdleConnectionReaper(true);
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return the shared non-blocking HTTP client of the family, its requests do not occupy a thread while waiting for the response
+   */
+  @NotNull
+  public SdkAsyncHttpClient getAsyncHttpClient(@NotNull final String family) {
+    return myAsyncClients.computeIfAbsent(family, f -> createAsyncHttpClient());
+  }
+
+  @NotNull
+  private static SdkAsyncHttpClient createAsyncHttpClient() {
+    return NettyNioAsyncHttpClient.builder()
+                                  .maxConcurrency(TeamCityProperties.getInteger(MAX_CONNECTIONS, MAX_CONNECTIONS_DEFAULT))
+                                  .connectionMaxIdleTime(Duration.ofSeconds(TeamCityProperties.getInteger(CONNECTION_MAX_IDLE_TIME_SECONDS, CONNECTION_MAX_IDLE_TIME_SECONDS_DEFAULT)))
+                                  // the proxy of the server is set in the JVM system properties
+                                  .proxyConfiguration(ProxyConfiguration.builder()
+                                                                        .useSystemPropertyValues(true)
+                                                                        .build())
+                                  .build();
+  }
+
+  void prewarmStsConnections() {
+    final Set<URI> endpoints = new LinkedHashSet<>();
+    final SProject rootProject = myProjectManager.getRootProject();
+    final List<SProject> projects = new ArrayList<>(rootProject.getProjects());
+    projects.add(rootProject);
+    for (SProject project : projects) {
+      for (SProjectFeatureDescriptor feature : project.getOwnFeaturesOfType(OAuthConstants.FEATURE_TYPE)) {
+        if (AwsConnectionProvider.TYPE.equals(feature.getParameters().get(OAuthConstants.OAUTH_TYPE_PARAM))) {
+          endpoints.add(TeamCityStsClientBuilder.getEndpoint(feature.getParameters()).getFirst());
+        }
+      }
+    }
+
+    final SdkHttpClient client = getHttpClient(STS);
+    for (URI endpoint : endpoints) {
+      // any response will do, the connection stays in the pool after the TLS handshake
+      final SdkHttpFullRequest request = SdkHttpFullRequest.builder()
+                                                           .method(SdkHttpMethod.GET)
+                                                           .uri(endpoint)
+                                                           .build();
+      try {
+        final HttpExecuteResponse response = client.prepareRequest(HttpExecuteRequest.builder().request(request).build()).call();
+        final Optional<AbortableInputStream> body = response.responseBody();
+        if (body.isPresent()) {
+          // closing the remaining content returns the connection to the pool
+          body.get().close();
+        }
+        LOG.debug("Pre-warmed the connection to the STS endpoint " + endpoint);
+      } catch (IOException | RuntimeException e) {
+        LOG.warnAndDebugDetails("Failed to pre-warm the connection to the STS endpoint " + endpoint + ": " + e.getMessage(), e);
+      }
+    }
+  }
+
+  void dispose() {
+    for (String family : new ArrayList<>(myClients.keySet())) {
+      final SharedHttpClient client = myClients.remove(family);
+      if (client != null) {
+        client.close();
+      }
+    }
+    for (String family : new ArrayList<>(myAsyncClients.keySet())) {
+      final SdkAsyncHttpClient client = myAsyncClients.remove(family);
+      if (client != null) {
+        client.close();
+      }
+    }
+  }
+
+  /**
+   * Reads the connection pool statistics the HTTP client reports to the metric collector of each request.
+   * The SDK clients of the plugin publish no metrics, their requests get a collector of their own.
+   */
+  private static final class SharedHttpClient implements SdkHttpClient {
+    private final SdkHttpClient myClient;
+    private volatile PoolStatistics myStatistics = new PoolStatistics(0, 0, 0, 0);
+
+    private SharedHttpClient(@NotNull final SdkHttpClient client) {
+      myClient = client;
+    }
+
+    @NotNull
+    PoolStatistics getStatistics() {
+      return myStatistics;
+    }
+
+    @Override
+    public ExecutableHttpRequest prepareRequest(final HttpExecuteRequest request) {
+      final MetricCollector sdkCollector = request.metricCollector().orElse(null);
+      if (sdkCollector != null && !(sdkCollector instanceof NoOpMetricCollector)) {
+        // the metrics are published by the SDK client, they can't be read here
+        return myClient.prepareRequest(request);
+      }
+
+      final MetricCollector collector = MetricCollector.create("HttpClient");
+      final ExecutableHttpRequest executableRequest = myClient.prepareRequest(HttpExecuteRequest.builder()
+                                                                                               .request(request.httpRequest())
+                                                                                               .contentStreamProvider(request.contentStreamProvider().orElse(null))
+                                                                                               .metricCollector(collector)
+                                                                                               .build());
+      return new ExecutableHttpRequest() {
+        @Override
+        public HttpExecuteResponse call() throws IOException {
+          try {
+            return executableRequest.call();
+          } finally {
+            updateStatistics(collector.collect());
+          }
+        }
+
+        @Override
+        public void abort() {
+          executableRequest.abort();
+        }
+      };
+    }
+
+    private void updateStatistics(@NotNull final MetricCollection metricCollection) {
+      final List<Integer> leased = metricCollection.metricValues(HttpMetric.LEASED_CONCURRENCY);
+      if (!leased.isEmpty()) {
+        myStatistics = new PoolStatistics(leased.get(0),
+                                          firstOrZero(metricCollection.metricValues(HttpMetric.PENDING_CONCURRENCY_ACQUIRES)),
+                                          firstOrZero(metricCollection.metricValues(HttpMetric.AVAILABLE_CONCURRENCY)),
+                                          firstOrZero(metricCollection.metricValues(HttpMetric.MAX_CONCURRENCY)));
+      }
+    }
+
+    private static int firstOrZero(@NotNull final List<Integer> values) {
+      return values.isEmpty() ? 0 : values.get(0);
+    }
+
+    @Override
+    public String clientName() {
+      return myClient.clientName();
+    }
+
+    @Override
+    public void close() {
+      myClient.close();
+    }
+  }
+
+  public static final class PoolStatistics {
+    private final int myLeased;
+    private final int myPending;
+    private final int myAvailable;
+    private final int myMax;
+
+    PoolStatistics(final int leased, final int pending, final int available, final int max) {
+      myLeased = leased;
+      myPending = pending;
+      myAvailable = available;
+      myMax = max;
+    }
+
+    public int getLeased() {
+      return myLeased;
+    }
+
+    public int getPending() {
+      return myPending;
+    }
+
+    public int getAvailable() {
+      return myAvailable;
+    }
+
+    public int getMax() {
+      return myMax;
+    }
+
+    @Override
+    public String toString() {
+      return "leased=" + myLeased + ", pending=" + myPending + ", available=" + myAvailable + ", max=" + myMax;
+    }
+  }
+}
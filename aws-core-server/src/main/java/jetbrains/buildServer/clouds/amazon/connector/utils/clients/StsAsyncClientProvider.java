@@ -0,0 +1,64 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.intellij.openapi.util.Pair;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.impl.BasicStsClientProviderImpl;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.awscore.defaultsmode.DefaultsMode;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sts.StsAsyncClient;
+
+/**
+ * Keeps one asynchronous STS client per endpoint on the shared non-blocking HTTP client, see {@link AwsSdkHttpClients#getAsyncHttpClient}.
+ * The credentials must be set in the override configuration of each request.
+ */
+public class StsAsyncClientProvider {
+  // the clients are built from the key only, it holds every setting which differs between them
+  private final Cache<Pair<URI, Region>, StsAsyncClient> myClients = CacheBuilder.newBuilder()
+    .expireAfterAccess(Duration.ofMinutes(TeamCityProperties.getInteger(BasicStsClientProviderImpl.CLIENT_POOL_IDLE_TIMEOUT_MINUTES,
+                                                                            BasicStsClientProviderImpl.CLIENT_POOL_IDLE_TIMEOUT_MINUTES_DEFAULT)))
+    .<Pair<URI, Region>, StsAsyncClient>removalListener(notification -> notification.getValue().close())
+    .build();
+
+  private final AwsSdkHttpClients myHttpClients;
+
+  public StsAsyncClientProvider(@NotNull final AwsSdkHttpClients httpClients,
+                                @NotNull final EventDispatcher<BuildServerListener> eventDispatcher) {
+    myHttpClients = httpClients;
+    eventDispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        myClients.invalidateAll();
+      }
+    });
+  }
+
+  /**
+   * @return the shared client for the STS endpoint of the parameters, it must not be closed by the caller
+   */
+  @NotNull
+  public StsAsyncClient getClient(@NotNull final Map<String, String> parameters) {
+    final Pair<URI, Region> endpoint = TeamCityStsClientBuilder.getEndpoint(parameters);
+    try {
+      return myClients.get(endpoint, () -> StsAsyncClient.builder()
+                                                         .defaultsMode(DefaultsMode.STANDARD)
+                                                         .httpClient(myHttpClients.getAsyncHttpClient(AwsSdkHttpClients.STS))
+                                                         .endpointOverride(endpoint.getFirst())
+                                                         .region(endpoint.getSecond())
+                                                         .build());
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      final Throwable cause = e.getCause();
+      throw cause instanceof RuntimeException ? (RuntimeException)cause : new IllegalStateException(cause);
+    }
+  }
+}
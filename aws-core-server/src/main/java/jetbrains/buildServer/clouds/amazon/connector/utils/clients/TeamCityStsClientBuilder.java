@@ -1,12 +1,15 @@
 package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
 
+import com.intellij.openapi.util.Pair;
 import java.net.URI;
 import java.util.Map;
 
 import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.regions.RegionMetadata;
 import software.amazon.awssdk.services.sts.StsClientBuilder;
 
 import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams.STS_ENDPOINT_PARAM;
@@ -14,13 +17,54 @@ import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.Aws
 import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants.REGION_NAME_PARAM;
 
 public class TeamCityStsClientBuilder {
+  /**
+   * Value of the STS endpoint parameter which lets the plugin choose the fastest regional endpoint and fail over to the others
+   */
+  public static final String STS_ENDPOINT_AUTO = "auto";
+
+  public static boolean isAutoEndpoint(@Nullable final String stsEndpoint) {
+    return STS_ENDPOINT_AUTO.equalsIgnoreCase(StringUtil.emptyIfNull(stsEndpoint).trim());
+  }
+
   public static void addConfiguration(@NotNull StsClientBuilder stsBuilder, @NotNull final Map<String, String> properties) {
+    Pair<URI, Region> endpoint = getEndpoint(properties);
+
+    stsBuilder.endpointOverride(endpoint.getFirst())
+      .region(endpoint.getSecond())
+      .httpClientBuilder(ClientConfigurationBuilder.createClientBuilder("sts"))
+      .overrideConfiguration(ClientConfigurationBuilder.clientOverrideConfigurationBuilder()
+        .build()
+      );
+  }
+
+  public static void addConfiguration(@NotNull StsClientBuilder stsBuilder, @NotNull final Map<String, String> properties, @NotNull final AwsSdkHttpClients httpClients) {
+    Pair<URI, Region> endpoint = getEndpoint(properties);
+
+    httpClients.configure(stsBuilder, AwsSdkHttpClients.STS)
+      .endpointOverride(endpoint.getFirst())
+      .region(endpoint.getSecond());
+  }
+
+  /**
+   * @return STS endpoint and its signing region for the connection properties, the global endpoint if they do not specify a valid one
+   */
+  @NotNull
+  public static Pair<URI, Region> getEndpoint(@NotNull final Map<String, String> properties) {
     URI endpoint = URI.create(STS_GLOBAL_ENDPOINT);
     Region region = Region.US_EAST_1;
 
     String stsEndpoint = properties.get(STS_ENDPOINT_PARAM);
 
-    if (StringUtil.isNotEmpty(stsEndpoint) && !stsEndpoint.equals(STS_GLOBAL_ENDPOINT)) {
+    if (isAutoEndpoint(stsEndpoint)) {
+      // the endpoint is chosen for each request, a client created for the connection itself uses the endpoint of its region
+      try {
+        region = Region.of(properties.get(REGION_NAME_PARAM));
+        endpoint = getRegionalEndpoint(region);
+      } catch (IllegalArgumentException | NullPointerException e) {
+        Loggers.CLOUD.warn("Falling back to the global STS parameters: " + e.getMessage());
+        region = Region.US_EAST_1;
+      }
+    } else if (StringUtil.isNotEmpty(stsEndpoint) && !stsEndpoint.equals(STS_GLOBAL_ENDPOINT)) {
       try {
         endpoint = URI.create(stsEndpoint);
         region = Region.of(properties.get(REGION_NAME_PARAM));
@@ -28,12 +72,13 @@ public class TeamCityStsClientBuilder {
         Loggers.CLOUD.warn("Falling back to the global STS parameters: " + e.getMessage());
       }
     }
+    return Pair.create(endpoint, region);
+  }
 
-    stsBuilder.endpointOverride(endpoint)
-      .region(region)
-      .httpClientBuilder(ClientConfigurationBuilder.createClientBuilder("sts"))
-      .overrideConfiguration(ClientConfigurationBuilder.clientOverrideConfigurationBuilder()
-        .build()
-      );
+  @NotNull
+  public static URI getRegionalEndpoint(@NotNull final Region region) {
+    final RegionMetadata metadata = region.metadata();
+    final String domain = metadata != null ? metadata.domain() : "amazonaws.com";
+    return URI.create("https://sts." + region.id() + "." + domain);
   }
 }
@@ -0,0 +1,176 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.intellij.openapi.util.Pair;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionDescriptor;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionsHolder;
+import jetbrains.buildServer.clouds.amazon.connector.errors.AwsConnectorException;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsConnectionCredentialsProvider;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.AwsConnectionClientProvider;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.AwsSdkHttpClients;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.TeamCityStsClientBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.regions.AWSRegions;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.awscore.client.builder.AwsClientBuilder;
+import software.amazon.awssdk.awscore.defaultsmode.DefaultsMode;
+import software.amazon.awssdk.core.SdkClient;
+import software.amazon.awssdk.core.client.builder.SdkSyncClientBuilder;
+import software.amazon.awssdk.services.sts.StsClientBuilder;
+
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.ParamUtil.isAwsConnectionFeature;
+
+public class AwsConnectionClientProviderImpl implements AwsConnectionClientProvider {
+  public static final String CLIENT_POOL_IDLE_TIMEOUT_MINUTES = "teamcity.internal.aws.connection.clientPool.idleTimeoutInMinutes";
+  private static final int CLIENT_POOL_IDLE_TIMEOUT_MINUTES_DEFAULT = 30;
+
+  // One client per connection and client interface
+  private final Cache<Pair<String, Class<?>>, PooledClient> myClients = CacheBuilder.newBuilder()
+    .expireAfterAccess(Duration.ofMinutes(TeamCityProperties.getInteger(CLIENT_POOL_IDLE_TIMEOUT_MINUTES, CLIENT_POOL_IDLE_TIMEOUT_MINUTES_DEFAULT)))
+    .<Pair<String, Class<?>>, PooledClient>removalListener(notification -> notification.getValue().close())
+    .build();
+
+  private final AwsConnectionsHolder myAwsConnectionsHolder;
+  private final AwsSdkHttpClients myHttpClients;
+
+  public AwsConnectionClientProviderImpl(@NotNull final AwsConnectionsHolder awsConnectionsHolder,
+                                         @NotNull final AwsSdkHttpClients httpClients,
+                                         @NotNull final EventDispatcher<BuildServerListener> eventDispatcher) {
+    myAwsConnectionsHolder = awsConnectionsHolder;
+    myHttpClients = httpClients;
+
+    eventDispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void projectFeatureChanged(@NotNull SProject project, @NotNull SProjectFeatureDescriptor before, @NotNull SProjectFeatureDescriptor after) {
+        if (isAwsConnectionFeature(before)) {
+          evictConnection(before.getId());
+        }
+      }
+
+      @Override
+      public void projectFeatureRemoved(@NotNull SProject project, @NotNull SProjectFeatureDescriptor projectFeature) {
+        if (isAwsConnectionFeature(projectFeature)) {
+          evictConnection(projectFeature.getId());
+        }
+      }
+
+      @Override
+      public void projectRestored(@NotNull String projectId) {
+        evictProject(projectId);
+      }
+
+      @Override
+      public void projectRemoved(@NotNull SProject project) {
+        evictProject(project.getProjectId());
+      }
+
+      @Override
+      public void serverShutdown() {
+        myClients.invalidateAll();
+      }
+    });
+  }
+
+  @NotNull
+  @Override
+  public <C extends SdkClient> C getClient(@NotNull final String awsConnectionId, @NotNull final Class<C> clientClass) throws AwsConnectorException {
+    final Pair<String, Class<?>> key = Pair.create(awsConnectionId, clientClass);
+    final PooledClient pooledClient = myClients.getIfPresent(key);
+    if (pooledClient != null) {
+      return clientClass.cast(pooledClient.getSharedView());
+    }
+
+    final AwsConnectionDescriptor connection = myAwsConnectionsHolder.getAwsConnection(awsConnectionId);
+    try {
+      return clientClass.cast(myClients.get(key, () -> new PooledClient(connection.getProjectId(), buildClient(clientClass, connection), clientClass)).getSharedView());
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      final Throwable cause = e.getCause();
+      throw cause instanceof RuntimeException ? (RuntimeException)cause : new IllegalStateException(cause);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @NotNull
+  private <B extends AwsClientBuilder<B, C> & SdkSyncClientBuilder<B, C>, C extends SdkClient> C buildClient(@NotNull final Class<C> clientClass,
+                                                                                                             @NotNull final AwsConnectionDescriptor connection) {
+    final B builder;
+    try {
+      builder = (B)clientClass.getMethod("builder").invoke(null);
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new IllegalArgumentException(clientClass.getName() + " is not a synchronous AWS SDK client", e);
+    }
+    if (!(builder instanceof SdkSyncClientBuilder)) {
+      throw new IllegalArgumentException(clientClass.getName() + " is not a synchronous AWS SDK client");
+    }
+
+    builder.defaultsMode(DefaultsMode.STANDARD)
+           .credentialsProvider(AwsConnectionCredentialsProvider.of(connection.getAwsCredentialsHolder()));
+    if (builder instanceof StsClientBuilder) {
+      // STS clients use the endpoint of the connection
+      TeamCityStsClientBuilder.addConfiguration((StsClientBuilder)builder, connection.getParameters(), myHttpClients);
+    } else {
+      // the HTTP clients are shared by the service, e.g. "s3" for software.amazon.awssdk.services.s3.S3Client
+      final String packageName = clientClass.getPackage().getName();
+      myHttpClients.configure(builder, packageName.substring(packageName.lastIndexOf('.') + 1))
+                   .region(AWSRegions.getRegion(connection.getParameters().get(AwsCloudConnectorConstants.REGION_NAME_PARAM)));
+    }
+    return builder.build();
+  }
+
+  // removal through the map view notifies the removal listener which closes the clients
+  private void evictConnection(@NotNull final String awsConnectionId) {
+    myClients.asMap().keySet().removeIf(key -> key.getFirst().equals(awsConnectionId));
+  }
+
+  private void evictProject(@NotNull final String projectId) {
+    myClients.asMap().values().removeIf(pooledClient -> pooledClient.getProjectId().equals(projectId));
+  }
+
+  private static final class PooledClient {
+    private final String myProjectId;
+    private final SdkClient myClient;
+    private final Object mySharedView;
+
+    private PooledClient(@NotNull final String projectId, @NotNull final SdkClient client, @NotNull final Class<?> clientClass) {
+      myProjectId = projectId;
+      myClient = client;
+      // the client is shared by all the callers, none of them may close it
+      mySharedView = Proxy.newProxyInstance(clientClass.getClassLoader(), new Class<?>[]{clientClass}, (proxy, method, args) -> {
+        if ("close".equals(method.getName()) && method.getParameterCount() == 0) {
+          return null;
+        }
+        try {
+          return method.invoke(myClient, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      });
+    }
+
+    @NotNull
+    String getProjectId() {
+      return myProjectId;
+    }
+
+    @NotNull
+    Object getSharedView() {
+      return mySharedView;
+    }
+
+    void close() {
+      myClient.close();
+    }
+  }
+}
@@ -1,40 +1,81 @@
 package jetbrains.buildServer.clouds.amazon.connector.utils.clients.impl;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.intellij.openapi.util.Pair;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import jetbrains.buildServer.clouds.amazon.connector.impl.AwsConnectionCredentials;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.AwsSdkHttpClients;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.StsClientProvider;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.TeamCityStsClientBuilder;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import jetbrains.buildServer.util.EventDispatcher;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import software.amazon.awssdk.awscore.defaultsmode.DefaultsMode;
+import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.sts.StsClient;
-import software.amazon.awssdk.services.sts.StsClientBuilder;
 
 public class BasicStsClientProviderImpl implements StsClientProvider {
+  public static final String CLIENT_POOL_IDLE_TIMEOUT_MINUTES = "teamcity.internal.aws.connection.sts.clientPool.idleTimeoutInMinutes";
+  public static final int CLIENT_POOL_IDLE_TIMEOUT_MINUTES_DEFAULT = 30;
 
+  // One client per STS endpoint, credentials are supplied with each request.
+  // The clients are built from the key only, it holds every setting which differs between them
+  private final Cache<Pair<URI, Region>, StsClient> myClients = CacheBuilder.newBuilder()
+    .expireAfterAccess(Duration.ofMinutes(TeamCityProperties.getInteger(CLIENT_POOL_IDLE_TIMEOUT_MINUTES, CLIENT_POOL_IDLE_TIMEOUT_MINUTES_DEFAULT)))
+    .<Pair<URI, Region>, StsClient>removalListener(notification -> notification.getValue().close())
+    .build();
+
+  private final AwsSdkHttpClients myHttpClients;
+
+  public BasicStsClientProviderImpl(@NotNull final AwsSdkHttpClients httpClients,
+                                    @NotNull final EventDispatcher<BuildServerListener> eventDispatcher) {
+    myHttpClients = httpClients;
+    eventDispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdown() {
+        myClients.invalidateAll();
+      }
+    });
+  }
+
+  /**
+   * @return the shared client for the STS endpoint of the parameters, it sets the credentials in the override configuration of each request
+   * which does not have its own. Closing it has no effect
+   */
   @NotNull
   @Override
   public StsClient getClientWithCredentials(@NotNull AwsConnectionCredentials awsConnectionCredentials, @Nullable Map<String, String> parameters)
     throws ConnectionCredentialsException {
-
-    StsClientBuilder stsBuilder = StsClient.builder()
-      .defaultsMode(DefaultsMode.STANDARD)
-      .credentialsProvider(awsConnectionCredentials.toAWSCredentialsProvider());
-    if (parameters != null) {
-      TeamCityStsClientBuilder.addConfiguration(stsBuilder, parameters);
-    }
-    return stsBuilder.build();
+    return new StsClientWithCredentials(getClient(parameters), awsConnectionCredentials.toAWSCredentialsProvider());
   }
 
+  /**
+   * @return the shared client for the STS endpoint of the parameters, the credentials must be set in the override configuration of each request.
+   * The client must not be closed, pooled clients are closed when they are not used for a while and on server shutdown
+   */
   @NotNull
   @Override
   public StsClient getClient(@Nullable Map<String, String> parameters) {
-    StsClientBuilder stsBuilder = StsClient.builder()
-      .defaultsMode(DefaultsMode.STANDARD);
-    if (parameters != null) {
-      TeamCityStsClientBuilder.addConfiguration(stsBuilder, parameters);
+    final Pair<URI, Region> endpoint = TeamCityStsClientBuilder.getEndpoint(parameters != null ? parameters : Collections.emptyMap());
+    try {
+      return myClients.get(endpoint, () -> myHttpClients.configure(StsClient.builder(), AwsSdkHttpClients.STS)
+                                                        .defaultsMode(DefaultsMode.STANDARD)
+                                                        .endpointOverride(endpoint.getFirst())
+                                                        .region(endpoint.getSecond())
+                                                        .build());
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      final Throwable cause = e.getCause();
+      throw cause instanceof RuntimeException ? (RuntimeException)cause : new IllegalStateException(cause);
     }
-    return stsBuilder.build();
   }
 }
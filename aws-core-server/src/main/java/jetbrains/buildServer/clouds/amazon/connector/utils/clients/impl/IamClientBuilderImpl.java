@@ -2,26 +2,38 @@
 
 package jetbrains.buildServer.clouds.amazon.connector.utils.clients.impl;
 
-import jetbrains.buildServer.clouds.amazon.connector.utils.clients.ClientConfigurationBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.AwsSdkHttpClients;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.IamClientBuilder;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.awscore.defaultsmode.DefaultsMode;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.iam.IamClient;
 
 public class IamClientBuilderImpl implements IamClientBuilder {
+  @Nullable
+  private final AwsSdkHttpClients myHttpClients;
+
+  /**
+   * @deprecated every client gets its own HTTP client, use {@link #IamClientBuilderImpl(AwsSdkHttpClients)}
+   */
+  @Deprecated
+  public IamClientBuilderImpl() {
+    myHttpClients = null;
+  }
+
+  public IamClientBuilderImpl(@NotNull final AwsSdkHttpClients httpClients) {
+    myHttpClients = httpClients;
+  }
+
   @NotNull
   @Override
   public IamClient createIamClient(@NotNull String connectionRegion, @NotNull AwsCredentialsProvider credentials) {
-    return IamClient.builder()
+    return AwsSdkHttpClients.configure(myHttpClients, IamClient.builder(), AwsSdkHttpClients.IAM)
       .defaultsMode(DefaultsMode.STANDARD)
       .region(Region.of(connectionRegion))
       .credentialsProvider(credentials)
-      .httpClientBuilder(ClientConfigurationBuilder.createClientBuilder("iam"))
-      .overrideConfiguration(ClientConfigurationBuilder.clientOverrideConfigurationBuilder()
-        .build()
-      )
       .build();
   }
 }
\ No newline at end of file
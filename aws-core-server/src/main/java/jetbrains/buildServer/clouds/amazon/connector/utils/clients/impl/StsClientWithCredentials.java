@@ -0,0 +1,94 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients.impl;
+
+import org.jetbrains.annotations.NotNull;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.awscore.AwsRequest;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.services.sts.StsClient;
+import software.amazon.awssdk.services.sts.StsServiceClientConfiguration;
+import software.amazon.awssdk.services.sts.model.*;
+
+/**
+ * Sends the requests with the pooled STS client, each request gets the credentials in its override configuration unless it has its own.
+ * Closing it has no effect, the pooled client is shared.
+ */
+final class StsClientWithCredentials implements StsClient {
+  private final StsClient myClient;
+  private final AwsCredentialsProvider myCredentialsProvider;
+
+  StsClientWithCredentials(@NotNull final StsClient client, @NotNull final AwsCredentialsProvider credentialsProvider) {
+    myClient = client;
+    myCredentialsProvider = credentialsProvider;
+  }
+
+  @Override
+  public AssumeRoleResponse assumeRole(final AssumeRoleRequest request) {
+    return myClient.assumeRole(request.toBuilder().overrideConfiguration(withCredentials(request)).build());
+  }
+
+  @Override
+  public AssumeRoleWithSamlResponse assumeRoleWithSAML(final AssumeRoleWithSamlRequest request) {
+    return myClient.assumeRoleWithSAML(request.toBuilder().overrideConfiguration(withCredentials(request)).build());
+  }
+
+  @Override
+  public AssumeRoleWithWebIdentityResponse assumeRoleWithWebIdentity(final AssumeRoleWithWebIdentityRequest request) {
+    return myClient.assumeRoleWithWebIdentity(request.toBuilder().overrideConfiguration(withCredentials(request)).build());
+  }
+
+  @Override
+  public AssumeRootResponse assumeRoot(final AssumeRootRequest request) {
+    return myClient.assumeRoot(request.toBuilder().overrideConfiguration(withCredentials(request)).build());
+  }
+
+  @Override
+  public DecodeAuthorizationMessageResponse decodeAuthorizationMessage(final DecodeAuthorizationMessageRequest request) {
+    return myClient.decodeAuthorizationMessage(request.toBuilder().overrideConfiguration(withCredentials(request)).build());
+  }
+
+  @Override
+  public GetAccessKeyInfoResponse getAccessKeyInfo(final GetAccessKeyInfoRequest request) {
+    return myClient.getAccessKeyInfo(request.toBuilder().overrideConfiguration(withCredentials(request)).build());
+  }
+
+  @Override
+  public GetCallerIdentityResponse getCallerIdentity(final GetCallerIdentityRequest request) {
+    return myClient.getCallerIdentity(request.toBuilder().overrideConfiguration(withCredentials(request)).build());
+  }
+
+  @Override
+  public GetFederationTokenResponse getFederationToken(final GetFederationTokenRequest request) {
+    return myClient.getFederationToken(request.toBuilder().overrideConfiguration(withCredentials(request)).build());
+  }
+
+  @Override
+  public GetSessionTokenResponse getSessionToken(final GetSessionTokenRequest request) {
+    return myClient.getSessionToken(request.toBuilder().overrideConfiguration(withCredentials(request)).build());
+  }
+
+  @Override
+  public StsServiceClientConfiguration serviceClientConfiguration() {
+    return myClient.serviceClientConfiguration();
+  }
+
+  @Override
+  public String serviceName() {
+    return myClient.serviceName();
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @NotNull
+  private AwsRequestOverrideConfiguration withCredentials(@NotNull final AwsRequest request) {
+    final AwsRequestOverrideConfiguration overrideConfiguration = request.overrideConfiguration().orElse(null);
+    if (overrideConfiguration == null) {
+      return AwsRequestOverrideConfiguration.builder().credentialsProvider(myCredentialsProvider).build();
+    }
+    if (overrideConfiguration.credentialsIdentityProvider().isPresent()) {
+      return overrideConfiguration;
+    }
+    return overrideConfiguration.toBuilder().credentialsProvider(myCredentialsProvider).build();
+  }
+}
@@ -0,0 +1,129 @@
+package jetbrains.buildServer.clouds.amazon.connector.common.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.CustomDataStorage;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@Test
+public class AwsConnectionsIndexTest extends BaseTestCase {
+
+  private Map<String, String> myStorageValues;
+  private CustomDataStorage myStorage;
+  private AwsConnectionsIndex myIndex;
+
+  @BeforeMethod
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myStorageValues = new HashMap<>();
+    myStorageValues.put("awsConnection_1", "project");
+    myStorage = Mockito.mock(CustomDataStorage.class);
+    when(myStorage.getValues()).thenReturn(myStorageValues);
+    doAnswer(invocation -> myStorageValues.put(invocation.getArgument(0), invocation.getArgument(1))).when(myStorage).putValue(any(), any());
+    doAnswer(invocation -> {
+      myStorageValues.keySet().removeAll(invocation.<Set<String>>getArgument(1));
+      return null;
+    }).when(myStorage).updateValues(any(), any());
+    setInternalProperty(AwsConnectionsIndex.FLUSH_DELAY_MILLIS, "0");
+    myIndex = new AwsConnectionsIndex(() -> myStorage);
+  }
+
+  public void testStorageIsReadOnce() {
+    myIndex.put("awsConnection_2", "project");
+    myIndex.put("awsConnection_3", "otherProject");
+
+    assertEquals("project", myIndex.getOwnerProjectId("awsConnection_1"));
+    assertEquals("otherProject", myIndex.getOwnerProjectId("awsConnection_3"));
+    assertSameElements(myIndex.getConnectionIds("project"), "awsConnection_1", "awsConnection_2");
+    verify(myStorage, times(1)).getValues();
+  }
+
+  public void testStorageIsReadAgainOnMiss_OnlyOncePerRefreshInterval() {
+    setInternalProperty(AwsConnectionsIndex.REFRESH_INTERVAL_SECONDS, "3600");
+    assertEquals("project", myIndex.getOwnerProjectId("awsConnection_1"));
+    myStorageValues.put("awsConnection_2", "otherProject");
+
+    for (int i = 0; i < 10; i++) {
+      assertNull(myIndex.getOwnerProjectId("unknownConnection"));
+    }
+    assertNull(myIndex.getOwnerProjectId("awsConnection_2"));
+    verify(myStorage, times(1)).getValues();
+
+    setInternalProperty(AwsConnectionsIndex.REFRESH_INTERVAL_SECONDS, "0");
+
+    assertEquals("otherProject", myIndex.getOwnerProjectId("awsConnection_2"));
+    assertTrue(myIndex.isIndexed("awsConnection_2"));
+    assertFalse(myIndex.isIndexed("unknownConnection"));
+    verify(myStorage, times(2)).getValues();
+  }
+
+  public void testIdAllocationSeesConnectionsOfOtherNodes() {
+    setInternalProperty(AwsConnectionsIndex.REFRESH_INTERVAL_SECONDS, "0");
+    assertEquals("awsConnection_2", myIndex.peekId("awsConnection", id -> true));
+    myStorageValues.put("awsConnection_5", "otherProject");
+
+    assertEquals("awsConnection_6", myIndex.allocateId("awsConnection", id -> !myIndex.isIndexed(id)));
+  }
+
+  public void testConnectionMovedToAnotherProject() {
+    myIndex.put("awsConnection_1", "otherProject");
+
+    assertEmpty(myIndex.getConnectionIds("project"));
+    assertSameElements(myIndex.getConnectionIds("otherProject"), "awsConnection_1");
+
+    myIndex.remove("awsConnection_1");
+
+    assertNull(myIndex.getOwnerProjectId("awsConnection_1"));
+    assertEmpty(myIndex.getConnectionIds("otherProject"));
+    verify(myStorage).updateValues(Collections.emptyMap(), Collections.singleton("awsConnection_1"));
+  }
+
+  public void testFlushesAreCoalesced() {
+    setInternalProperty(AwsConnectionsIndex.FLUSH_DELAY_MILLIS, "60000");
+    for (int i = 2; i < 100; i++) {
+      myIndex.put("awsConnection_" + i, "project");
+    }
+    verify(myStorage, never()).flush();
+
+    myIndex.dispose();
+
+    verify(myStorage, times(1)).flush();
+  }
+
+  public void testIdsAreAllocatedAboveTheHighestTakenOne() {
+    myIndex.put("awsConnection_7", "project");
+    myIndex.put("myConnection", "project");
+
+    assertEquals("awsConnection_8", myIndex.peekId("awsConnection", id -> true));
+    assertEquals("awsConnection_8", myIndex.allocateId("awsConnection", id -> true));
+    assertEquals("awsConnection_9", myIndex.allocateId("awsConnection", id -> true));
+    assertEquals("myConnection_1", myIndex.allocateId("myConnection", id -> true));
+
+    myIndex.remove("awsConnection_7");
+    myIndex.put("otherConnection_12", "project");
+
+    assertEquals("awsConnection_10", myIndex.allocateId("awsConnection", id -> true));
+    assertEquals("otherConnection_13", myIndex.peekId("otherConnection", id -> true));
+    verify(myStorage, times(1)).getValues();
+  }
+
+  public void testTakenIdsAreSkipped() {
+    myIndex.put("awsConnection_7", "project");
+    final Set<String> takenIds = new HashSet<>(Arrays.asList("awsConnection_8", "awsConnection_9"));
+
+    assertEquals("awsConnection_10", myIndex.peekId("awsConnection", id -> !takenIds.contains(id)));
+    assertEquals("awsConnection_10", myIndex.allocateId("awsConnection", id -> !takenIds.contains(id)));
+    assertEquals("awsConnection_11", myIndex.allocateId("awsConnection", id -> !takenIds.contains(id)));
+  }
+}
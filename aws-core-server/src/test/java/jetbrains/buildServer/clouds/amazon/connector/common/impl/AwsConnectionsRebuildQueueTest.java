@@ -0,0 +1,113 @@
+package jetbrains.buildServer.clouds.amazon.connector.common.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionDescriptor;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionDescriptorBuilder;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionsHolder;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.oauth.OAuthConstants;
+import jetbrains.buildServer.serverSide.oauth.aws.AwsConnectionProvider;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@Test
+public class AwsConnectionsRebuildQueueTest extends BaseTestCase {
+
+  private AwsConnectionsHolder myAwsConnectionsHolder;
+  private AwsConnectionDescriptorBuilder myAwsConnectionDescriptorBuilder;
+  private AwsConnectionsRebuildQueue myRebuildQueue;
+  private SProject myProject;
+
+  @BeforeMethod
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    setInternalProperty(AwsConnectionsRebuildQueue.DEBOUNCE_MILLIS, "100");
+    myAwsConnectionsHolder = Mockito.mock(AwsConnectionsHolder.class);
+    myAwsConnectionDescriptorBuilder = Mockito.mock(AwsConnectionDescriptorBuilder.class);
+    when(myAwsConnectionDescriptorBuilder.fromFeatureDescriptor(any())).thenReturn(Mockito.mock(AwsConnectionDescriptor.class));
+    myRebuildQueue = new AwsConnectionsRebuildQueue(myAwsConnectionsHolder, myAwsConnectionDescriptorBuilder);
+    myProject = Mockito.mock(SProject.class);
+    when(myProject.getProjectId()).thenReturn("project");
+  }
+
+  @AfterMethod
+  @Override
+  public void tearDown() throws Exception {
+    myRebuildQueue.dispose();
+    super.tearDown();
+  }
+
+  public void testRepeatedProjectRestoresAreCoalesced() {
+    for (int i = 0; i < 10; i++) {
+      myRebuildQueue.projectRestored("project");
+    }
+    myRebuildQueue.projectRestored("otherProject");
+
+    verify(myAwsConnectionsHolder, timeout(5000).times(1)).rebuildAllConnectionsForProject("project");
+    verify(myAwsConnectionsHolder, timeout(5000).times(1)).rebuildAllConnectionsForProject("otherProject");
+  }
+
+  public void testOnlyChangedConnectionsAreRebuilt() throws Exception {
+    final SProjectFeatureDescriptor before = createConnectionFeature("changedConnection", Collections.singletonMap("region", "eu-west-1"));
+    final SProjectFeatureDescriptor after = createConnectionFeature("changedConnection", Collections.singletonMap("region", "us-east-1"));
+    final SProjectFeatureDescriptor unchanged = createConnectionFeature("unchangedConnection", Collections.singletonMap("region", "eu-west-1"));
+
+    myRebuildQueue.connectionChanged(myProject, before, after);
+    myRebuildQueue.connectionChanged(myProject, after, after);
+    myRebuildQueue.connectionChanged(myProject, unchanged, unchanged);
+    myRebuildQueue.connectionChanged(myProject, after, before);
+    myRebuildQueue.connectionChanged(myProject, before, after);
+
+    verify(myAwsConnectionsHolder, timeout(5000)).updateAwsConnection(any());
+    verify(myAwsConnectionDescriptorBuilder, times(1)).fromFeatureDescriptor(after);
+    verify(myAwsConnectionDescriptorBuilder, never()).fromFeatureDescriptor(unchanged);
+  }
+
+  public void testChangedConnectionIsInvalidatedBeforeRebuild() {
+    setInternalProperty(AwsConnectionsRebuildQueue.ENABLED, "true");
+    setInternalProperty(AwsConnectionsRebuildQueue.DEBOUNCE_MILLIS, "60000");
+    setInternalProperty(AwsConnectionsRebuildQueue.MAX_DELAY_MILLIS, "60000");
+    final EventDispatcher<BuildServerListener> eventDispatcher = EventDispatcher.create(BuildServerListener.class);
+    new AwsConnectionsEventsListener(myAwsConnectionsHolder, myAwsConnectionDescriptorBuilder, eventDispatcher);
+    final SProjectFeatureDescriptor before = createConnectionFeature("changedConnection", createAwsConnectionParameters("eu-west-1"));
+    final SProjectFeatureDescriptor after = createConnectionFeature("changedConnection", createAwsConnectionParameters("us-east-1"));
+    final SProjectFeatureDescriptor unchanged = createConnectionFeature("unchangedConnection", createAwsConnectionParameters("eu-west-1"));
+
+    eventDispatcher.getMulticaster().projectFeatureChanged(myProject, before, after);
+    eventDispatcher.getMulticaster().projectFeatureChanged(myProject, unchanged, unchanged);
+
+    verify(myAwsConnectionsHolder).invalidateAwsConnection("changedConnection");
+    verify(myAwsConnectionsHolder, never()).invalidateAwsConnection("unchangedConnection");
+    verify(myAwsConnectionsHolder, never()).updateAwsConnection(any());
+
+    eventDispatcher.getMulticaster().serverShutdown();
+  }
+
+  private static Map<String, String> createAwsConnectionParameters(final String region) {
+    final Map<String, String> parameters = new HashMap<>();
+    parameters.put(OAuthConstants.OAUTH_TYPE_PARAM, AwsConnectionProvider.TYPE);
+    parameters.put("region", region);
+    return parameters;
+  }
+
+  private SProjectFeatureDescriptor createConnectionFeature(final String connectionId, final Map<String, String> parameters) {
+    final SProjectFeatureDescriptor connectionFeature = Mockito.mock(SProjectFeatureDescriptor.class);
+    when(connectionFeature.getId()).thenReturn(connectionId);
+    when(connectionFeature.getProjectId()).thenReturn("project");
+    when(connectionFeature.getType()).thenReturn(OAuthConstants.FEATURE_TYPE);
+    when(connectionFeature.getParameters()).thenReturn(parameters);
+    return connectionFeature;
+  }
+}
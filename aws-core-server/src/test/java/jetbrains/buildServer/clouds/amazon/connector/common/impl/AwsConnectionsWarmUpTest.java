@@ -0,0 +1,106 @@
+package jetbrains.buildServer.clouds.amazon.connector.common.impl;
+
+import java.util.*;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionDescriptor;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionsHolder;
+import jetbrains.buildServer.clouds.amazon.connector.errors.AwsConnectorException;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.serverSide.oauth.OAuthConstants;
+import jetbrains.buildServer.serverSide.oauth.aws.AwsConnectionProvider;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+@Test
+public class AwsConnectionsWarmUpTest extends BaseTestCase {
+
+  private EventDispatcher<BuildServerListener> myEventDispatcher;
+  private AwsConnectionsHolder myAwsConnectionsHolder;
+  private AwsCredentialsHolder myCredentialsHolder;
+  private AwsConnectionsWarmUp myWarmUp;
+  private final List<String> myWarmedUpConnections = Collections.synchronizedList(new ArrayList<>());
+
+  @BeforeMethod
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    setInternalProperty(AwsConnectionsWarmUp.ENABLED, "true");
+    setInternalProperty(AwsConnectionsWarmUp.PARALLELISM, "1");
+    myEventDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myWarmedUpConnections.clear();
+
+    myCredentialsHolder = Mockito.mock(AwsCredentialsHolder.class);
+    final AwsConnectionDescriptor awsConnectionDescriptor = Mockito.mock(AwsConnectionDescriptor.class);
+    when(awsConnectionDescriptor.getAwsCredentialsHolder()).thenReturn(myCredentialsHolder);
+    myAwsConnectionsHolder = Mockito.mock(AwsConnectionsHolder.class);
+    when(myAwsConnectionsHolder.getAwsConnection(anyString())).thenAnswer(invocation -> {
+      final String connectionId = invocation.getArgument(0);
+      myWarmedUpConnections.add(connectionId);
+      if ("brokenConnection".equals(connectionId)) {
+        throw new AwsConnectorException("Broken connection");
+      }
+      return awsConnectionDescriptor;
+    });
+
+    final SProject rootProject = Mockito.mock(SProject.class);
+    final List<SProjectFeatureDescriptor> connectionFeatures = Arrays.asList(createConnectionFeature("idleConnection"),
+                                                                             createConnectionFeature("brokenConnection"),
+                                                                             createConnectionFeature("usedConnection"));
+    when(rootProject.getOwnFeaturesOfType(OAuthConstants.FEATURE_TYPE)).thenReturn(connectionFeatures);
+
+    final SBuildFeatureDescriptor buildFeature = Mockito.mock(SBuildFeatureDescriptor.class);
+    when(buildFeature.getParameters()).thenReturn(Collections.singletonMap(AwsCloudConnectorConstants.CHOSEN_AWS_CONN_ID_PARAM, "usedConnection"));
+    final SFinishedBuild lastBuild = Mockito.mock(SFinishedBuild.class);
+    when(lastBuild.getFinishDate()).thenReturn(new Date());
+    final SBuildType buildType = Mockito.mock(SBuildType.class);
+    when(buildType.getLastChangesFinished()).thenReturn(lastBuild);
+    when(buildType.getBuildFeatures()).thenReturn(Collections.singletonList(buildFeature));
+
+    final ProjectManager projectManager = Mockito.mock(ProjectManager.class);
+    when(projectManager.getRootProject()).thenReturn(rootProject);
+    when(projectManager.getActiveBuildTypes()).thenReturn(Collections.singletonList(buildType));
+
+    myWarmUp = new AwsConnectionsWarmUp(myAwsConnectionsHolder, projectManager, myEventDispatcher);
+  }
+
+  public void testRecentlyUsedConnectionsAreWarmedUpFirst() throws Exception {
+    myEventDispatcher.getMulticaster().serverStartup();
+
+    waitFor(() -> myWarmUp.getStats().get("startup.timeToWarmMillis") >= 0);
+    assertEquals("usedConnection", myWarmedUpConnections.get(0));
+    assertSameElements(myWarmedUpConnections, "usedConnection", "idleConnection", "brokenConnection");
+    verify(myCredentialsHolder, times(2)).getAwsCredentials();
+    assertEquals(Long.valueOf(2), myWarmUp.getStats().get("warmedUp"));
+    assertEquals(Long.valueOf(1), myWarmUp.getStats().get("failed"));
+
+    myEventDispatcher.getMulticaster().serverShutdown();
+  }
+
+  public void testChangedConnectionIsWarmedUp() throws Exception {
+    final SProjectFeatureDescriptor connectionFeature = createConnectionFeature("changedConnection");
+
+    myEventDispatcher.getMulticaster().projectFeatureChanged(Mockito.mock(SProject.class), connectionFeature, connectionFeature);
+
+    verify(myCredentialsHolder, timeout(5000)).getAwsCredentials();
+    assertEquals(Collections.singletonList("changedConnection"), myWarmedUpConnections);
+
+    myEventDispatcher.getMulticaster().serverShutdown();
+  }
+
+  private static SProjectFeatureDescriptor createConnectionFeature(final String connectionId) {
+    final Map<String, String> parameters = new HashMap<>();
+    parameters.put(OAuthConstants.OAUTH_TYPE_PARAM, AwsConnectionProvider.TYPE);
+    final SProjectFeatureDescriptor connectionFeature = Mockito.mock(SProjectFeatureDescriptor.class);
+    when(connectionFeature.getId()).thenReturn(connectionId);
+    when(connectionFeature.getType()).thenReturn(OAuthConstants.FEATURE_TYPE);
+    when(connectionFeature.getParameters()).thenReturn(parameters);
+    return connectionFeature;
+  }
+}
@@ -2,10 +2,16 @@
 
 package jetbrains.buildServer.clouds.amazon.connector.featureDevelopment;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
 import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionDescriptor;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionsHolder;
 import jetbrains.buildServer.clouds.amazon.connector.impl.dataBeans.AwsConnectionBean;
 import jetbrains.buildServer.clouds.amazon.connector.impl.staticType.StaticCredentialsBuilder;
 import jetbrains.buildServer.clouds.amazon.connector.impl.staticType.StaticCredentialsHolder;
@@ -126,6 +132,25 @@ public class AwsConnectionsManagerImplTest extends AbstractAwsConnectionTest {
     }
   }
 
+  @Test
+  public void givenAwsConnManager_whenConcurrentLookupsOfNotBuiltConnection_thenItIsBuiltOnce() throws Exception {
+    AwsConnectionsHolder awsConnectionsHolder = getAwsConnectionsHolder();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<AwsConnectionDescriptor>> lookups = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        lookups.add(executor.submit(() -> awsConnectionsHolder.getAwsConnection(testConnectionId)));
+      }
+
+      AwsConnectionDescriptor awsConnectionDescriptor = lookups.get(0).get();
+      for (Future<AwsConnectionDescriptor> lookup : lookups) {
+        assertSame(awsConnectionDescriptor, lookup.get());
+      }
+      assertSame(awsConnectionDescriptor, awsConnectionsHolder.getAwsConnection(testConnectionId));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
 
   //Deprecated methods
   @Test
@@ -4,11 +4,15 @@ import com.intellij.util.containers.hash.HashMap;
 
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import jetbrains.buildServer.ExtensionHolder;
+import jetbrains.buildServer.clouds.amazon.connector.AwsConnectorFactory;
+import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsData;
 import jetbrains.buildServer.clouds.amazon.connector.LinkedAwsConnectionProvider;
+import jetbrains.buildServer.clouds.amazon.connector.impl.AwsSessionCredentialsHolder;
 import jetbrains.buildServer.clouds.amazon.connector.impl.LinkedAwsConnectionProviderImpl;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsConnBuildFeatureParams;
@@ -48,6 +52,7 @@ public class InjectAwsCredentialsToTheBuildContextTest {
   private final String TEST_AWS_PROFILE = "test-profile";
 
   private InjectAwsCredentialsToTheBuildContext injectAwsCredentials;
+  private LinkedAwsConnectionProvider linkedAwsConnectionProvider;
 
   private BuildStartContext mockedBuildStartContext;
   private ExtensionHolder mockedExtensionHolder;
@@ -65,7 +70,7 @@ public class InjectAwsCredentialsToTheBuildContextTest {
     mockedConnectionsManager = Mockito.mock(ProjectConnectionsManager.class, RETURNS_DEEP_STUBS);
     mockedConnectionCredentialsManager = Mockito.mock(ProjectConnectionCredentialsManager.class, RETURNS_DEEP_STUBS);
 
-    LinkedAwsConnectionProvider linkedAwsConnectionProvider = new LinkedAwsConnectionProviderImpl(
+    linkedAwsConnectionProvider = new LinkedAwsConnectionProviderImpl(
       mockedProjectManager,
       mockedConnectionsManager,
       mockedConnectionCredentialsManager
@@ -214,6 +219,60 @@ public class InjectAwsCredentialsToTheBuildContextTest {
     injectAwsCredentials.updateParameters(mockedBuildStartContext);
   }
 
+  @Test
+  void given_multiple_aws_conns_then_request_their_sessions_concurrently() throws Exception {
+    givenAwsConnectionAndBuildFeature(
+      TEST_AWS_CONNECTION_ID,
+      "INJECT_AWS_CONN_TO_BUILD_ID",
+      null,
+      TEST_ACCESS_KEY_ID,
+      TEST_SECRET_ACCESS_KEY,
+      TEST_SESSION_TOKEN,
+      TEST_AWS_REGION
+    );
+    givenAwsConnectionAndBuildFeature(
+      TEST_AWS_CONNECTION_ID_2,
+      "INJECT_AWS_CONN_TO_BUILD_ID_2",
+      TEST_AWS_PROFILE,
+      TEST_ACCESS_KEY_ID_2,
+      TEST_SECRET_ACCESS_KEY_2,
+      TEST_SESSION_TOKEN_2,
+      TEST_AWS_REGION_2
+    );
+    SProject project = Mockito.mock(SProject.class);
+    when(project.getProjectId()).thenReturn("PROJECT_ID");
+    when(buildType.getProject()).thenReturn(project);
+
+    AwsConnectorFactory awsConnectorFactory = Mockito.mock(AwsConnectorFactory.class);
+    List<CompletableFuture<AwsCredentialsData>> sessionRequests = new ArrayList<>();
+    AtomicInteger requestedSessions = new AtomicInteger();
+    for (String connectionId : Arrays.asList(TEST_AWS_CONNECTION_ID, TEST_AWS_CONNECTION_ID_2)) {
+      SProjectFeatureDescriptor connection = createConnectionDescriptor("PROJECT_ID", connectionId, Collections.emptyMap());
+      when(project.findFeatureById(connectionId)).thenReturn(connection);
+
+      CompletableFuture<AwsCredentialsData> sessionRequest = new CompletableFuture<>();
+      sessionRequests.add(sessionRequest);
+      AwsSessionCredentialsHolder credentialsHolder = Mockito.mock(AwsSessionCredentialsHolder.class);
+      when(credentialsHolder.getAwsCredentialsAsync()).thenAnswer(invocation -> {
+        // both sessions are requested before any of them is answered
+        if (requestedSessions.incrementAndGet() == 2) {
+          sessionRequests.forEach(request -> request.complete(Mockito.mock(AwsCredentialsData.class)));
+        }
+        return sessionRequest;
+      });
+      when(awsConnectorFactory.buildAwsCredentialsProvider(connection)).thenReturn(credentialsHolder);
+    }
+    injectAwsCredentials = new InjectAwsCredentialsToTheBuildContext(linkedAwsConnectionProvider, awsConnectorFactory);
+
+    injectAwsCredentials.updateParameters(mockedBuildStartContext);
+
+    for (CompletableFuture<AwsCredentialsData> sessionRequest : sessionRequests) {
+      assertTrue(sessionRequest.isDone());
+    }
+    verify(awsConnectorFactory, times(2)).buildAwsCredentialsProvider(any());
+    verify(mockedBuildStartContext).addSharedParameter(INJECTED_AWS_ACCESS_KEYS, TEST_ACCESS_KEY_ID);
+  }
+
   @Test
   void given_no_aws_credentials_buildFeature_then_do_nothing() {
     when(mockedBuildStartContext.getBuild().getBuildFeaturesOfType(AwsConnBuildFeatureParams.AWS_CONN_TO_ENV_VARS_BUILD_FEATURE_TYPE))
@@ -0,0 +1,146 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.ServerResponsibility;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import jetbrains.buildServer.serverSide.crypt.EncryptionManager;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import jetbrains.buildServer.serverSide.oauth.OAuthConstants;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+@Test
+public class AwsCredentialsCachePersistenceTest extends BaseServerTestCase {
+
+  private ServerPaths myServerPaths;
+  private ServerResponsibility myServerResponsibility;
+  private SProjectFeatureDescriptor myConnectionFeature;
+  private AtomicInteger myCounter;
+  private RequestSessionFunction mySupplier;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myServerPaths = new ServerPaths(createTempDir().getAbsolutePath());
+    myServerResponsibility = Mockito.mock(ServerResponsibility.class);
+    Mockito.when(myServerResponsibility.canWriteToConfigDirectory()).thenReturn(true);
+
+    final Map<String, String> connectionParameters = new HashMap<>();
+    connectionParameters.put(OAuthConstants.OAUTH_TYPE_PARAM, "AWS");
+    connectionParameters.put("awsRegionName", "eu-west-1");
+    myConnectionFeature = myProject.addFeature(OAuthConstants.FEATURE_TYPE, connectionParameters);
+
+    myCounter = new AtomicInteger(0);
+    mySupplier = () -> Credentials.builder()
+                                  .accessKeyId("ACCESS_KEY_" + myCounter.incrementAndGet())
+                                  .secretAccessKey("SECRET_KEY")
+                                  .sessionToken("SESSION_TOKEN")
+                                  .expiration(Instant.now().plus(1, ChronoUnit.HOURS))
+                                  .build();
+  }
+
+  public void testSavedSessionsAreRestored() throws ConnectionCredentialsException {
+    final AwsCredentialsHolderCache cache = new AwsCredentialsHolderCache(getEventDispatcher());
+    cache.getAwsCredentials(myConnectionFeature, mySupplier);
+    createPersistence(cache).write();
+
+    final AwsCredentialsHolderCache restoredCache = new AwsCredentialsHolderCache(getEventDispatcher());
+    createPersistence(restoredCache).load();
+
+    Assert.assertEquals(restoredCache.getAwsCredentials(myConnectionFeature, mySupplier).getAccessKeyId(), "ACCESS_KEY_1");
+    Assert.assertEquals(myCounter.get(), 1);
+  }
+
+  public void testSavedSessionsAreEncrypted() throws Exception {
+    final AwsCredentialsHolderCache cache = new AwsCredentialsHolderCache(getEventDispatcher());
+    cache.getAwsCredentials(myConnectionFeature, mySupplier);
+    createPersistence(cache).write();
+
+    final File storageFile = new File(new File(myServerPaths.getPluginDataDirectory(), "aws-core-plugin"), "credentials-cache.dat");
+    final String content = new String(Files.readAllBytes(storageFile.toPath()), StandardCharsets.UTF_8);
+    Assert.assertFalse(content.contains(Base64.getEncoder().encodeToString("SECRET_KEY".getBytes(StandardCharsets.UTF_8))));
+    Assert.assertFalse(content.contains("SECRET_KEY"));
+  }
+
+  public void testSessionsAreNotRestored_IfConnectionChanged() throws ConnectionCredentialsException {
+    final AwsCredentialsHolderCache cache = new AwsCredentialsHolderCache(getEventDispatcher());
+    cache.getAwsCredentials(myConnectionFeature, mySupplier);
+    createPersistence(cache).write();
+
+    final Map<String, String> changedParameters = new HashMap<>(myConnectionFeature.getParameters());
+    changedParameters.put("awsRegionName", "eu-west-2");
+    myProject.updateFeature(myConnectionFeature.getId(), myConnectionFeature.getType(), changedParameters);
+    final AwsCredentialsHolderCache restoredCache = new AwsCredentialsHolderCache(getEventDispatcher());
+    createPersistence(restoredCache).load();
+    restoredCache.getAwsCredentials(myProject.findFeatureById(myConnectionFeature.getId()), mySupplier);
+
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  public void testSessionsCloseToExpirationAreNotRestored() throws ConnectionCredentialsException {
+    setInternalProperty(AwsCredentialsCachePersistence.MIN_REMAINING_VALIDITY_SECONDS, 2 * 60 * 60); //2 hours
+    final AwsCredentialsHolderCache cache = new AwsCredentialsHolderCache(getEventDispatcher());
+    cache.getAwsCredentials(myConnectionFeature, mySupplier);
+    createPersistence(cache).write();
+
+    final AwsCredentialsHolderCache restoredCache = new AwsCredentialsHolderCache(getEventDispatcher());
+    createPersistence(restoredCache).load();
+
+    Assert.assertEquals(restoredCache.getSize(), 0);
+  }
+
+  public void testChainedSessionsAreNotRestored_IfPrincipalConnectionChanged() throws ConnectionCredentialsException {
+    final SProjectFeatureDescriptor roleConnection = addRoleConnection();
+    final AwsCredentialsHolderCache cache = new AwsCredentialsHolderCache(getEventDispatcher());
+    cache.getAwsCredentials(roleConnection, mySupplier);
+    createPersistence(cache).write();
+
+    final Map<String, String> changedParameters = new HashMap<>(myConnectionFeature.getParameters());
+    changedParameters.put("awsRegionName", "eu-west-2");
+    myProject.updateFeature(myConnectionFeature.getId(), myConnectionFeature.getType(), changedParameters);
+    final AwsCredentialsHolderCache restoredCache = new AwsCredentialsHolderCache(getEventDispatcher());
+    createPersistence(restoredCache).load();
+
+    Assert.assertEquals(restoredCache.getSize(), 0);
+  }
+
+  public void testRestoredChainedSessionIsInvalidated_IfPrincipalConnectionChanged() throws ConnectionCredentialsException {
+    final SProjectFeatureDescriptor roleConnection = addRoleConnection();
+    final AwsCredentialsHolderCache cache = new AwsCredentialsHolderCache(getEventDispatcher());
+    cache.getAwsCredentials(roleConnection, mySupplier);
+    createPersistence(cache).write();
+
+    final AwsCredentialsHolderCache restoredCache = new AwsCredentialsHolderCache(getEventDispatcher());
+    createPersistence(restoredCache).load();
+    getEventDispatcher().getMulticaster().projectFeatureChanged(myProject, myConnectionFeature, myConnectionFeature);
+    restoredCache.getAwsCredentials(roleConnection, mySupplier);
+
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  private SProjectFeatureDescriptor addRoleConnection() {
+    final Map<String, String> roleParameters = new HashMap<>();
+    roleParameters.put(OAuthConstants.OAUTH_TYPE_PARAM, "AWS");
+    roleParameters.put(AwsCloudConnectorConstants.CHOSEN_AWS_CONN_ID_PARAM, myConnectionFeature.getId());
+    return myProject.addFeature(OAuthConstants.FEATURE_TYPE, roleParameters);
+  }
+
+  private AwsCredentialsCachePersistence createPersistence(final AwsCredentialsHolderCache cache) {
+    return new AwsCredentialsCachePersistence(cache, myProjectManager, myServerResponsibility, myServerPaths,
+                                              myFixture.getSingletonService(EncryptionManager.class), getEventDispatcher());
+  }
+}
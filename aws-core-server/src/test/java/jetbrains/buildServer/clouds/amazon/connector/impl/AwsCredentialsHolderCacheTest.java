@@ -1,12 +1,19 @@
 package jetbrains.buildServer.clouds.amazon.connector.impl;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsData;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsConnBuildFeatureParams;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsSessionCredentialsParams;
+import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
 import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
 import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
@@ -15,7 +22,11 @@ import org.mockito.Mockito;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.services.sts.model.Credentials;
+import software.amazon.awssdk.services.sts.model.StsException;
 
 @Test
 public class AwsCredentialsHolderCacheTest extends BaseServerTestCase {
@@ -107,4 +118,541 @@ public class AwsCredentialsHolderCacheTest extends BaseServerTestCase {
 
     Assert.assertEquals(myCounter.get(), 2);
   }
-}
\ No newline at end of file
+
+  public void testConcurrentRequestsAreCoalesced() throws Exception {
+    final CountDownLatch requestStarted = new CountDownLatch(1);
+    final CountDownLatch releaseRequest = new CountDownLatch(1);
+    final RequestSessionFunction slowSupplier = () -> {
+      myCounter.incrementAndGet();
+      requestStarted.countDown();
+      try {
+        releaseRequest.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new ConnectionCredentialsException("Interrupted");
+      }
+      return myCredentials;
+    };
+
+    final ExecutorService executor = Executors.newFixedThreadPool(5);
+    try {
+      final List<Future<AwsCredentialsData>> results = new ArrayList<>();
+      results.add(executor.submit(() -> cache.getAwsCredentials(myFeatureDescriptor, slowSupplier)));
+      Assert.assertTrue(requestStarted.await(10, TimeUnit.SECONDS));
+      for (int i = 0; i < 4; i++) {
+        results.add(executor.submit(() -> cache.getAwsCredentials(myFeatureDescriptor, slowSupplier)));
+      }
+      Thread.sleep(100);
+      releaseRequest.countDown();
+
+      for (Future<AwsCredentialsData> result : results) {
+        Assert.assertNotNull(result.get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Assert.assertEquals(myCounter.get(), 1);
+  }
+
+  public void testConcurrentRequestsGetTheSameException() throws Exception {
+    final CountDownLatch requestStarted = new CountDownLatch(1);
+    final CountDownLatch releaseRequest = new CountDownLatch(1);
+    final ConnectionCredentialsException failure = new ConnectionCredentialsException("STS is not available");
+    final RequestSessionFunction failingSupplier = () -> {
+      myCounter.incrementAndGet();
+      requestStarted.countDown();
+      try {
+        releaseRequest.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new ConnectionCredentialsException("Interrupted");
+      }
+      throw failure;
+    };
+
+    final ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      final List<Future<AwsCredentialsData>> results = new ArrayList<>();
+      results.add(executor.submit(() -> cache.getAwsCredentials(myFeatureDescriptor, failingSupplier)));
+      Assert.assertTrue(requestStarted.await(10, TimeUnit.SECONDS));
+      results.add(executor.submit(() -> cache.getAwsCredentials(myFeatureDescriptor, failingSupplier)));
+      results.add(executor.submit(() -> cache.getAwsCredentials(myFeatureDescriptor, failingSupplier)));
+      Thread.sleep(100);
+      releaseRequest.countDown();
+
+      for (Future<AwsCredentialsData> result : results) {
+        try {
+          result.get(10, TimeUnit.SECONDS);
+          Assert.fail("The request was expected to fail");
+        } catch (ExecutionException e) {
+          Assert.assertSame(e.getCause(), failure);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    Assert.assertEquals(myCounter.get(), 1);
+  }
+
+  public void testWaitingForInFlightRequestTimesOut() throws Exception {
+    setInternalProperty(AwsCredentialsHolderCache.IN_FLIGHT_REQUEST_WAIT_TIMEOUT_SECONDS, 1);
+    final CountDownLatch requestStarted = new CountDownLatch(1);
+    final CountDownLatch releaseRequest = new CountDownLatch(1);
+    final RequestSessionFunction slowSupplier = () -> {
+      requestStarted.countDown();
+      try {
+        releaseRequest.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        throw new ConnectionCredentialsException("Interrupted");
+      }
+      return myCredentials;
+    };
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      executor.submit(() -> cache.getAwsCredentials(myFeatureDescriptor, slowSupplier));
+      Assert.assertTrue(requestStarted.await(10, TimeUnit.SECONDS));
+      try {
+        cache.getAwsCredentials(myFeatureDescriptor, slowSupplier);
+        Assert.fail("Waiting for the in-flight request was expected to time out");
+      } catch (ConnectionCredentialsException e) {
+        Assert.assertTrue(e.getMessage().contains("Timed out"));
+      }
+    } finally {
+      releaseRequest.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  public void testUsedCredentialsAreRefreshedAheadOfExpiration() throws Exception {
+    setInternalProperty(SessionRefreshScheduler.REFRESH_AHEAD_LIFETIME_FRACTION, "0.5");
+    final List<Runnable> scheduledRefreshes = createCacheWithManualRefreshes();
+    final RequestSessionFunction shortLivedSupplier = createShortLivedSessionSupplier();
+
+    cache.getAwsCredentials(myFeatureDescriptor, shortLivedSupplier);
+    Assert.assertEquals(scheduledRefreshes.size(), 1);
+    scheduledRefreshes.get(0).run();
+    cache.getAwsCredentials(myFeatureDescriptor, shortLivedSupplier);
+
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  public void testUnusedCredentialsAreNotRefreshedAheadOfExpiration() throws Exception {
+    setInternalProperty(SessionRefreshScheduler.REFRESH_AHEAD_LIFETIME_FRACTION, "0.5");
+    setInternalProperty(SessionRefreshScheduler.REFRESH_AHEAD_IDLE_TIMEOUT_SECONDS, 0);
+    final List<Runnable> scheduledRefreshes = createCacheWithManualRefreshes();
+    final RequestSessionFunction shortLivedSupplier = createShortLivedSessionSupplier();
+
+    cache.getAwsCredentials(myFeatureDescriptor, shortLivedSupplier);
+    Assert.assertEquals(scheduledRefreshes.size(), 1);
+    scheduledRefreshes.get(0).run();
+
+    Assert.assertEquals(myCounter.get(), 1);
+    Assert.assertEquals(cache.getSize(), 0);
+  }
+
+  public void testRefreshAheadCanBeDisabled() throws Exception {
+    setInternalProperty(SessionRefreshScheduler.REFRESH_AHEAD_ENABLED, "false");
+    setInternalProperty(SessionRefreshScheduler.REFRESH_AHEAD_LIFETIME_FRACTION, "0.5");
+    final List<Runnable> scheduledRefreshes = createCacheWithManualRefreshes();
+    final RequestSessionFunction shortLivedSupplier = createShortLivedSessionSupplier();
+
+    cache.getAwsCredentials(myFeatureDescriptor, shortLivedSupplier);
+
+    Assert.assertTrue(scheduledRefreshes.isEmpty());
+    Assert.assertEquals(myCounter.get(), 1);
+  }
+
+  public void testSessionsWithDifferentDurationsAreCachedSeparately() throws ConnectionCredentialsException {
+    final SProjectFeatureDescriptor oneHourSession = createConnectionWithSessionDuration(60);
+    final SProjectFeatureDescriptor twoHoursSession = createConnectionWithSessionDuration(120);
+
+    cache.getAwsCredentials(oneHourSession, myMockSupplier);
+    cache.getAwsCredentials(twoHoursSession, myMockSupplier);
+    cache.getAwsCredentials(oneHourSession, myMockSupplier);
+    cache.getAwsCredentials(twoHoursSession, myMockSupplier);
+
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  public void testSessionDurationsInTheSameTierShareTheSession() throws ConnectionCredentialsException {
+    setInternalProperty(SessionDurationTiers.SESSION_DURATION_BUCKETING_ENABLED, "true");
+    setInternalProperty(SessionDurationTiers.SESSION_DURATION_TIERS_MINUTES, "30,60,120");
+
+    cache.getAwsCredentials(createConnectionWithSessionDuration(45), myMockSupplier);
+    cache.getAwsCredentials(createConnectionWithSessionDuration(55), myMockSupplier);
+    cache.getAwsCredentials(createConnectionWithSessionDuration(60), myMockSupplier);
+    cache.getAwsCredentials(createConnectionWithSessionDuration(65), myMockSupplier);
+
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  public void testAllSessionDurationsAreInvalidated_IfProjectFeatureChanged() throws ConnectionCredentialsException {
+    final SProjectFeatureDescriptor oneHourSession = createConnectionWithSessionDuration(60);
+    final SProjectFeatureDescriptor twoHoursSession = createConnectionWithSessionDuration(120);
+    cache.getAwsCredentials(oneHourSession, myMockSupplier);
+    cache.getAwsCredentials(twoHoursSession, myMockSupplier);
+
+    getEventDispatcher().getMulticaster().projectFeatureChanged(myProject, myFeatureDescriptor, myFeatureDescriptor);
+    cache.getAwsCredentials(oneHourSession, myMockSupplier);
+    cache.getAwsCredentials(twoHoursSession, myMockSupplier);
+
+    Assert.assertEquals(myCounter.get(), 4);
+  }
+
+  public void testCachedValueIsReturned_IfItSatisfiesRequiredValidity() throws ConnectionCredentialsException {
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier, Duration.ofMinutes(30));
+
+    Assert.assertEquals(myCounter.get(), 1);
+  }
+
+  public void testCachedValueIsNotReturned_IfItExpiresBeforeRequiredValidity() throws ConnectionCredentialsException {
+    final Credentials longLivedCredentials = Mockito.mock(Credentials.class);
+    Mockito.when(longLivedCredentials.expiration()).thenReturn(Instant.now().plus(3, ChronoUnit.HOURS));
+    final RequestSessionFunction supplier = () -> myCounter.incrementAndGet() == 1 ? myCredentials : longLivedCredentials;
+
+    cache.getAwsCredentials(myFeatureDescriptor, supplier);
+    cache.getAwsCredentials(myFeatureDescriptor, supplier, Duration.ofHours(2));
+    // the new session satisfies the shorter requirements as well
+    cache.getAwsCredentials(myFeatureDescriptor, supplier);
+
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  public void testRequiredValidityIsTakenFromTheRequestContext() throws ConnectionCredentialsException {
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    AwsCredentialsRequestContext.runWithRequiredValidity(Duration.ofHours(2), () -> cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier));
+
+    Assert.assertEquals(myCounter.get(), 2);
+    Assert.assertNull(AwsCredentialsRequestContext.getRequiredValidity());
+  }
+
+  public void testRequiredValidityIsAppliedOnlyToItsConnection() throws ConnectionCredentialsException {
+    final SProjectFeatureDescriptor otherConnection = TestUtils.createConnectionDescriptor(myProject.getProjectId(), "otherConnectionId", Collections.emptyMap());
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    cache.getAwsCredentials(otherConnection, myMockSupplier);
+
+    AwsCredentialsRequestContext.runWithRequiredValidity(Collections.singletonMap("otherConnectionId", Duration.ofHours(2)), () -> {
+      cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+      return cache.getAwsCredentials(otherConnection, myMockSupplier);
+    });
+
+    Assert.assertEquals(myCounter.get(), 3);
+  }
+
+  public void testRequiredValidityIsNotAppliedToPrincipalLookups() throws ConnectionCredentialsException {
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+
+    AwsCredentialsRequestContext.runWithRequiredValidity(Duration.ofHours(2), () -> AwsCredentialsRequestContext.runWithoutRequiredValidity(
+      () -> cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier)));
+
+    Assert.assertEquals(myCounter.get(), 1);
+  }
+
+  public void testLeastRecentlyUsedSessionsAreEvicted_IfMaxSizeReached() throws ConnectionCredentialsException {
+    setInternalProperty(AwsCredentialsHolderCache.CREDENTIALS_CACHE_MAX_SIZE, 2);
+    cache = new AwsCredentialsHolderCache(getEventDispatcher());
+
+    for (int i = 0; i < 3; i++) {
+      cache.getAwsCredentials(TestUtils.createConnectionDescriptor(myProject.getProjectId(), "connectionId" + i, Collections.emptyMap()), myMockSupplier);
+    }
+
+    Assert.assertEquals(cache.getSize(), 2);
+    Assert.assertEquals(cache.getSizeEvictionCount(), 1);
+    Assert.assertEquals(cache.getStats().evictionCount(), 1);
+
+    for (int i = 0; i < 3; i++) {
+      cache.getAwsCredentials(TestUtils.createConnectionDescriptor(myProject.getProjectId(), "connectionId" + i, Collections.emptyMap()), myMockSupplier);
+    }
+    Assert.assertTrue(myCounter.get() > 3, "The evicted session must be requested again");
+  }
+
+  public void testCachedValueIsNotReturned_IfParentProjectRemoved() throws ConnectionCredentialsException {
+    final SProject subProject = myProject.createProject("subProject", "Sub Project");
+    final SProjectFeatureDescriptor subProjectConnection = TestUtils.createConnectionDescriptor(subProject.getProjectId(), "subProjectConnectionId", Collections.emptyMap());
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    cache.getAwsCredentials(subProjectConnection, myMockSupplier);
+
+    getEventDispatcher().getMulticaster().projectRemoved(myProject);
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    cache.getAwsCredentials(subProjectConnection, myMockSupplier);
+
+    Assert.assertEquals(myCounter.get(), 4);
+  }
+
+  public void testOtherProjectsAreNotInvalidated_IfProjectRestored() throws ConnectionCredentialsException {
+    final SProjectFeatureDescriptor otherProjectConnection = TestUtils.createConnectionDescriptor("otherProject", "otherConnectionId", Collections.emptyMap());
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    cache.getAwsCredentials(otherProjectConnection, myMockSupplier);
+
+    getEventDispatcher().getMulticaster().projectRestored(myProject.getProjectId());
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    cache.getAwsCredentials(otherProjectConnection, myMockSupplier);
+
+    Assert.assertEquals(myCounter.get(), 3);
+  }
+
+  public void testChainedRoleSessionsAreInvalidated_IfPrincipalConnectionChanged() throws ConnectionCredentialsException {
+    final SProjectFeatureDescriptor roleConnection = TestUtils.createConnectionDescriptor(
+      myProject.getProjectId(), "roleConnectionId", Collections.singletonMap(AwsCloudConnectorConstants.CHOSEN_AWS_CONN_ID_PARAM, "connectionId"));
+    final SProjectFeatureDescriptor chainedRoleConnection = TestUtils.createConnectionDescriptor(
+      "subProject", "chainedRoleConnectionId", Collections.singletonMap(AwsCloudConnectorConstants.CHOSEN_AWS_CONN_ID_PARAM, "roleConnectionId"));
+    final SProjectFeatureDescriptor unrelatedConnection = TestUtils.createConnectionDescriptor(myProject.getProjectId(), "unrelatedConnectionId", Collections.emptyMap());
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    cache.getAwsCredentials(roleConnection, myMockSupplier);
+    cache.getAwsCredentials(chainedRoleConnection, myMockSupplier);
+    cache.getAwsCredentials(unrelatedConnection, myMockSupplier);
+
+    getEventDispatcher().getMulticaster().projectFeatureChanged(myProject, myFeatureDescriptor, myFeatureDescriptor);
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    cache.getAwsCredentials(roleConnection, myMockSupplier);
+    cache.getAwsCredentials(chainedRoleConnection, myMockSupplier);
+    cache.getAwsCredentials(unrelatedConnection, myMockSupplier);
+
+    Assert.assertEquals(myCounter.get(), 7);
+  }
+
+  public void testPrincipalSessionIsKept_IfDependentRoleConnectionChanged() throws ConnectionCredentialsException {
+    final SProjectFeatureDescriptor roleConnection = TestUtils.createConnectionDescriptor(
+      myProject.getProjectId(), "roleConnectionId", Collections.singletonMap(AwsCloudConnectorConstants.CHOSEN_AWS_CONN_ID_PARAM, "connectionId"));
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    cache.getAwsCredentials(roleConnection, myMockSupplier);
+
+    getEventDispatcher().getMulticaster().projectFeatureChanged(myProject, roleConnection, roleConnection);
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    cache.getAwsCredentials(roleConnection, myMockSupplier);
+
+    Assert.assertEquals(myCounter.get(), 3);
+  }
+
+  public void testConnectionsWithIdenticalRequestsShareTheSession() throws ConnectionCredentialsException {
+    setInternalProperty(AwsCredentialsHolderCache.SHARED_SESSIONS_ENABLED, "true");
+    final String fingerprint = StsRequestFingerprint.of("GetSessionToken", "ACCESS_KEY_ID", "SECRET_ACCESS_KEY", "60");
+    final RequestSessionFunction sharedSupplier = () -> cache.getSharedSession(fingerprint, myMockSupplier);
+
+    cache.getAwsCredentials(myFeatureDescriptor, sharedSupplier);
+    cache.getAwsCredentials(TestUtils.createConnectionDescriptor("otherProject", "otherConnectionId", Collections.emptyMap()), sharedSupplier);
+    cache.getSharedSession(StsRequestFingerprint.of("GetSessionToken", "OTHER_ACCESS_KEY_ID", "SECRET_ACCESS_KEY", "60"), myMockSupplier);
+
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  public void testSessionsAreNotShared_IfDisabled() throws ConnectionCredentialsException {
+    final String fingerprint = StsRequestFingerprint.of("GetSessionToken", "ACCESS_KEY_ID", "SECRET_ACCESS_KEY", "60");
+
+    cache.getSharedSession(fingerprint, myMockSupplier);
+    cache.getSharedSession(fingerprint, myMockSupplier);
+
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  public void testNonRetryableFailureIsCached() throws ConnectionCredentialsException {
+    final RequestSessionFunction failingSupplier = createFailingSupplier("AccessDenied");
+
+    assertRequestFails(failingSupplier, StsException.class);
+    assertRequestFails(failingSupplier, ConnectionCredentialsException.class);
+    Assert.assertEquals(myCounter.get(), 1);
+
+    getEventDispatcher().getMulticaster().projectFeatureChanged(myProject, myFeatureDescriptor, myFeatureDescriptor);
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  public void testRetryableFailureIsNotCached() {
+    final RequestSessionFunction failingSupplier = createFailingSupplier("Throttling");
+
+    assertRequestFails(failingSupplier, StsException.class);
+    assertRequestFails(failingSupplier, StsException.class);
+
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  public void testLastKnownGoodCredentialsAreReturned_IfStsIsUnavailable() throws ConnectionCredentialsException {
+    setInternalProperty(AwsCredentialsHolderCache.CREDENTIALS_CACHE_EXPIRATION_BUFFER_SECONDS, 2 * 60 * 60); //2 hours
+    final RequestSessionFunction unavailableStsSupplier = () -> {
+      if (myCounter.incrementAndGet() > 1) {
+        throw SdkClientException.create("Unable to execute HTTP request: Connect timed out");
+      }
+      return myCredentials;
+    };
+
+    final AwsCredentialsData firstCredentials = cache.getAwsCredentials(myFeatureDescriptor, unavailableStsSupplier);
+    final AwsCredentialsData lastKnownGoodCredentials = cache.getAwsCredentials(myFeatureDescriptor, unavailableStsSupplier);
+
+    Assert.assertEquals(myCounter.get(), 2);
+    Assert.assertEquals(lastKnownGoodCredentials.getAccessKeyId(), firstCredentials.getAccessKeyId());
+  }
+
+  public void testLastKnownGoodCredentialsAreNotReturned_IfTheyExpireBeforeRequiredValidity() throws ConnectionCredentialsException {
+    final RequestSessionFunction unavailableStsSupplier = () -> {
+      if (myCounter.incrementAndGet() > 1) {
+        throw SdkClientException.create("Unable to execute HTTP request: Connect timed out");
+      }
+      return myCredentials;
+    };
+    cache.getAwsCredentials(myFeatureDescriptor, unavailableStsSupplier);
+
+    try {
+      cache.getAwsCredentials(myFeatureDescriptor, unavailableStsSupplier, Duration.ofHours(2));
+      Assert.fail("The request was expected to fail");
+    } catch (ConnectionCredentialsException e) {
+      Assert.assertEquals(e.getClass(), ConnectionCredentialsException.class);
+    }
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  public void testCredentialsProviderReusesSession() {
+    final AwsConnectionCredentialsProvider provider = new AwsConnectionCredentialsProvider(cache, myFeatureDescriptor, () -> {
+      myCounter.incrementAndGet();
+      return createSession("accessKeyId", Instant.now().plus(1, ChronoUnit.HOURS));
+    });
+
+    final AwsCredentials credentials = provider.resolveCredentials();
+
+    Assert.assertSame(provider.resolveCredentials(), credentials);
+    Assert.assertEquals(credentials.accessKeyId(), "accessKeyId");
+    Assert.assertEquals(myCounter.get(), 1);
+  }
+
+  public void testCredentialsProviderRefreshesSessionBeforeExpiry() {
+    final AwsConnectionCredentialsProvider provider = new AwsConnectionCredentialsProvider(cache, myFeatureDescriptor, () -> {
+      return myCounter.incrementAndGet() == 1
+             ? createSession("expiringAccessKeyId", Instant.now().plus(1, ChronoUnit.MINUTES))
+             : createSession("accessKeyId", Instant.now().plus(1, ChronoUnit.HOURS));
+    });
+
+    Assert.assertEquals(provider.resolveCredentials().accessKeyId(), "expiringAccessKeyId");
+    Assert.assertEquals(provider.resolveCredentials().accessKeyId(), "accessKeyId");
+    Assert.assertEquals(myCounter.get(), 2);
+  }
+
+  public void testAsyncRequestIsCompletedFromCache() throws Exception {
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+
+    final CompletableFuture<AwsCredentialsData> request = cache.getAwsCredentialsAsync(myFeatureDescriptor, myMockSupplier, () -> {
+      throw new IllegalStateException("The session is cached");
+    });
+
+    Assert.assertTrue(request.isDone());
+    Assert.assertNotNull(request.get());
+    Assert.assertEquals(myCounter.get(), 1);
+  }
+
+  public void testAsyncRequestsAreCoalesced() throws Exception {
+    final CompletableFuture<Credentials> stsResponse = new CompletableFuture<>();
+    final AsyncRequestSessionFunction asyncSupplier = () -> {
+      myCounter.incrementAndGet();
+      return stsResponse;
+    };
+
+    final CompletableFuture<AwsCredentialsData> firstRequest = cache.getAwsCredentialsAsync(myFeatureDescriptor, myMockSupplier, asyncSupplier);
+    final CompletableFuture<AwsCredentialsData> secondRequest = cache.getAwsCredentialsAsync(myFeatureDescriptor, myMockSupplier, asyncSupplier);
+    Assert.assertFalse(firstRequest.isDone());
+    Assert.assertFalse(secondRequest.isDone());
+
+    stsResponse.complete(myCredentials);
+    Assert.assertNotNull(firstRequest.get(10, TimeUnit.SECONDS));
+    Assert.assertNotNull(secondRequest.get(10, TimeUnit.SECONDS));
+    Assert.assertEquals(myCounter.get(), 1);
+
+    // the session is cached for the blocking lookups as well
+    cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier);
+    Assert.assertEquals(myCounter.get(), 1);
+  }
+
+  public void testBlockingLookupWaitsForAsyncRequest() throws Exception {
+    final CompletableFuture<Credentials> stsResponse = new CompletableFuture<>();
+    cache.getAwsCredentialsAsync(myFeatureDescriptor, myMockSupplier, () -> stsResponse);
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final Future<AwsCredentialsData> blockingLookup = executor.submit(() -> cache.getAwsCredentials(myFeatureDescriptor, myMockSupplier));
+      stsResponse.complete(myCredentials);
+
+      Assert.assertNotNull(blockingLookup.get(10, TimeUnit.SECONDS));
+      Assert.assertEquals(myCounter.get(), 0);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testAsyncRequestFails_IfSessionCannotBeRequested() throws Exception {
+    final CompletableFuture<Credentials> stsResponse = new CompletableFuture<>();
+    final CompletableFuture<AwsCredentialsData> request = cache.getAwsCredentialsAsync(myFeatureDescriptor, myMockSupplier, () -> stsResponse);
+    stsResponse.completeExceptionally(new CompletionException(StsException.builder()
+                                                                          .message("Request failed")
+                                                                          .awsErrorDetails(AwsErrorDetails.builder().errorCode("AccessDenied").build())
+                                                                          .build()));
+
+    try {
+      request.get(10, TimeUnit.SECONDS);
+      Assert.fail("The request was expected to fail");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof StsException);
+    }
+    // the non-retryable failure is remembered for the blocking lookups as well
+    assertRequestFails(myMockSupplier, ConnectionCredentialsException.class);
+    Assert.assertEquals(myCounter.get(), 0);
+  }
+
+  private void assertRequestFails(final RequestSessionFunction supplier, final Class<? extends Exception> expectedException) {
+    try {
+      cache.getAwsCredentials(myFeatureDescriptor, supplier);
+      Assert.fail("The request was expected to fail");
+    } catch (Exception e) {
+      Assert.assertEquals(e.getClass(), expectedException);
+    }
+  }
+
+  private RequestSessionFunction createFailingSupplier(final String errorCode) {
+    return () -> {
+      myCounter.incrementAndGet();
+      throw (StsException)StsException.builder()
+                                      .message("Request failed")
+                                      .awsErrorDetails(AwsErrorDetails.builder().errorCode(errorCode).build())
+                                      .build();
+    };
+  }
+
+  private static Credentials createSession(final String accessKeyId, final Instant expiration) {
+    return Credentials.builder()
+                      .accessKeyId(accessKeyId)
+                      .secretAccessKey("secretAccessKey")
+                      .sessionToken("sessionToken")
+                      .expiration(expiration)
+                      .build();
+  }
+
+  private SProjectFeatureDescriptor createConnectionWithSessionDuration(final int sessionDurationMinutes) {
+    return TestUtils.createConnectionDescriptor(myProject.getProjectId(),
+                                                "connectionId",
+                                                Collections.singletonMap(AwsSessionCredentialsParams.SESSION_DURATION_PARAM, String.valueOf(sessionDurationMinutes)));
+  }
+
+  private RequestSessionFunction createShortLivedSessionSupplier() {
+    return () -> {
+      final int requestNumber = myCounter.incrementAndGet();
+      return Credentials.builder()
+                        .accessKeyId("ACCESS_KEY_" + requestNumber)
+                        .secretAccessKey("SECRET_KEY")
+                        .sessionToken("SESSION_TOKEN")
+                        .expiration(requestNumber == 1 ? Instant.now().plusSeconds(2) : Instant.now().plus(1, ChronoUnit.HOURS))
+                        .build();
+    };
+  }
+
+  /**
+   * @return the refreshes scheduled by the cache, they are run only when the test runs them
+   */
+  private List<Runnable> createCacheWithManualRefreshes() {
+    final List<Runnable> scheduledRefreshes = new ArrayList<>();
+    final ScheduledExecutorService executor = Mockito.mock(ScheduledExecutorService.class);
+    Mockito.when(executor.schedule(Mockito.any(Runnable.class), Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenAnswer(invocation -> {
+      scheduledRefreshes.add(invocation.getArgument(0));
+      return Mockito.mock(ScheduledFuture.class);
+    });
+    cache = new AwsCredentialsHolderCache(getEventDispatcher(), new StsRequestDispatcher(getEventDispatcher()), new SessionRefreshScheduler(executor));
+    return scheduledRefreshes;
+  }
+}
@@ -0,0 +1,64 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static java.util.Arrays.asList;
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams.STS_ENDPOINT_PARAM;
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams.STS_GLOBAL_ENDPOINT;
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants.REGION_NAME_PARAM;
+
+@Test
+public class StsEndpointSelectorTest extends BaseTestCase {
+
+  private StsEndpointSelector mySelector;
+  private Map<String, String> myConnectionProperties;
+
+  @BeforeMethod
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    setInternalProperty(StsEndpointSelector.PROBE_INTERVAL_SECONDS, "0");
+    mySelector = new StsEndpointSelector();
+    myConnectionProperties = new HashMap<>();
+    myConnectionProperties.put(STS_ENDPOINT_PARAM, "auto");
+    myConnectionProperties.put(REGION_NAME_PARAM, "eu-central-1");
+  }
+
+  @AfterMethod
+  @Override
+  public void tearDown() throws Exception {
+    mySelector.dispose();
+    super.tearDown();
+  }
+
+  public void testConnectionRegionIsPreferred() {
+    setInternalProperty(StsEndpointSelector.ADDITIONAL_REGIONS, "eu-west-1");
+
+    assertTrue(StsEndpointSelector.isAuto(myConnectionProperties));
+    assertEquals(asList("https://sts.eu-central-1.amazonaws.com", "https://sts.eu-west-1.amazonaws.com", STS_GLOBAL_ENDPOINT), getEndpoints());
+    assertEquals("eu-west-1", mySelector.getCandidates(myConnectionProperties).get(1).get(REGION_NAME_PARAM));
+  }
+
+  public void testFailedEndpointIsTriedLast() {
+    mySelector.recordFailure("https://sts.eu-central-1.amazonaws.com");
+
+    assertEquals(asList(STS_GLOBAL_ENDPOINT, "https://sts.eu-central-1.amazonaws.com"), getEndpoints());
+
+    mySelector.recordSuccess("https://sts.eu-central-1.amazonaws.com");
+
+    assertEquals(asList("https://sts.eu-central-1.amazonaws.com", STS_GLOBAL_ENDPOINT), getEndpoints());
+  }
+
+  private List<String> getEndpoints() {
+    return mySelector.getCandidates(myConnectionProperties).stream()
+                     .map(candidate -> candidate.get(STS_ENDPOINT_PARAM))
+                     .collect(Collectors.toList());
+  }
+}
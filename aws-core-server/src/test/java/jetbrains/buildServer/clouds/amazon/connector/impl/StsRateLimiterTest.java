@@ -0,0 +1,58 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class StsRateLimiterTest extends BaseTestCase {
+
+  private StsRateLimiter myRateLimiter;
+
+  @BeforeMethod
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    setInternalProperty(StsRateLimiter.REQUESTS_PER_SECOND, "1");
+    setInternalProperty(StsRateLimiter.BURST, "10");
+    setInternalProperty(StsRateLimiter.MAX_QUEUE_TIME_SECONDS, "0");
+    myRateLimiter = new StsRateLimiter();
+  }
+
+  public void testBackgroundRequestsLeaveTokensForBuildStart() throws ConnectionCredentialsException {
+    int backgroundRequests = 0;
+    while (tryAcquire("account/role", StsRequestPriority.BACKGROUND)) {
+      backgroundRequests++;
+    }
+
+    assertEquals(5, backgroundRequests);
+    assertTrue(tryAcquire("account/role", StsRequestPriority.BUILD_START));
+    assertTrue(tryAcquire("otherAccount/role", StsRequestPriority.BACKGROUND));
+    assertEquals(Long.valueOf(1), myRateLimiter.getStats().get("background.throttled"));
+  }
+
+  public void testProjectConcurrencyIsLimited() throws ConnectionCredentialsException {
+    setInternalProperty(StsRateLimiter.PROJECT_MAX_CONCURRENT_REQUESTS, "1");
+
+    try (StsRateLimiter.Permit ignored = myRateLimiter.acquire("account/role", "project", StsRequestPriority.INTERACTIVE)) {
+      try {
+        myRateLimiter.acquire("otherAccount/role", "project", StsRequestPriority.BUILD_START);
+        fail("The concurrent request of the same project was expected to be throttled");
+      } catch (StsRequestThrottledException expected) {
+      }
+      myRateLimiter.acquire("otherAccount/role", "otherProject", StsRequestPriority.BUILD_START).close();
+    }
+
+    myRateLimiter.acquire("otherAccount/role", "project", StsRequestPriority.BUILD_START).close();
+  }
+
+  private boolean tryAcquire(final String limiterKey, final StsRequestPriority priority) {
+    try {
+      myRateLimiter.acquire(limiterKey, "project", priority).close();
+      return true;
+    } catch (ConnectionCredentialsException e) {
+      return false;
+    }
+  }
+}
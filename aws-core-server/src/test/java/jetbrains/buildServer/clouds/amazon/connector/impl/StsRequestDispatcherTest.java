@@ -0,0 +1,162 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams;
+import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import jetbrains.buildServer.serverSide.impl.BaseServerTestCase;
+import jetbrains.buildServer.testUtils.TestUtils;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+@Test
+public class StsRequestDispatcherTest extends BaseServerTestCase {
+
+  private StsRequestDispatcher myDispatcher;
+  private SProjectFeatureDescriptor myFeatureDescriptor;
+  private Credentials myCredentials;
+  private AtomicInteger myCounter;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myDispatcher = new StsRequestDispatcher(getEventDispatcher());
+    myCredentials = Mockito.mock(Credentials.class);
+    Mockito.when(myCredentials.expiration()).thenReturn(Instant.now().plus(1, ChronoUnit.HOURS));
+    myFeatureDescriptor = TestUtils.createConnectionDescriptor(myProject.getProjectId(), "connectionId", Collections.emptyMap());
+    myCounter = new AtomicInteger(0);
+  }
+
+  public void testCircuitBreakerOpens_AfterRepeatedTransientFailures() {
+    setInternalProperty(StsCircuitBreaker.FAILURE_THRESHOLD, 3);
+    final RequestSessionFunction unavailableSts = () -> {
+      myCounter.incrementAndGet();
+      throw SdkClientException.create("Unable to execute HTTP request: Connect timed out");
+    };
+    final Map<String, String> connectionProperties = Collections.singletonMap(AwsCloudConnectorConstants.REGION_NAME_PARAM, "eu-west-1");
+
+    for (int i = 0; i < 4; i++) {
+      try {
+        myDispatcher.call(connectionProperties, unavailableSts);
+        Assert.fail("The request was expected to fail");
+      } catch (Exception e) {
+        Assert.assertEquals(e.getClass(), i < 3 ? SdkClientException.class : StsCircuitOpenException.class);
+      }
+    }
+
+    Assert.assertEquals(myCounter.get(), 3);
+    Assert.assertEquals(myDispatcher.getCircuitBreakerStates().get("eu-west-1"), StsCircuitBreaker.State.OPEN);
+    Assert.assertEquals(myDispatcher.getCircuitBreakerTransitionsCounts().get("eu-west-1"), Long.valueOf(1));
+  }
+
+  public void testStsRequestFailsOver_IfAutoEndpointIsUnavailable() throws ConnectionCredentialsException {
+    setInternalProperty(StsEndpointSelector.PROBE_INTERVAL_SECONDS, 0);
+    final Map<String, String> connectionProperties = new HashMap<>();
+    connectionProperties.put(AwsAccessKeysParams.STS_ENDPOINT_PARAM, "auto");
+    connectionProperties.put(AwsCloudConnectorConstants.REGION_NAME_PARAM, "eu-central-1");
+    final List<String> requestedEndpoints = new ArrayList<>();
+
+    final SProjectFeatureDescriptor connection = TestUtils.createConnectionDescriptor(myProject.getProjectId(), "connectionId", connectionProperties);
+
+    final Credentials credentials = myDispatcher.call(connection, endpointProperties -> {
+      requestedEndpoints.add(endpointProperties.get(AwsAccessKeysParams.STS_ENDPOINT_PARAM));
+      if (requestedEndpoints.size() == 1) {
+        throw SdkClientException.create("Unable to execute HTTP request: Connect timed out");
+      }
+      return myCredentials;
+    });
+
+    Assert.assertSame(credentials, myCredentials);
+    Assert.assertEquals(requestedEndpoints, Arrays.asList("https://sts.eu-central-1.amazonaws.com", AwsAccessKeysParams.STS_GLOBAL_ENDPOINT));
+  }
+
+  public void testAsyncStsRequestFailsOver_IfAutoEndpointIsUnavailable() throws Exception {
+    setInternalProperty(StsEndpointSelector.PROBE_INTERVAL_SECONDS, 0);
+    final Map<String, String> connectionProperties = new HashMap<>();
+    connectionProperties.put(AwsAccessKeysParams.STS_ENDPOINT_PARAM, "auto");
+    connectionProperties.put(AwsCloudConnectorConstants.REGION_NAME_PARAM, "eu-central-1");
+    final List<String> requestedEndpoints = new ArrayList<>();
+
+    final SProjectFeatureDescriptor connection = TestUtils.createConnectionDescriptor(myProject.getProjectId(), "connectionId", connectionProperties);
+
+    final CompletableFuture<Credentials> request = myDispatcher.callAsync(connection, endpointProperties -> {
+      requestedEndpoints.add(endpointProperties.get(AwsAccessKeysParams.STS_ENDPOINT_PARAM));
+      if (requestedEndpoints.size() == 1) {
+        return StsRequestDispatcher.failedFuture(SdkClientException.create("Unable to execute HTTP request: Connect timed out"));
+      }
+      return CompletableFuture.completedFuture(myCredentials);
+    });
+
+    Assert.assertSame(request.get(10, TimeUnit.SECONDS), myCredentials);
+    Assert.assertEquals(requestedEndpoints, Arrays.asList("https://sts.eu-central-1.amazonaws.com", AwsAccessKeysParams.STS_GLOBAL_ENDPOINT));
+  }
+
+  public void testHedgedRequestTakesRateLimiterPermit() throws ConnectionCredentialsException {
+    setInternalProperty(StsRateLimiter.RATE_LIMITER_ENABLED, true);
+    setInternalProperty(StsRateLimiter.PROJECT_MAX_CONCURRENT_REQUESTS, 1);
+    setInternalProperty(StsRateLimiter.MAX_QUEUE_TIME_SECONDS, 0);
+    setInternalProperty(StsRequestHedger.HEDGING_ENABLED, true);
+    setInternalProperty(StsRequestHedger.MAX_RATE, "1");
+    setInternalProperty(StsRequestHedger.DEFAULT_DELAY_MILLIS, 50);
+
+    final Credentials credentials = myDispatcher.call(myFeatureDescriptor, endpointProperties -> {
+      myCounter.incrementAndGet();
+      try {
+        Thread.sleep(500);
+      } catch (InterruptedException e) {
+        throw new ConnectionCredentialsException("Interrupted");
+      }
+      return myCredentials;
+    });
+
+    // the hedge is throttled while the request holds the only permit of the project
+    Assert.assertSame(credentials, myCredentials);
+    Assert.assertEquals(myCounter.get(), 1);
+  }
+
+  public void testStsRequestIsNotSent_IfDeadlineIsTooClose() {
+    setInternalProperty(StsRequestDispatcher.MIN_STS_REQUEST_TIME_MILLIS, 1000);
+
+    try {
+      AwsCredentialsRequestContext.runWithTimeout(Duration.ofMillis(100), () -> myDispatcher.call(myFeatureDescriptor, endpointProperties -> {
+        myCounter.incrementAndGet();
+        return myCredentials;
+      }));
+      Assert.fail("The request was expected to fail");
+    } catch (ConnectionCredentialsException e) {
+      Assert.assertEquals(e.getClass(), AwsCredentialsDeadlineException.class);
+    }
+
+    Assert.assertEquals(myCounter.get(), 0);
+  }
+
+  public void testNestedLookupSharesDeadline() throws ConnectionCredentialsException {
+    final List<Duration> remainingTimes = new ArrayList<>();
+
+    AwsCredentialsRequestContext.runWithTimeout(Duration.ofSeconds(10), () -> AwsCredentialsRequestContext.runWithTimeout(
+      Duration.ofMinutes(10), () -> myDispatcher.call(myFeatureDescriptor, endpointProperties -> {
+        remainingTimes.add(AwsCredentialsRequestContext.getRemainingTime());
+        return myCredentials;
+      })));
+
+    Assert.assertEquals(remainingTimes.size(), 1);
+    Assert.assertTrue(remainingTimes.get(0).compareTo(Duration.ofSeconds(10)) <= 0);
+    Assert.assertNull(AwsCredentialsRequestContext.getRemainingTime());
+  }
+}
@@ -0,0 +1,110 @@
+package jetbrains.buildServer.clouds.amazon.connector.impl;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.connections.credentials.ConnectionCredentialsException;
+import org.mockito.Mockito;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.services.sts.model.Credentials;
+
+@Test
+public class StsRequestHedgerTest extends BaseTestCase {
+
+  private StsRequestHedger myHedger;
+  private CountDownLatch myPrimaryCancelled;
+  private Credentials myPrimaryCredentials;
+  private Credentials myHedgeCredentials;
+
+  @BeforeMethod
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    setInternalProperty(StsRequestHedger.DEFAULT_DELAY_MILLIS, "50");
+    myHedger = new StsRequestHedger();
+    myPrimaryCancelled = new CountDownLatch(1);
+    myPrimaryCredentials = Mockito.mock(Credentials.class);
+    myHedgeCredentials = Mockito.mock(Credentials.class);
+  }
+
+  @AfterMethod
+  @Override
+  public void tearDown() throws Exception {
+    myHedger.dispose();
+    super.tearDown();
+  }
+
+  public void testHedgedRequestWins_IfRequestIsSlow() throws ConnectionCredentialsException, InterruptedException {
+    setInternalProperty(StsRequestHedger.MAX_RATE, "1");
+
+    final Credentials credentials = myHedger.call(this::slowRequest, () -> myHedgeCredentials);
+
+    assertSame(myHedgeCredentials, credentials);
+    assertEquals(1, myHedger.getRequestsCount());
+    assertEquals(1, myHedger.getHedgesCount());
+    assertEquals(1, myHedger.getHedgeWinsCount());
+    assertTrue("The slow request must be cancelled", myPrimaryCancelled.await(10, TimeUnit.SECONDS));
+    assertFalse("The interruption of the slow request must be cleared", Thread.currentThread().isInterrupted());
+  }
+
+  public void testRequestIsSentFromCallingThread() throws ConnectionCredentialsException {
+    final Thread callingThread = Thread.currentThread();
+
+    final Credentials credentials = myHedger.call(() -> {
+      assertSame(callingThread, Thread.currentThread());
+      return myPrimaryCredentials;
+    }, () -> myHedgeCredentials);
+
+    assertSame(myPrimaryCredentials, credentials);
+    assertEquals(0, myHedger.getHedgesCount());
+  }
+
+  public void testRequestFailure_IfHedgeFails() {
+    setInternalProperty(StsRequestHedger.MAX_RATE, "1");
+
+    try {
+      myHedger.call(() -> {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          throw new ConnectionCredentialsException("Interrupted");
+        }
+        throw new ConnectionCredentialsException("Request failed");
+      }, () -> {
+        throw new ConnectionCredentialsException("Hedge failed");
+      });
+      fail("The request was expected to fail");
+    } catch (ConnectionCredentialsException e) {
+      assertEquals("Request failed", e.getMessage());
+    }
+    assertEquals(1, myHedger.getHedgesCount());
+  }
+
+  public void testRequestIsNotHedged_IfBudgetIsExhausted() throws ConnectionCredentialsException {
+    setInternalProperty(StsRequestHedger.MAX_RATE, "0");
+
+    final Credentials credentials = myHedger.call(() -> {
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        throw new ConnectionCredentialsException("Interrupted");
+      }
+      return myPrimaryCredentials;
+    }, () -> myHedgeCredentials);
+
+    assertSame(myPrimaryCredentials, credentials);
+    assertEquals(0, myHedger.getHedgesCount());
+  }
+
+  private Credentials slowRequest() throws ConnectionCredentialsException {
+    try {
+      Thread.sleep(10_000);
+    } catch (InterruptedException e) {
+      myPrimaryCancelled.countDown();
+      throw new ConnectionCredentialsException("Interrupted");
+    }
+    return myPrimaryCredentials;
+  }
+}
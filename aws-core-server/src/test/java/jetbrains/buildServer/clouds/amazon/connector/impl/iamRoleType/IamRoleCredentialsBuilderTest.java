@@ -1,6 +1,7 @@
 package jetbrains.buildServer.clouds.amazon.connector.impl.iamRoleType;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsData;
 import jetbrains.buildServer.clouds.amazon.connector.AwsCredentialsHolder;
@@ -9,9 +10,11 @@ import jetbrains.buildServer.clouds.amazon.connector.impl.LinkedAwsConnectionPro
 import jetbrains.buildServer.clouds.amazon.connector.impl.iamRoleType.externalId.AwsExternalIdsManagerImpl;
 import jetbrains.buildServer.clouds.amazon.connector.impl.staticType.StaticCredentialsBuilder;
 import jetbrains.buildServer.clouds.amazon.connector.testUtils.AbstractAwsConnectionTest;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.TeamCityStsClientBuilder;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAssumeIamRoleParams;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
+import jetbrains.buildServer.serverSide.InvalidProperty;
 import jetbrains.buildServer.serverSide.SProject;
 import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
 import jetbrains.buildServer.serverSide.SecurityContextEx;
@@ -171,6 +174,35 @@ public class IamRoleCredentialsBuilderTest extends AbstractAwsConnectionTest {
     }
   }
 
+  @Test
+  public void givenAwsConnFactory_withAutoStsEndpoint_thenReturnIamRoleSessionAwsCredentials() {
+    try {
+      //noinspection unchecked
+      when(mySecurityContext.runAsSystemUnchecked(Mockito.any(SecurityContextEx.RunAsActionWithResult.class)))
+        .thenAnswer((a) -> ((SecurityContextEx.RunAsActionWithResult<?>)a.getArguments()[0]).run());
+      Map<String, String> connectionProperties = createIamRoleConnectionProperties();
+      connectionProperties.put(STS_ENDPOINT_PARAM, TeamCityStsClientBuilder.STS_ENDPOINT_AUTO);
+      List<InvalidProperty> invalidProperties = getAwsConnectorFactory().getInvalidProperties(connectionProperties);
+      assertFalse(invalidProperties.stream().anyMatch(invalidProperty -> STS_ENDPOINT_PARAM.equals(invalidProperty.getPropertyName())));
+
+      SProjectFeatureDescriptor connectionFeature = new ProjectFeatureDescriptorImpl(
+        TEST_IAM_ROLE_AWS_CONN_ID,
+        AwsConnectionProvider.TYPE,
+        connectionProperties,
+        myProject.getProjectId()
+      );
+      addTeamCityAwsConnection(myProject, connectionFeature);
+      AwsCredentialsHolder credentialsHolder = getAwsConnectorFactory()
+        .buildAwsCredentialsProvider(connectionFeature);
+      assertEquals(TEST_IAM_ROLE_SESSION_ACCESS_KEY_ID, credentialsHolder.getAwsCredentials().getAccessKeyId());
+      assertEquals(TEST_IAM_ROLE_SESSION_SECRET_ACCESS_KEY, credentialsHolder.getAwsCredentials().getSecretAccessKey());
+      assertEquals(TEST_IAM_ROLE_SESSION_TOKEN, credentialsHolder.getAwsCredentials().getSessionToken());
+
+    } catch (ConnectionCredentialsException awsConnectorException) {
+      fail("Could not construct the credentials provider: " + awsConnectorException.getMessage());
+    }
+  }
+
   public Map<String, String> createIamRoleConnectionProperties() {
     Map<String, String> res = new HashMap<>();
     res.put(AwsCloudConnectorConstants.REGION_NAME_PARAM, AwsCloudConnectorConstants.REGION_NAME_DEFAULT);
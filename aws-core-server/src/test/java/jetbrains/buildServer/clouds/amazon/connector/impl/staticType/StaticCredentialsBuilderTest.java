@@ -11,6 +11,7 @@ import jetbrains.buildServer.clouds.amazon.connector.errors.AwsConnectorExceptio
 import jetbrains.buildServer.clouds.amazon.connector.errors.NoSuchAwsCredentialsBuilderException;
 import jetbrains.buildServer.clouds.amazon.connector.impl.AwsConnectorFactoryImpl;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.StsClientProvider;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.TeamCityStsClientBuilder;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams;
 import jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants;
 import jetbrains.buildServer.serverSide.InvalidProperty;
@@ -122,6 +123,24 @@ public class StaticCredentialsBuilderTest extends BaseTestCase {
     assertEquals(invalidProperties.get(0).getPropertyName(), STS_ENDPOINT_PARAM);
   }
 
+  @Test
+  public void givenAwsConnFactory_withAutoStsEndpoint_thenReturnSessionCredentials() {
+    StaticCredentialsBuilder staticCredentialsFactory = createStaticCredentialsBuilder();
+
+    myConnectorProperties.put(SESSION_CREDENTIALS_PARAM, "true");
+    myConnectorProperties.put(STS_ENDPOINT_PARAM, TeamCityStsClientBuilder.STS_ENDPOINT_AUTO);
+    List<InvalidProperty> invalidProperties = myAwsConnectorFactory.getInvalidProperties(myConnectorProperties);
+    assertTrue(invalidProperties.isEmpty());
+
+    try {
+      AwsCredentialsHolder credentialsHolder = staticCredentialsFactory.constructSpecificCredentialsProvider(createProjectFeatureDescriptor(myConnectorProperties));
+      assertEquals(testAccessKeyId, credentialsHolder.getAwsCredentials().getAccessKeyId());
+      assertEquals(testSecretAccessKey, credentialsHolder.getAwsCredentials().getSecretAccessKey());
+    } catch (ConnectionCredentialsException awsConnectorException) {
+      fail("Could not construct the credentials provider: " + awsConnectorException.getMessage());
+    }
+  }
+
   @Test
   public void givenAwsConnFactory_withoutProperStsEndpointButDisabled_thenReturnNothing() {
     createStaticCredentialsBuilder();
@@ -0,0 +1,48 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.http.SdkHttpClient;
+
+@Test
+public class AwsSdkHttpClientsTest extends BaseTestCase {
+
+  private EventDispatcher<BuildServerListener> myEventDispatcher;
+  private AwsSdkHttpClients myHttpClients;
+
+  @BeforeMethod
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myEventDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myHttpClients = new AwsSdkHttpClients(Mockito.mock(ProjectManager.class), myEventDispatcher);
+  }
+
+  public void testHttpClientIsSharedWithinFamily() {
+    final SdkHttpClient client = myHttpClients.getHttpClient(AwsSdkHttpClients.STS);
+
+    assertSame(client, myHttpClients.getHttpClient(AwsSdkHttpClients.STS));
+    assertNotSame(client, myHttpClients.getHttpClient(AwsSdkHttpClients.IAM));
+  }
+
+  public void testPoolStatisticsAreReportedForUsedFamilies() {
+    myHttpClients.getHttpClient(AwsSdkHttpClients.EC2);
+
+    assertEquals(1, myHttpClients.getPoolStatistics().size());
+    assertEquals(0, myHttpClients.getPoolStatistics().get(AwsSdkHttpClients.EC2).getLeased());
+  }
+
+  public void testHttpClientsAreClosedOnServerShutdown() {
+    final SdkHttpClient client = myHttpClients.getHttpClient(AwsSdkHttpClients.STS);
+
+    myEventDispatcher.getMulticaster().serverShutdown();
+
+    assertTrue(myHttpClients.getPoolStatistics().isEmpty());
+    assertNotSame(client, myHttpClients.getHttpClient(AwsSdkHttpClients.STS));
+  }
+}
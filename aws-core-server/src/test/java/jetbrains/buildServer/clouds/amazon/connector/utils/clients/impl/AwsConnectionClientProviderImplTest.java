@@ -0,0 +1,83 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionDescriptor;
+import jetbrains.buildServer.clouds.amazon.connector.common.AwsConnectionsHolder;
+import jetbrains.buildServer.clouds.amazon.connector.errors.AwsConnectorException;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.AwsSdkHttpClients;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.SProjectFeatureDescriptor;
+import jetbrains.buildServer.serverSide.oauth.OAuthConstants;
+import jetbrains.buildServer.serverSide.oauth.aws.AwsConnectionProvider;
+import jetbrains.buildServer.testUtils.TestUtils;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.services.iam.IamClient;
+
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants.REGION_NAME_PARAM;
+import static org.mockito.Mockito.when;
+
+@Test
+public class AwsConnectionClientProviderImplTest extends BaseTestCase {
+
+  private static final String CONNECTION_ID = "awsConnection";
+
+  private EventDispatcher<BuildServerListener> myEventDispatcher;
+  private SProjectFeatureDescriptor myConnectionFeature;
+  private AwsConnectionClientProviderImpl myClientProvider;
+
+  @BeforeMethod
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myEventDispatcher = EventDispatcher.create(BuildServerListener.class);
+
+    final Map<String, String> parameters = new HashMap<>();
+    parameters.put(OAuthConstants.OAUTH_TYPE_PARAM, AwsConnectionProvider.TYPE);
+    parameters.put(REGION_NAME_PARAM, "eu-west-1");
+    myConnectionFeature = Mockito.mock(SProjectFeatureDescriptor.class);
+    when(myConnectionFeature.getId()).thenReturn(CONNECTION_ID);
+    when(myConnectionFeature.getProjectId()).thenReturn("project");
+    when(myConnectionFeature.getType()).thenReturn(OAuthConstants.FEATURE_TYPE);
+    when(myConnectionFeature.getParameters()).thenReturn(parameters);
+
+    final AwsConnectionsHolder awsConnectionsHolder = Mockito.mock(AwsConnectionsHolder.class);
+    when(awsConnectionsHolder.getAwsConnection(CONNECTION_ID))
+      .thenReturn((AwsConnectionDescriptor)TestUtils.createConnectionDescriptor("project", CONNECTION_ID, parameters));
+
+    myClientProvider = new AwsConnectionClientProviderImpl(awsConnectionsHolder,
+                                                           new AwsSdkHttpClients(Mockito.mock(ProjectManager.class), myEventDispatcher),
+                                                           myEventDispatcher);
+  }
+
+  public void testClientIsReusedForTheSameConnection() throws AwsConnectorException {
+    final IamClient client = myClientProvider.getClient(CONNECTION_ID, IamClient.class);
+    client.close();
+
+    assertSame(client, myClientProvider.getClient(CONNECTION_ID, IamClient.class));
+  }
+
+  public void testClientIsRecreatedAfterConnectionChange() throws AwsConnectorException {
+    final IamClient client = myClientProvider.getClient(CONNECTION_ID, IamClient.class);
+
+    myEventDispatcher.getMulticaster().projectFeatureChanged(Mockito.mock(SProject.class), myConnectionFeature, myConnectionFeature);
+
+    assertNotSame(client, myClientProvider.getClient(CONNECTION_ID, IamClient.class));
+  }
+
+  public void testClientsOfRemovedProjectAreEvicted() throws AwsConnectorException {
+    final IamClient client = myClientProvider.getClient(CONNECTION_ID, IamClient.class);
+    final SProject project = Mockito.mock(SProject.class);
+    when(project.getProjectId()).thenReturn("project");
+
+    myEventDispatcher.getMulticaster().projectRemoved(project);
+
+    assertNotSame(client, myClientProvider.getClient(CONNECTION_ID, IamClient.class));
+  }
+}
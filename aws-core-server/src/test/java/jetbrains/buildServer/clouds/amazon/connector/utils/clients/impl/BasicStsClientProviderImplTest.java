@@ -0,0 +1,84 @@
+package jetbrains.buildServer.clouds.amazon.connector.utils.clients.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.AwsSdkHttpClients;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.awscore.AwsRequestOverrideConfiguration;
+import software.amazon.awssdk.services.sts.StsClient;
+import software.amazon.awssdk.services.sts.model.GetCallerIdentityRequest;
+
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsAccessKeysParams.STS_ENDPOINT_PARAM;
+import static jetbrains.buildServer.clouds.amazon.connector.utils.parameters.AwsCloudConnectorConstants.REGION_NAME_PARAM;
+
+@Test
+public class BasicStsClientProviderImplTest extends BaseTestCase {
+
+  private EventDispatcher<BuildServerListener> myEventDispatcher;
+  private BasicStsClientProviderImpl myStsClientProvider;
+
+  @BeforeMethod
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myEventDispatcher = EventDispatcher.create(BuildServerListener.class);
+    myStsClientProvider = new BasicStsClientProviderImpl(new AwsSdkHttpClients(Mockito.mock(ProjectManager.class), myEventDispatcher), myEventDispatcher);
+  }
+
+  public void testClientIsReusedForTheSameEndpoint() {
+    final StsClient client = myStsClientProvider.getClient(createParameters("https://sts.eu-west-1.amazonaws.com", "eu-west-1"));
+
+    assertSame(client, myStsClientProvider.getClient(createParameters("https://sts.eu-west-1.amazonaws.com", "eu-west-1")));
+  }
+
+  public void testClientsAreNotSharedBetweenEndpoints() {
+    final StsClient client = myStsClientProvider.getClient(createParameters("https://sts.eu-west-1.amazonaws.com", "eu-west-1"));
+
+    assertNotSame(client, myStsClientProvider.getClient(createParameters("https://sts.eu-west-2.amazonaws.com", "eu-west-2")));
+    assertNotSame(client, myStsClientProvider.getClient(null));
+  }
+
+  public void testClientsAreRecreatedAfterServerShutdown() {
+    final StsClient client = myStsClientProvider.getClient(null);
+
+    myEventDispatcher.getMulticaster().serverShutdown();
+
+    assertNotSame(client, myStsClientProvider.getClient(null));
+  }
+
+  public void testCredentialsAreSetToEachRequest() {
+    final StsClient pooledClient = Mockito.mock(StsClient.class);
+    final AwsCredentialsProvider credentialsProvider = StaticCredentialsProvider.create(AwsBasicCredentials.create("ACCESS_KEY", "SECRET_KEY"));
+    final AwsCredentialsProvider requestCredentialsProvider = StaticCredentialsProvider.create(AwsBasicCredentials.create("OTHER_ACCESS_KEY", "SECRET_KEY"));
+    final StsClient client = new StsClientWithCredentials(pooledClient, credentialsProvider);
+
+    client.getCallerIdentity(GetCallerIdentityRequest.builder().build());
+    client.getCallerIdentity(GetCallerIdentityRequest.builder()
+                                                     .overrideConfiguration(AwsRequestOverrideConfiguration.builder().credentialsProvider(requestCredentialsProvider).build())
+                                                     .build());
+    client.close();
+
+    final ArgumentCaptor<GetCallerIdentityRequest> requests = ArgumentCaptor.forClass(GetCallerIdentityRequest.class);
+    Mockito.verify(pooledClient, Mockito.times(2)).getCallerIdentity(requests.capture());
+    assertSame(credentialsProvider, requests.getAllValues().get(0).overrideConfiguration().get().credentialsIdentityProvider().get());
+    assertSame(requestCredentialsProvider, requests.getAllValues().get(1).overrideConfiguration().get().credentialsIdentityProvider().get());
+    Mockito.verify(pooledClient, Mockito.never()).close();
+  }
+
+  private Map<String, String> createParameters(final String stsEndpoint, final String region) {
+    final Map<String, String> parameters = new HashMap<>();
+    parameters.put(STS_ENDPOINT_PARAM, stsEndpoint);
+    parameters.put(REGION_NAME_PARAM, region);
+    return parameters;
+  }
+}
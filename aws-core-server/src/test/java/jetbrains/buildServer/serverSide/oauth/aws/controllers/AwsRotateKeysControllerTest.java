@@ -8,6 +8,7 @@ import jetbrains.buildServer.clouds.amazon.connector.keyRotation.RotateKeyApi;
 import jetbrains.buildServer.clouds.amazon.connector.keyRotation.impl.AwsKeyRotatorImpl;
 import jetbrains.buildServer.clouds.amazon.connector.keyRotation.impl.AwsRotateKeyApi;
 import jetbrains.buildServer.clouds.amazon.connector.keyRotation.impl.OldKeysCleaner;
+import jetbrains.buildServer.clouds.amazon.connector.utils.clients.AwsSdkHttpClients;
 import jetbrains.buildServer.clouds.amazon.connector.utils.clients.IamClientBuilder;
 import jetbrains.buildServer.controllers.ActionErrors;
 import jetbrains.buildServer.controllers.BaseControllerTestCase;
@@ -123,7 +124,8 @@ public class AwsRotateKeysControllerTest extends BaseControllerTestCase<AwsRotat
       myOAuthConnectionsManager,
       myFixture.getSecurityContext(),
       myFixture.getConfigActionFactory(),
-      createOldKeysCleaner()
+      createOldKeysCleaner(),
+      Mockito.mock(AwsSdkHttpClients.class)
     ) {
       @NotNull
       @Override
@@ -51,6 +51,8 @@ public class TestUtils {
     StsClientProvider stsClientProvider = Mockito.mock(StsClientProvider.class);
     when(stsClientProvider.getClientWithCredentials(any(), any()))
       .thenReturn(securityTokenService);
+    when(stsClientProvider.getClient(any()))
+      .thenReturn(securityTokenService);
 
     return stsClientProvider;
   }
@@ -71,6 +73,8 @@ public class TestUtils {
     StsClientProvider stsClientProvider = Mockito.mock(StsClientProvider.class);
     when(stsClientProvider.getClientWithCredentials(any(), any()))
       .thenReturn(securityTokenService);
+    when(stsClientProvider.getClient(any()))
+      .thenReturn(securityTokenService);
 
     return stsClientProvider;
   }
@@ -68,7 +68,7 @@
         <td><props:textProperty id="${sts_endpoint_field_id_iam_role}"
                                 name="${sts_endpoint_param}"
                                 value="${stsEndpoint}" className="longField" maxlength="256"/>
-            <span class="smallNote">The global endpoint is ${sts_global_endpoint}</span>
+            <span class="smallNote">The global endpoint is ${sts_global_endpoint}. Use <code>auto</code> to pick the fastest regional endpoint and fail over to the next one</span>
             <span class="error" id="error_${sts_endpoint_param}" style="word-break: break-all;"></span>
         </td>
     </tr>
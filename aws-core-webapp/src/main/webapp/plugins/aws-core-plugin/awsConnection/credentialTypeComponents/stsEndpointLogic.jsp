@@ -20,8 +20,16 @@
     });
 
     let setStsEndpoint = function (stsEndpoint) {
-      $j('#${sts_endpoint_field_id}').val('https://sts.' + stsEndpoint + '.amazonaws.com');
-      $j('#${sts_endpoint_field_id_iam_role}').val('https://sts.' + stsEndpoint + '.amazonaws.com');
+      setRegionalEndpoint($j('#${sts_endpoint_field_id}'), stsEndpoint);
+      setRegionalEndpoint($j('#${sts_endpoint_field_id_iam_role}'), stsEndpoint);
+    };
+
+    // "auto" is kept: the endpoint is then picked by the server among the regional ones
+    let setRegionalEndpoint = function ($stsEndpointField, region) {
+      if ($stsEndpointField.val().trim().toLowerCase() === 'auto') {
+        return;
+      }
+      $stsEndpointField.val('https://sts.' + region + '.amazonaws.com');
     };
 
     let toggleStsEndpint = function () {